@@ -103,6 +103,9 @@ public class BlueMouse extends MapActivity {
 	private static final int REQUEST_ENABLE_BT = 2;
 	private static final int PREFERENCES_CHANGED = 3;
 
+	// lowest update interval in ms, 10 updates per second
+	private static final int MIN_UPDATE_INTERVAL = 100;
+
 	// relase commands
 	private static final String FOCUS_CAMERA = "$PFOOR,0,1*45\r\n";
 	private static final String PRESS_SHUTTER = "$PFOOR,1,1*44\r\n";
@@ -285,11 +288,11 @@ public class BlueMouse extends MapActivity {
 		try {
 			String supdateinterval = sp.getString("update_interval", "2000");
 			update_interval = Math.abs(Integer.parseInt(supdateinterval));
-			if(update_interval < 250)
+			if(update_interval < MIN_UPDATE_INTERVAL)
 			{
-				update_interval = 250;
+				update_interval = MIN_UPDATE_INTERVAL;
 				Editor e = sp.edit();
-				e.putString("update_interval", "250"); // don't allow values lower then 250
+				e.putString("update_interval", String.valueOf(MIN_UPDATE_INTERVAL)); // don't allow values lower then 100
 				e.commit();
 			}
 		} catch (NumberFormatException ne) {
@@ -298,6 +301,63 @@ public class BlueMouse extends MapActivity {
 			e.commit();
 		}
 
+		int gga_offset = NMEAServer.DEFAULT_GGA_OFFSET;
+		try {
+			gga_offset = Math.abs(Integer.parseInt(sp.getString(Preferences.KEY_GGA_OFFSET,
+					String.valueOf(NMEAServer.DEFAULT_GGA_OFFSET))));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_GGA_OFFSET, String.valueOf(NMEAServer.DEFAULT_GGA_OFFSET)); // incorrect input value, reset
+			e.commit();
+		}
+
+		int tcp_port = 0;
+		try {
+			tcp_port = Integer.parseInt(sp.getString(Preferences.KEY_TCP_PORT, "0"));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_TCP_PORT, "0"); // incorrect input value, disable
+			e.commit();
+		}
+
+		int coalesce_window = 0;
+		try {
+			coalesce_window = Math.abs(Integer.parseInt(sp.getString(Preferences.KEY_COALESCE_WINDOW, "0")));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_COALESCE_WINDOW, "0"); // incorrect input value, disable
+			e.commit();
+		}
+
+		int prediction_horizon = DeadReckoning.DEFAULT_HORIZON;
+		try {
+			prediction_horizon = Math.abs(Integer.parseInt(sp.getString(Preferences.KEY_PREDICTION_HORIZON,
+					String.valueOf(DeadReckoning.DEFAULT_HORIZON))));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_PREDICTION_HORIZON, String.valueOf(DeadReckoning.DEFAULT_HORIZON)); // incorrect input value, reset
+			e.commit();
+		}
+
+		int min_spacing = NMEAServer.DEFAULT_MIN_SPACING;
+		try {
+			min_spacing = Math.abs(Integer.parseInt(sp.getString(Preferences.KEY_MIN_SPACING,
+					String.valueOf(NMEAServer.DEFAULT_MIN_SPACING))));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_MIN_SPACING, String.valueOf(NMEAServer.DEFAULT_MIN_SPACING)); // incorrect input value, reset
+			e.commit();
+		}
+
+		int stale_after = 0;
+		try {
+			stale_after = Math.abs(Integer.parseInt(sp.getString(Preferences.KEY_STALE_AFTER, "0")));
+		} catch (NumberFormatException ne) {
+			Editor e = sp.edit();
+			e.putString(Preferences.KEY_STALE_AFTER, "0"); // incorrect input value, disable
+			e.commit();
+		}
+
 		if( sp.getBoolean("forcechannel", false) )
 		{
 			channel = Integer.parseInt(sp.getString("portnumber", "1"));
@@ -305,6 +365,26 @@ public class BlueMouse extends MapActivity {
 		Intent i = new Intent(this, BlueMouseService.class);
 		i.putExtra(BlueMouseService.EXTRA_CHANNEL, channel);
 		i.putExtra(BlueMouseService.EXTRA_UPDATE_INTERVAL, update_interval);
+		i.putExtra(BlueMouseService.EXTRA_GGA_OFFSET, gga_offset);
+		i.putExtra(BlueMouseService.EXTRA_TCP_PORT, tcp_port);
+		i.putExtra(BlueMouseService.EXTRA_COALESCE_WINDOW, coalesce_window);
+		i.putExtra(BlueMouseService.EXTRA_DEAD_RECKONING,
+				sp.getString(Preferences.KEY_DEAD_RECKONING, "off"));
+		i.putExtra(BlueMouseService.EXTRA_PREDICTION_HORIZON, prediction_horizon);
+		i.putExtra(BlueMouseService.EXTRA_DIALECT,
+				sp.getString(Preferences.KEY_DIALECT, SentenceDialects.DEFAULT));
+		i.putExtra(BlueMouseService.EXTRA_OVERFLOW_POLICY,
+				sp.getString(Preferences.KEY_OVERFLOW_POLICY, "drop_oldest"));
+		i.putExtra(BlueMouseService.EXTRA_PASS_THROUGH,
+				sp.getString(Preferences.KEY_PASS_THROUGH, "none"));
+		i.putExtra(BlueMouseService.EXTRA_RECORD_TRACK,
+				sp.getBoolean(Preferences.KEY_RECORD_TRACK, false));
+		i.putExtra(BlueMouseService.EXTRA_EMISSION_MODE,
+				sp.getString(Preferences.KEY_EMISSION_MODE, "timer"));
+		i.putExtra(BlueMouseService.EXTRA_MIN_SPACING, min_spacing);
+		i.putExtra(BlueMouseService.EXTRA_STALE_AFTER, stale_after);
+		i.putExtra(BlueMouseService.EXTRA_STALE_POLICY,
+				sp.getString(Preferences.KEY_STALE_POLICY, "invalid"));
 		startService(i);
 	}
 
@@ -36,6 +36,7 @@
 
 package com.oldsch00l.BlueMouse;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -43,10 +44,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
 import android.app.Notification;
@@ -59,15 +57,18 @@ import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.location.GpsStatus.NmeaListener;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -82,6 +83,36 @@ public class BlueMouseService extends Service {
 
 	public static final String EXTRA_CHANNEL = "com.oldsch00l.BlueMouse.channel";
 	public static final String EXTRA_UPDATE_INTERVAL = "com.oldsch00l.BlueMouse.update_interval";
+	public static final String EXTRA_DIALECT = "com.oldsch00l.BlueMouse.dialect";
+	public static final String EXTRA_OVERFLOW_POLICY = "com.oldsch00l.BlueMouse.overflow_policy";
+	public static final String EXTRA_GGA_OFFSET = "com.oldsch00l.BlueMouse.gga_offset";
+	public static final String EXTRA_TCP_PORT = "com.oldsch00l.BlueMouse.tcp_port";
+	public static final String EXTRA_PASS_THROUGH = "com.oldsch00l.BlueMouse.pass_through";
+	public static final String EXTRA_REPLAY_FILE = "com.oldsch00l.BlueMouse.replay_file";
+	public static final String EXTRA_REPLAY_SPEED = "com.oldsch00l.BlueMouse.replay_speed";
+	public static final String EXTRA_RECORD_TRACK = "com.oldsch00l.BlueMouse.record_track";
+	public static final String EXTRA_EMISSION_MODE = "com.oldsch00l.BlueMouse.emission_mode";
+	public static final String EXTRA_MIN_SPACING = "com.oldsch00l.BlueMouse.min_spacing";
+	public static final String EXTRA_STALE_AFTER = "com.oldsch00l.BlueMouse.stale_after";
+	public static final String EXTRA_STALE_POLICY = "com.oldsch00l.BlueMouse.stale_policy";
+	public static final String EXTRA_COALESCE_WINDOW = "com.oldsch00l.BlueMouse.coalesce_window";
+	public static final String EXTRA_DEAD_RECKONING = "com.oldsch00l.BlueMouse.dead_reckoning";
+	public static final String EXTRA_PREDICTION_HORIZON = "com.oldsch00l.BlueMouse.prediction_horizon";
+
+	/** Preferences file of the subscriptions by Bluetooth address. */
+	public static final String SUBSCRIPTIONS = "subscriptions";
+
+	/** File of the {@link WarmStart} state in the private files. */
+	private static final String WARM_START_FILE = "warmstart";
+
+	/** Value of Force Connection when no device is selected. */
+	public static final String DEVICE_DISABLED = "disabled";
+
+	/** Directory of the recorded tracks on the external storage. */
+	public static final String TRACK_DIRECTORY = "BlueMouse/tracks";
+
+	/** Bytes joined into one Bluetooth write. */
+	private static final int WRITE_BATCH_SIZE = 4096;
 
 	// Name for the SDP record when creating server socket
 	private static final String BT_SERVICE_NAME = "BlueMouse GPS";
@@ -94,26 +125,38 @@ public class BlueMouseService extends Service {
 	private final BluetoothAdapter mAdapter;
 	private Handler mHandler = new Handler();
 	private AcceptThread mAcceptThread;
-	private List<ConnectedThread> mConnectedList;
+	private TcpTransport mTcpTransport;
 	private int mState;
 	private int mUpdate_interval;
+	private int mOverflowPolicy;
+	private volatile int mCoalesceWindow;
 
-	private TimerTask mNMEATask = new NMEATask();
+	// counters and histograms, see getMetrics()
+	private final Metrics mMetrics = new Metrics();
+	// source mix: fixes by provider, the server counts the chip epochs
+	private final Metrics.Counter mGpsFixes = mMetrics.counter("source.gps_fixes");
+	private final Metrics.Counter mNetworkFixes = mMetrics.counter("source.network_fixes");
+	// clients, subscriptions, emissions and watchdog
+	private final NMEAServer mServer = new NMEAServer(
+			SentenceDialects.get(SentenceDialects.DEFAULT), mMetrics);
 
-	// Timer stuff
-	private Timer mTimer;
+	// time of the last recorded fix, only used by the scheduler thread
+	private long mRecordedTime = Long.MIN_VALUE;
 
 	// GPS stuff
 	private LocationManager mLocationManager = null;
 	private NmeaListener mNMEAListener = null;
+	private NMEAParser mNMEAParser = null;
 	private LocationListener mLocationUpdateListener = null;
+	private ReplaySource mReplaySource = null;
+	private volatile TrackRecorder mTrackRecorder = null;
 
-	// NMEA strings
-	private String mCurRMCString = null;
-	private String mCurGGAString = null;
-
-	// cur location
-	private Location mCurLocation = null;
+	// last fix and devices of the previous run
+	private WarmStart mWarmStart;
+	// address selected under Force Connection, null or "disabled" for none
+	private volatile String mSelectedDevice;
+	// keeps the wanted Bluetooth devices connected
+	private ReconnectManager<BluetoothSocket> mReconnect;
 
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0; // we're doing nothing
@@ -138,8 +181,9 @@ public class BlueMouseService extends Service {
 	public BlueMouseService() {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = STATE_NONE;
-		mConnectedList = new ArrayList<BlueMouseService.ConnectedThread>();
 		mUpdate_interval = 2000;
+		mOverflowPolicy = OutboundQueue.OVERFLOW_DROP_OLDEST;
+		mServer.setListener(mServerListener);
 	}
 
 	/**
@@ -194,10 +238,7 @@ public class BlueMouseService extends Service {
 		Bundle bundle = new Bundle();
 		ArrayList<String> deviceNames = new ArrayList<String>();
 		ArrayList<String> deviceAddresses = new ArrayList<String>();
-		for(ConnectedThread conn : mConnectedList) {
-			deviceNames.add(conn.getSocket().getRemoteDevice().getName());
-			deviceAddresses.add(conn.getSocket().getRemoteDevice().getAddress());
-		}
+		mServer.getDevices(deviceNames, deviceAddresses);
 		bundle.putStringArrayList(BlueMouse.EXTRA_CONNECTED_DEVICES, deviceNames);
 		bundle.putStringArrayList(BlueMouse.EXTRA_CONNECTED_DEVICES_ADDR, deviceAddresses);
 		msg.setData(bundle);
@@ -205,96 +246,277 @@ public class BlueMouseService extends Service {
 	}
 
 	/**
-	 * Start the ConnectedThread to begin managing a Bluetooth connection
+	 * Start the ConnectedThread to begin managing a Bluetooth connection,
+	 * doesn't hold the lock of the service
 	 *
 	 * @param socket
 	 *            The BluetoothSocket on which the connection was made
 	 * @param device
 	 *            The BluetoothDevice that has been connected
 	 */
-	public synchronized void connected(BluetoothSocket socket,
-			BluetoothDevice device) {
+	public void connected(BluetoothSocket socket, BluetoothDevice device) {
 		Log.d(TAG, "connected " + device.getName());
+		mWarmStart.addDevice(device.getAddress());
+		mReconnect.onConnected(device.getAddress());
 
-		// Start the thread to manage the connection and perform transmissions
+		// Register before starting, a connection failing right away is
+		// removed again
 		ConnectedThread connection = new ConnectedThread(socket);
+		mServer.addClient(connection);
 		connection.start();
-		mConnectedList.add(connection);
+	}
 
-		// Send the name of the connected device back to the UI Activity
-		Message msg = mHandler.obtainMessage(BlueMouse.MESSAGE_DEVICE_CONNECTED);
-		Bundle bundle = new Bundle();
-		bundle.putString(BlueMouse.EXTRA_DEVICE_NAME, device.getName());
-		bundle.putString(BlueMouse.EXTRA_DEVICE_ADDRESS, device.getAddress());
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+	/**
+	 * Gets told about the clients of all transports, restores and remembers
+	 * the subscriptions of the Bluetooth devices and shows and records the
+	 * fixes.
+	 */
+	private final NMEAServer.Listener mServerListener = new NMEAServer.Listener() {
+		@Override
+		public void onConnected(Connection connection) {
+			String name = connection.getDeviceName();
+			String address = connection.getDeviceAddress();
+			Log.d(TAG, "connected " + name);
+			Subscription subscription = loadSubscription(address);
+			if (subscription != null) {
+				Log.d(TAG, name + " subscribed to " + subscription);
+				mServer.setSubscription(connection, subscription);
+			}
+
+			// Send the name of the connected device back to the UI Activity
+			Message msg = mHandler.obtainMessage(BlueMouse.MESSAGE_DEVICE_CONNECTED);
+			Bundle bundle = new Bundle();
+			bundle.putString(BlueMouse.EXTRA_DEVICE_NAME, name);
+			bundle.putString(BlueMouse.EXTRA_DEVICE_ADDRESS, address);
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+
+			synchronized (BlueMouseService.this) {
+				if(mState != STATE_CONNECTED) {
+					setState(STATE_CONNECTED);
+				}
+			}
+		}
 
-		if(getState() != STATE_CONNECTED) {
-			setState(STATE_CONNECTED);
+		@Override
+		public void onDisconnected(Connection connection) {
+			Log.d(TAG, "disconnected " + connection.getDeviceName());
+			Message msg = mHandler.obtainMessage(BlueMouse.MESSAGE_DEVICE_DISCONNECTED);
+			Bundle bundle = new Bundle();
+			bundle.putString(BlueMouse.EXTRA_DEVICE_NAME, connection.getDeviceName());
+			bundle.putString(BlueMouse.EXTRA_DEVICE_ADDRESS, connection.getDeviceAddress());
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+
+			mMetrics.removeClient(connection);
+			mReconnect.onDisconnected(connection.getDeviceAddress());
+
+			synchronized (BlueMouseService.this) {
+				if(mServer.getClientCount() == 0) {
+					setState(STATE_LISTEN);
+				}
+			}
 		}
-	}
+
+		@Override
+		public void onEvicted(Connection connection, String reason) {
+			Log.w(TAG, "evicting " + connection.getDeviceName() + ": " + reason);
+		}
+
+		@Override
+		public void onSubscribed(Connection connection, Subscription subscription) {
+			Log.i(TAG, connection.getDeviceName() + " subscribed to " + subscription);
+			// other addresses don't outlive the connection
+			if (connection instanceof ConnectedThread)
+				setSubscription(connection.getDeviceAddress(), subscription);
+		}
+
+		@Override
+		public void onTick(Fix fix) {
+			updateUILocation(fix);
+			recordLocation(fix);
+		}
+	};
 
 	/**
-	 * Force a connection to this address.
+	 * Force a connection to this address, it is reconnected whenever it is
+	 * lost. Repeated calls for the same address are collapsed.
 	 * 
 	 * @param bdAddr
 	 */
 	public void connect(String bdAddr) {
+		connect(bdAddr, false);
+	}
+
+	/**
+	 * The device selected under Force Connection changed. The previous one
+	 * isn't reconnected anymore, it is disconnected if none is selected.
+	 *
+	 * @param bdAddr
+	 *            the address or "disabled".
+	 */
+	public void selectDevice(String bdAddr) {
+		String previous = mSelectedDevice;
+		mSelectedDevice = bdAddr;
+		if (previous != null && !previous.equals(bdAddr)) {
+			if (DEVICE_DISABLED.equals(bdAddr))
+				disconnect(previous);
+			else
+				mReconnect.remove(previous);
+		}
+		connect(bdAddr);
+	}
+
+	/**
+	 * Disconnects a device on purpose, it isn't reconnected or connected at
+	 * the next start.
+	 *
+	 * @param bdAddr
+	 *            address of the device.
+	 */
+	public void disconnect(String bdAddr) {
+		mReconnect.remove(bdAddr);
+		mWarmStart.removeDevice(bdAddr);
+		for (Connection conn : mServer.getClients()) {
+			if (bdAddr.equals(conn.getDeviceAddress()))
+				mServer.removeClient(conn);
+		}
+	}
+
+	/**
+	 * @param once
+	 *            true to try only once, e.g. for a device of the previous
+	 *            run, see {@link ReconnectManager#request(String, boolean)}.
+	 */
+	private void connect(String bdAddr, boolean once) {
+		if (mAdapter == null)
+			return;
 		Set<BluetoothDevice> devs = mAdapter.getBondedDevices();
 		for (BluetoothDevice dev : devs) {
 			if (dev.getAddress().equals(bdAddr)) {
-				new ConnectingThread(dev).start();
+				mReconnect.request(bdAddr, once);
 			}
 		}
 	}
 
+	/**
+	 * Opens the RFCOMM connections of the {@link ReconnectManager}.
+	 */
+	private final ReconnectManager.Connector<BluetoothSocket> mConnector = new ReconnectManager.Connector<BluetoothSocket>() {
+		@Override
+		public BluetoothSocket open(String address) throws IOException {
+			BluetoothDevice dev = mAdapter.getRemoteDevice(address);
+			BluetoothSocket socket = dev.createRfcommSocketToServiceRecord(UUID
+					.fromString("00001101-0000-1000-8000-00805F9B34FB"));
+			try {
+				socket.connect();
+			} catch (IOException e) {
+				Log.e(TAG, "force connect to " + address + " failed", e);
+				close(socket);
+				throw e;
+			}
+			return socket;
+		}
+
+		@Override
+		public void connected(String address, BluetoothSocket socket) {
+			BlueMouseService.this.connected(socket, socket.getRemoteDevice());
+		}
+
+		@Override
+		public void close(BluetoothSocket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not close unwanted socket", e);
+			}
+		}
+	};
+
 	/**
 	 * Write to the ConnectedThread in an unsynchronized manner
 	 * 
 	 * @param out
 	 *            The bytes to write
-	 * @see ConnectedThread#write(byte[])
+	 * @see Connection#write(Frame)
 	 */
 	public void write(byte[] out) {
 		if (out != null) {
-			// Synchronize a copy of the ConnectedThread
-			if(getState() != STATE_CONNECTED)
-				return;
-
-			for(ConnectedThread conn : mConnectedList) {
-				conn.write(out);
-			}
+			write(new Frame(out));
 		}
 	}
 
 	/**
-	 * Indicate that the connection was lost and notify the UI Activity.
+	 * Write a part of a buffer to the ConnectedThread in an unsynchronized
+	 * manner
+	 * 
+	 * @param out
+	 *            The buffer holding the bytes to write, it may be reused
+	 *            afterwards
+	 * @param offset
+	 *            Start of the bytes in the buffer
+	 * @param length
+	 *            Number of bytes to write
+	 * @see Connection#write(Frame)
 	 */
-	private void connectionLost(ConnectedThread conn) {
-		Message msg = mHandler.obtainMessage(BlueMouse.MESSAGE_DEVICE_DISCONNECTED);
-		Bundle bundle = new Bundle();
-		bundle.putString(BlueMouse.EXTRA_DEVICE_NAME, conn.getSocket().getRemoteDevice().getName());
-		bundle.putString(BlueMouse.EXTRA_DEVICE_ADDRESS, conn.getSocket().getRemoteDevice().getAddress());
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+	public void write(byte[] out, int offset, int length) {
+		if(getState() != STATE_CONNECTED)
+			return;
 
-		mConnectedList.remove(conn);
-		conn.cancel();
+		write(Frame.copyOf(out, offset, length, 0));
+	}
 
-		if(mConnectedList.size() == 0) {
-			if (mTimer != null) {
-				mTimer.cancel();
-			}
-			setState(STATE_LISTEN);
+	/**
+	 * Queue a frame for all connections, the frame is shared by all of them.
+	 * 
+	 * @param frame
+	 *            The frame to write
+	 * @see Connection#write(Frame)
+	 */
+	public void write(Frame frame) {
+		if(getState() != STATE_CONNECTED)
+			return;
+
+		mServer.write(frame);
+	}
+
+	/**
+	 * Changes the subscription of a Bluetooth device, it is remembered for
+	 * later connections.
+	 *
+	 * @param address
+	 *            Bluetooth address of the device.
+	 * @param subscription
+	 *            the new subscription, null for the default one.
+	 */
+	public void setSubscription(String address, Subscription subscription) {
+		SharedPreferences.Editor editor = getSharedPreferences(SUBSCRIPTIONS, MODE_PRIVATE).edit();
+		if (subscription != null)
+			editor.putString(address, subscription.toString());
+		else
+			editor.remove(address);
+		editor.commit();
+
+		for (Connection conn : mServer.getClients()) {
+			if (address.equals(conn.getDeviceAddress()))
+				mServer.setSubscription(conn, subscription);
 		}
 	}
 
+	/**
+	 * @return the remembered subscription of a Bluetooth device or null.
+	 */
+	private Subscription loadSubscription(String address) {
+		String spec = getSharedPreferences(SUBSCRIPTIONS, MODE_PRIVATE).getString(address, null);
+		return spec != null ? Subscription.parse(spec, mServer.getDefaultSubscription()) : null;
+	}
+
 	/**
 	 * This thread runs while listening for incoming connections. It behaves
 	 * like a server-side client. It runs until a connection is accepted (or
-	 * until cancelled).
+	 * until cancelled). It is the Bluetooth RFCOMM transport.
 	 */
-	private class AcceptThread extends Thread {
+	private class AcceptThread extends Thread implements Transport {
 		// The local server socket
 		private final BluetoothServerSocket mmServerSocket;
 		private final int mChannel;
@@ -362,25 +584,25 @@ public class BlueMouseService extends Service {
 
 				// If a connection was accepted
 				if (socket != null) {
-					synchronized (BlueMouseService.this) {
-						switch (mState) {
-						case STATE_LISTEN:
-						case STATE_CONNECTING:
-						case STATE_CONNECTED:
-							// Situation normal. Start the connected thread.
-							connected(socket, socket.getRemoteDevice());
-							break;
-						case STATE_NONE:
-						//case STATE_CONNECTED:
-							// Either not ready or already connected. Terminate
-							// new socket.
-							try {
-								socket.close();
-							} catch (IOException e) {
-								Log.e(TAG, "Could not close unwanted socket", e);
-							}
-							break;
+					// the connected thread starts without the lock of the
+					// service, a slow handoff doesn't hold up the others
+					switch (BlueMouseService.this.getState()) {
+					case STATE_LISTEN:
+					case STATE_CONNECTING:
+					case STATE_CONNECTED:
+						// Situation normal. Start the connected thread.
+						connected(socket, socket.getRemoteDevice());
+						break;
+					case STATE_NONE:
+					//case STATE_CONNECTED:
+						// Either not ready or already connected. Terminate
+						// new socket.
+						try {
+							socket.close();
+						} catch (IOException e) {
+							Log.e(TAG, "Could not close unwanted socket", e);
 						}
+						break;
 					}
 				}
 			}
@@ -404,12 +626,18 @@ public class BlueMouseService extends Service {
 
 	/**
 	 * This thread runs during a connection with a remote device. It handles all
-	 * incoming and outgoing transmissions.
+	 * incoming transmissions, outgoing frames are queued and written by its
+	 * WriterThread, so a slow client doesn't hold up the others.
 	 */
-	private class ConnectedThread extends Thread {
+	private class ConnectedThread extends Thread implements Connection {
 		private final BluetoothSocket mmSocket;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private final OutboundQueue mmQueue;
+		private final WriterThread mmWriter;
+		private final NMEAParser mmParser;
+		private final Metrics.Client mmMetrics;
+		private final Liveness mmLiveness = new Liveness();
 
 		public ConnectedThread(BluetoothSocket socket) {
 			Log.d(TAG, "create ConnectedThread");
@@ -427,20 +655,37 @@ public class BlueMouseService extends Service {
 
 			mmInStream = tmpIn;
 			mmOutStream = tmpOut;
+			mmQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, mOverflowPolicy);
+			mmWriter = new WriterThread();
+			mmParser = new NMEAParser(new NMEAParser.Listener() {
+				@Override
+				public void onSentence(NMEASentence sentence) {
+					mServer.getTransportListener().onSentence(ConnectedThread.this,
+							sentence);
+				}
+			});
+			mmMetrics = mMetrics.addClient(this, socket.getRemoteDevice().getName()
+					+ " " + socket.getRemoteDevice().getAddress(), mmQueue);
 		}
 
 		public void run() {
 			Log.d(TAG, "BEGIN mConnectedThread");
+			mmWriter.start();
 			byte[] buffer = new byte[1024];
-			// int bytes;
+			int bytes;
 
 			// Keep listening to the InputStream while connected
 			while (true) {
 				try {
-					// Read from the InputStream
-					/* bytes = */mmInStream.read(buffer);
+					// Read from the InputStream, clients only send their subscription
+					bytes = mmInStream.read(buffer);
+					if (bytes > 0) {
+						mmLiveness.onRead(System.nanoTime());
+						mmParser.parse(buffer, 0, bytes);
+					}
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
+					mmQueue.close();
 					try {
 						mmInStream.close();
 						mmOutStream.close();
@@ -448,7 +693,7 @@ public class BlueMouseService extends Service {
 					} catch (IOException e1) {
 						Log.e(TAG, "socket close failed", e1);
 					} finally {
-						connectionLost(this);
+						mServer.removeClient(this);
 					}
 					break;
 				}
@@ -456,124 +701,136 @@ public class BlueMouseService extends Service {
 		}
 
 		/**
-		 * Write to the connected OutStream.
+		 * Queue a frame for the connected OutStream, never blocks.
 		 *
-		 * @param buffer
-		 *            The bytes to write
+		 * @param frame
+		 *            The frame to write
 		 */
-		public void write(byte[] buffer) {
-			try {
-				mmOutStream.write(buffer);
-				mmOutStream.flush();
-
-				// Share the sent message back to the UI Activity
-				// mHandler.obtainMessage(BlueMouse.MESSAGE_WRITE, -1, -1,
-				// buffer)
-				// .sendToTarget();
-			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
+		public void write(Frame frame) {
+			if (!mmQueue.offer(frame) && !mmQueue.isClosed()) {
+				Log.w(TAG, "outbound queue full, closing connection");
+				// the reading thread notices and reports the lost connection
+				closeSocket();
 			}
 		}
 
 		public void cancel() {
+			mmQueue.close();
 			try {
 				mmInStream.close();
 				mmOutStream.close();
 				mmSocket.close();
-				mConnectedList.remove(this);
+				mMetrics.removeClient(this);
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
 		}
 
-		public BluetoothSocket getSocket() {
-			return mmSocket;
+		public String getDeviceName() {
+			return mmSocket.getRemoteDevice().getName();
 		}
-	}
 
-	private class ConnectingThread extends Thread {
-		private final BluetoothDevice dev;
+		public Liveness getLiveness() {
+			return mmLiveness;
+		}
 
-		ConnectingThread(BluetoothDevice dev) {
-			this.dev = dev;
+		public String getDeviceAddress() {
+			return mmSocket.getRemoteDevice().getAddress();
 		}
 
-		@Override
-		public void run() {
+		private void closeSocket() {
+			mmQueue.close();
 			try {
-				BluetoothSocket socket = dev
-						.createRfcommSocketToServiceRecord(UUID
-								.fromString("00001101-0000-1000-8000-00805F9B34FB"));
-				socket.connect();
-				connected(socket, dev);
+				mmSocket.close();
 			} catch (IOException e) {
-				Log.e(TAG, "force connect failed", e);
+				Log.e(TAG, "close() of connect socket failed", e);
 			}
 		}
-	}
-	private class NMEATask extends TimerTask {
-		@Override
-		public void run() {
-			String sRMCMsg = null;
-			// if GPS provider isn't enabled and
-			// we don't have an update from the NMEA listener
-			// create our own RMC sentence from the current location
-			// if available
-			if (!mLocationManager
-					.isProviderEnabled(LocationManager.GPS_PROVIDER)
-					|| mCurRMCString == null) {
-				if (mCurLocation != null) {
-					sRMCMsg = YaesuFormatter.getNMEARMC(mCurLocation);
-				}
-			} else {
-				sRMCMsg = mCurRMCString;
-			}
-			if(mCurLocation != null) {
-				Message message = mHandler.obtainMessage(BlueMouse.MESSAGE_UPDATE_LOC);
-				Bundle bundle = new Bundle();
-				if( mCurRMCString != null )
-					bundle.putString(BlueMouse.EXTRA_GPS_SOURCE, "GPS");
-				else
-					bundle.putString(BlueMouse.EXTRA_GPS_SOURCE, "NETWORK");
-				bundle.putDouble(BlueMouse.EXTRA_LATITUDE, mCurLocation.getLatitude());
-				bundle.putDouble(BlueMouse.EXTRA_LONGITUDE, mCurLocation.getLongitude());
-				message.setData(bundle);
-				mHandler.sendMessage(message);
-			}
-			if( sRMCMsg != null )
-			{
-				Log.v(TAG, sRMCMsg.trim());
-				write(sRMCMsg.getBytes());
-			}
 
+		/**
+		 * Drains the outbound queue into the OutStream, the waiting frames
+		 * are joined into one write of MTU sized chunks and one flush.
+		 */
+		private class WriterThread extends Thread {
+			public void run() {
+				setName("WriterThread");
+				WriteBatch batch = new WriteBatch(WRITE_BATCH_SIZE);
+				int mtu = getMtu(mmSocket);
+				try {
+					while (batch.collect(mmQueue, mCoalesceWindow * 1000000L)) {
+						long start = System.nanoTime();
+						mmLiveness.onWriteStart(start);
+						batch.writeTo(mmOutStream, mtu);
+						long end = System.nanoTime();
+						mmLiveness.onWriteDone(end);
+						for (int i = 0; i < batch.getFrameCount(); i++) {
+							mmMetrics.onWritten(batch.getFrame(i), start, end);
+						}
 
-			// make sure GGA is send after RMC with a 200ms delay
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			String sGGAMsg = null;
-			// if GPS provider isn't enabled and
-			// we don't have an update from the NMEA listener
-			// create our own GGA sentence from the current location
-			// if available
-			if (!mLocationManager
-					.isProviderEnabled(LocationManager.GPS_PROVIDER)
-					|| mCurGGAString == null) {
-				if (mCurLocation != null) {
-					sGGAMsg = YaesuFormatter.getNMEAGGA(mCurLocation);
+						// Share the sent message back to the UI Activity
+						// mHandler.obtainMessage(BlueMouse.MESSAGE_WRITE, -1, -1,
+						// buffer)
+						// .sendToTarget();
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Exception during write", e);
+					mmMetrics.onError();
+					closeSocket();
+				} catch (InterruptedException e) {
+					Log.d(TAG, "writer interrupted");
 				}
-			} else {
-				sGGAMsg = mCurGGAString;
-			}
-			if( sGGAMsg != null ) {
-				Log.v(TAG, sGGAMsg.trim());
-				write(sGGAMsg.getBytes());
 			}
 		}
 	}
 
+	/**
+	 * @return the MTU of the link, only known since Android 6.
+	 */
+	private static int getMtu(BluetoothSocket socket) {
+		try {
+			Method m = socket.getClass().getMethod("getMaxTransmitPacketSize");
+			int mtu = (Integer) m.invoke(socket);
+			if (mtu > 0)
+				return mtu;
+		} catch (Exception e) {
+			// older Android
+		}
+		return WriteBatch.DEFAULT_MTU;
+	}
+
+	/**
+	 * Shows the current fix in the UI.
+	 */
+	private void updateUILocation(Fix fix) {
+		Message message = mHandler.obtainMessage(BlueMouse.MESSAGE_UPDATE_LOC);
+		Bundle bundle = new Bundle();
+		if( mServer.getPassThrough().isLive(NMEASentence.TYPE_RMC) )
+			bundle.putString(BlueMouse.EXTRA_GPS_SOURCE, "GPS");
+		else
+			bundle.putString(BlueMouse.EXTRA_GPS_SOURCE, "NETWORK");
+		bundle.putDouble(BlueMouse.EXTRA_LATITUDE, fix.getLatitude());
+		bundle.putDouble(BlueMouse.EXTRA_LONGITUDE, fix.getLongitude());
+		message.setData(bundle);
+		mHandler.sendMessage(message);
+	}
+
+	/**
+	 * Records every fix once, not the fix of the previous run.
+	 */
+	private void recordLocation(Fix fix) {
+		TrackRecorder recorder = mTrackRecorder;
+		if (recorder == null || fix.isCached() || fix.getTime() == mRecordedTime)
+			return;
+		mRecordedTime = fix.getTime();
+		try {
+			recorder.record(fix);
+		} catch (IOException e) {
+			Log.e(TAG, "recording track failed", e);
+			mTrackRecorder = null;
+			closeTrackRecorder(recorder);
+		}
+	}
+
 	/**
 	 * Class for clients to access. Because we know this service always runs in
 	 * the same process as its clients, we don't need to deal with IPC.
@@ -582,6 +839,22 @@ public class BlueMouseService extends Service {
 		BlueMouseService getService() {
 			return BlueMouseService.this;
 		}
+
+		/**
+		 * @return the metrics, dump them with {@link Metrics#toText()} or
+		 *         {@link Metrics#toJson()}.
+		 */
+		public Metrics getMetrics() {
+			return mMetrics;
+		}
+
+		/**
+		 * @return the trace of the latest writes, dump it with
+		 *         {@link FixTrace#toText()}.
+		 */
+		public FixTrace getFixTrace() {
+			return mMetrics.getTrace();
+		}
 	}
 
 	@Override
@@ -597,6 +870,8 @@ public class BlueMouseService extends Service {
 
 	@Override
 	public void onCreate() {
+		mMetrics.onStart(System.nanoTime());
+
 		// Get Managers
 		mNM = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
@@ -606,7 +881,7 @@ public class BlueMouseService extends Service {
 
 			@Override
 			public void onLocationChanged(Location location) {
-				mCurLocation = new Location(location); // copy location
+				publishFix(location);
 			}
 
 			@Override
@@ -623,34 +898,21 @@ public class BlueMouseService extends Service {
 			}
 		};
 
+		mNMEAParser = new NMEAParser(mServer.getPassThrough());
+
 		mNMEAListener = new NmeaListener() {
 
 			@Override
 			public void onNmeaReceived(long timestamp, String nmea) {
-				String lowerNmea = nmea.toLowerCase(Locale.ENGLISH);
-				if (nmea.startsWith("$GPRMC")) {
-					if(lowerNmea.indexOf(",v,") == -1) {
-//						Log.v(TAG, "NMEAListener: " + nmea.trim());
-						// mCurRMCString = nmea;
-						return;
-					} else {
-						mCurRMCString = null;
-					}
-				}
-
-				if (nmea.startsWith("$GPGGA")) {
-					if( lowerNmea.indexOf(",e,") > 0 || lowerNmea.indexOf(",w,") > 0 ) {
-//						Log.v(TAG, "NMEAListener: " + nmea.trim());
-						// mCurGGAString = nmea;
-						return;
-					} else {
-						mCurGGAString = null;
-					}
-				}
+				mNMEAParser.parse(nmea);
 			}
 
 		};
 
+		mReconnect = new ReconnectManager<BluetoothSocket>(
+				ReconnectManager.DEFAULT_THREADS, mConnector, mMetrics);
+		warmStart();
+
 		// Display a notification about us starting. We put an icon in the
 		// status bar.
 		showNotification();
@@ -663,19 +925,32 @@ public class BlueMouseService extends Service {
 
 		mLocationManager.removeUpdates(mLocationUpdateListener);
 		mLocationManager.removeNmeaListener(mNMEAListener);
-
-		for(ConnectedThread conn : mConnectedList) {
-			conn.cancel();
-			mConnectedList.remove(conn);
+		if (mReplaySource != null) {
+			mReplaySource.cancel();
+			mReplaySource = null;
 		}
 
+		// lost connections aren't reconnected anymore
+		mReconnect.shutdown();
+
 		if (mAcceptThread != null) {
 			mAcceptThread.cancel();
 			mAcceptThread = null;
 		}
+		if (mTcpTransport != null) {
+			mTcpTransport.cancel();
+			mTcpTransport = null;
+		}
 		setState(STATE_NONE);
 
-		mNMEATask.cancel();
+		String stats = mServer.getEmissionStats();
+		if (stats != null)
+			Log.d(TAG, stats);
+		mServer.stop();
+		startTrackRecorder(false);
+
+		mWarmStart.close();
+		Log.i(TAG, "metrics:\n" + mMetrics.toText());
 
 		// Cancel the notification
 		mNM.cancel(NOTIFICATION_ID);
@@ -689,11 +964,52 @@ public class BlueMouseService extends Service {
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		int channel = -1;
 		mUpdate_interval = 2000;
+		String dialect = null;
+		mOverflowPolicy = OutboundQueue.OVERFLOW_DROP_OLDEST;
+		int ggaOffset = NMEAServer.DEFAULT_GGA_OFFSET;
+		int tcpPort = 0;
+		String passThrough = null;
+		String replayFile = null;
+		float replaySpeed = 1;
+		boolean recordTrack = false;
+		int emissionMode = NMEAServer.EMISSION_TIMER;
+		int minSpacing = NMEAServer.DEFAULT_MIN_SPACING;
+		int staleAfter = 0;
+		int stalePolicy = NMEAServer.STALE_INVALID;
+		mCoalesceWindow = 0;
+		String deadReckoning = null;
+		int predictionHorizon = DeadReckoning.DEFAULT_HORIZON;
 		if( intent != null ) {
 			channel = intent.getIntExtra(BlueMouseService.EXTRA_CHANNEL, -1);
 			mUpdate_interval = intent.getIntExtra(BlueMouseService.EXTRA_UPDATE_INTERVAL, 2000);
+			dialect = intent.getStringExtra(BlueMouseService.EXTRA_DIALECT);
+			mOverflowPolicy = OutboundQueue.parsePolicy(intent.getStringExtra(BlueMouseService.EXTRA_OVERFLOW_POLICY));
+			ggaOffset = intent.getIntExtra(BlueMouseService.EXTRA_GGA_OFFSET, NMEAServer.DEFAULT_GGA_OFFSET);
+			tcpPort = intent.getIntExtra(BlueMouseService.EXTRA_TCP_PORT, 0);
+			passThrough = intent.getStringExtra(BlueMouseService.EXTRA_PASS_THROUGH);
+			replayFile = intent.getStringExtra(BlueMouseService.EXTRA_REPLAY_FILE);
+			replaySpeed = intent.getFloatExtra(BlueMouseService.EXTRA_REPLAY_SPEED, 1);
+			recordTrack = intent.getBooleanExtra(BlueMouseService.EXTRA_RECORD_TRACK, false);
+			if ("event".equals(intent.getStringExtra(BlueMouseService.EXTRA_EMISSION_MODE)))
+				emissionMode = NMEAServer.EMISSION_EVENT;
+			minSpacing = intent.getIntExtra(BlueMouseService.EXTRA_MIN_SPACING, NMEAServer.DEFAULT_MIN_SPACING);
+			staleAfter = intent.getIntExtra(BlueMouseService.EXTRA_STALE_AFTER, 0);
+			if ("suppress".equals(intent.getStringExtra(BlueMouseService.EXTRA_STALE_POLICY)))
+				stalePolicy = NMEAServer.STALE_SUPPRESS;
+			mCoalesceWindow = intent.getIntExtra(BlueMouseService.EXTRA_COALESCE_WINDOW, 0);
+			deadReckoning = intent.getStringExtra(BlueMouseService.EXTRA_DEAD_RECKONING);
+			predictionHorizon = intent.getIntExtra(BlueMouseService.EXTRA_PREDICTION_HORIZON, DeadReckoning.DEFAULT_HORIZON);
 		}
-		Log.d(TAG, "starting Service with channel: " + channel + " and update interval: " + mUpdate_interval);
+		SentenceDialect sentenceDialect = SentenceDialects.get(dialect);
+		mServer.setDialect(sentenceDialect);
+		mServer.setInterval(mUpdate_interval, ggaOffset);
+		mServer.setEmissionMode(emissionMode, minSpacing);
+		mServer.setStalePolicy(staleAfter, stalePolicy);
+		int model = DeadReckoning.parseModel(deadReckoning);
+		mServer.setDeadReckoning(model < 0 ? null : new DeadReckoning(model, predictionHorizon));
+		mNMEAParser.setListener(mServer.setPassThrough(PassThrough.parseTypes(passThrough)));
+		Log.d(TAG, "starting Service with channel: " + channel + ", update interval: " + mUpdate_interval
+				+ " and dialect: " + sentenceDialect.getName());
 
 		if (mAcceptThread != null && mAcceptThread.getChannel() != channel) {
 			mAcceptThread.cancel();
@@ -707,26 +1023,186 @@ public class BlueMouseService extends Service {
 			mAcceptThread = new AcceptThread(channel);
 			mAcceptThread.start();
 
-			Log.d(TAG, "request location updates");
-			mLocationManager.requestLocationUpdates(
-					LocationManager.NETWORK_PROVIDER, mUpdate_interval, 0,
-					mLocationUpdateListener);
-			mLocationManager.requestLocationUpdates(
-					LocationManager.GPS_PROVIDER, mUpdate_interval, 0,
-					mLocationUpdateListener);
-			mLocationManager.addNmeaListener(mNMEAListener);
+			if (replayFile != null) {
+				startReplay(new File(replayFile), replaySpeed);
+			} else {
+				Log.d(TAG, "request location updates");
+				mLocationManager.requestLocationUpdates(
+						LocationManager.NETWORK_PROVIDER, mUpdate_interval, 0,
+						mLocationUpdateListener);
+				mLocationManager.requestLocationUpdates(
+						LocationManager.GPS_PROVIDER, mUpdate_interval, 0,
+						mLocationUpdateListener);
+				mLocationManager.addNmeaListener(mNMEAListener);
+			}
 		}
 
-		mNMEATask.cancel();
-		mNMEATask = new NMEATask();
-		if(mTimer != null)
-			mTimer.cancel();
-		mTimer = new Timer();
-		mTimer.schedule(mNMEATask, 0, mUpdate_interval);
+		startTcpTransport(tcpPort);
+		startTrackRecorder(recordTrack);
+		startEmissions();
 
 		return START_STICKY;
 	}
 
+	/**
+	 * Publishes a location update as the current fix, the extras are only
+	 * read here instead of with every sentence.
+	 *
+	 * Only called from the thread of the location source.
+	 */
+	private void publishFix(Location location) {
+		Bundle extras = location.getExtras();
+		int satellites = Fix.SATELLITES_UNKNOWN;
+		if (extras != null)
+			satellites = extras.getInt("satellites", 7);
+		long received = System.nanoTime();
+		if (LocationManager.NETWORK_PROVIDER.equals(location.getProvider())) {
+			mNetworkFixes.increment();
+		} else {
+			mGpsFixes.increment();
+			// network fixes can be older than they arrive
+			mServer.getClock().onFix(location.getTime(), received);
+		}
+		Fix fix = new Fix(mServer.nextSequence(), location.getProvider(), location.getTime(),
+				received,
+				Fix.toNanodegrees(location.getLatitude()),
+				Fix.toNanodegrees(location.getLongitude()),
+				location.hasAltitude(), location.getAltitude(),
+				location.getSpeed(), location.getBearing(),
+				location.getAccuracy(), satellites);
+		mWarmStart.saveFix(fix);
+		mServer.setFix(fix);
+	}
+
+	/**
+	 * Serves the last fix of the previous run until a live fix arrives and
+	 * connects to the recently connected devices, all at once. Only the
+	 * device selected in the preferences is retried, the others are tried
+	 * once.
+	 */
+	private void warmStart() {
+		mWarmStart = new WarmStart(new File(getFilesDir(), WARM_START_FILE));
+		try {
+			mWarmStart.load();
+		} catch (IOException e) {
+			Log.e(TAG, "loading the warm start state failed", e);
+		}
+		Fix fix = mWarmStart.getFix();
+		if (fix != null)
+			mServer.setFix(fix);
+		List<String> devices = mWarmStart.getDevices();
+		Log.i(TAG, "warm start with " + (fix != null ? fix : "no fix") + " and "
+				+ devices.size() + " devices");
+		String selected = PreferenceManager.getDefaultSharedPreferences(this)
+				.getString(Preferences.CONNECT_LIST, null);
+		mSelectedDevice = selected;
+		for (String address : devices) {
+			connect(address, !address.equals(selected));
+		}
+	}
+
+	/**
+	 * Starts or stops recording the emitted fixes, a running recording is
+	 * continued.
+	 */
+	private void startTrackRecorder(boolean record) {
+		TrackRecorder recorder = mTrackRecorder;
+		if (record && recorder == null) {
+			File directory = new File(Environment.getExternalStorageDirectory(), TRACK_DIRECTORY);
+			Log.i(TAG, "Recording track to " + directory);
+			mTrackRecorder = new TrackRecorder(directory, TrackRecorder.DEFAULT_SEGMENT_SIZE);
+		} else if (!record && recorder != null) {
+			mTrackRecorder = null;
+			closeTrackRecorder(recorder);
+		}
+	}
+
+	private void closeTrackRecorder(TrackRecorder recorder) {
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			Log.e(TAG, "closing track failed", e);
+		}
+		Log.i(TAG, "Recorded " + recorder.getFixes() + " fixes in "
+				+ recorder.getSegments() + " segments");
+	}
+
+	/**
+	 * Replays a NMEA log in place of the location providers, looping at its
+	 * end.
+	 *
+	 * @param file
+	 *            the NMEA log
+	 * @param speed
+	 *            1 for real time, 0 for as fast as possible
+	 */
+	private void startReplay(File file, float speed) {
+		Log.i(TAG, "Replaying " + file + " at speed " + speed);
+		mReplaySource = new ReplaySource(file, speed, true, new ReplayListener());
+		mReplaySource.start();
+	}
+
+	/**
+	 * Passes the replayed sentences on like the ones of the GPS chip and
+	 * builds the location from RMC and GGA.
+	 */
+	private class ReplayListener implements ReplaySource.Listener {
+		private final FixBuilder mBuilder = new FixBuilder(LocationManager.GPS_PROVIDER);
+
+		@Override
+		public void onSentence(NMEASentence sentence) {
+			mServer.getPassThrough().onSentence(sentence);
+			if (!mBuilder.update(sentence))
+				return;
+			mGpsFixes.increment();
+			mServer.setFix(mBuilder.build(mServer.nextSequence(), System.nanoTime()));
+		}
+
+		@Override
+		public void onReplayEnd(IOException e) {
+			if (e != null)
+				Log.e(TAG, "Replay failed", e);
+			NMEAParser parser = mReplaySource.getParser();
+			Log.i(TAG, "Replay ended: " + parser.getSentences() + " sentences, "
+					+ parser.getChecksumErrors() + " checksum errors, "
+					+ parser.getDiscarded() + " discarded");
+		}
+	}
+
+	/**
+	 * (Re)starts the TCP NMEA server, a port of 0 disables it.
+	 */
+	private void startTcpTransport(int port) {
+		if (mTcpTransport != null) {
+			mTcpTransport.cancel();
+			mTcpTransport = null;
+		}
+		if (port <= 0)
+			return;
+		TcpTransport transport = new TcpTransport(port, mServer.getTransportListener(),
+				OutboundQueue.DEFAULT_CAPACITY, mOverflowPolicy, mMetrics);
+		try {
+			transport.start();
+			mTcpTransport = transport;
+			Log.i(TAG, "Serving NMEA on TCP port " + port);
+			if (getState() == STATE_NONE)
+				setState(STATE_LISTEN);
+		} catch (IOException e) {
+			Log.e(TAG, "TCP server on port " + port + " failed", e);
+		}
+	}
+
+	/**
+	 * (Re)starts the emissions of the server with the current settings, see
+	 * {@link NMEAServer#start()}.
+	 */
+	private void startEmissions() {
+		String stats = mServer.getEmissionStats();
+		if (stats != null)
+			Log.d(TAG, stats);
+		mServer.start();
+	}
+
 	/**
 	 * Show a notification while this service is running.
 	 */
@@ -0,0 +1,186 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Sends the sentences of a fix to all clients, one write per client.
+ *
+ * Every client gets the sentences of its {@link Subscription}. The sentences
+ * are taken from the {@link SentenceCache} and joined once per run for every
+ * combination of dialect and sentence types, clients with the same
+ * combination share the frame.
+ *
+ * The chip's own sentences are forwarded only to the clients of an NMEA
+ * dialect, a gpsd JSON or UBX client can't read them. These clients don't get the
+ * synthesised sentences of the forwarded types, the others still do.
+ *
+ * A broadcast is only used by the thread of its emission.
+ */
+public class Broadcast {
+	// different frames of one run, more than the dialects can produce
+	private static final int MAX_FRAMES = 8;
+
+	/**
+	 * Tells the subscription of a client.
+	 */
+	public interface Subscriptions {
+		public Subscription getSubscription(Connection connection);
+	}
+
+	private final int[] mSentences;
+	private final SentenceCache mCache;
+	private final Metrics.Counter mSynthesised;
+	// sentences are joined in this buffer
+	private final NMEAEncoder mEncoder = new NMEAEncoder();
+	// number of the run, for the decimation of the subscriptions
+	private long mTick;
+
+	// frames encoded in the current run
+	private final SentenceDialect[] mFrameDialects = new SentenceDialect[MAX_FRAMES];
+	private final int[] mFrameSentences = new int[MAX_FRAMES];
+	private final Frame[] mFrames = new Frame[MAX_FRAMES];
+	private int mFrameCount;
+
+	/**
+	 * @param sentences
+	 *            sentence types in the order of the frames, e.g.
+	 *            {@link SentenceDialect#RMC}.
+	 * @param cache
+	 *            cache of the encoded sentences.
+	 * @param synthesised
+	 *            counts the encoded frames.
+	 */
+	public Broadcast(int[] sentences, SentenceCache cache,
+			Metrics.Counter synthesised) {
+		mSentences = sentences;
+		mCache = cache;
+		mSynthesised = synthesised;
+	}
+
+	/**
+	 * Sends a fix to the clients that are due in this run.
+	 *
+	 * @param clients
+	 *            the connected clients.
+	 * @param subscriptions
+	 *            subscriptions of the clients.
+	 * @param fix
+	 *            the fix.
+	 * @param status
+	 *            e.g. {@link SentenceDialect#STATUS_VALID}.
+	 * @param sentences
+	 *            bit mask of the sentence types to send, e.g. 1 <<
+	 *            {@link SentenceDialect#RMC}.
+	 * @param forwarded
+	 *            bit mask of the sentence types the clients of an NMEA
+	 *            dialect get from the chip instead, see
+	 *            {@link #forward(Iterable, Subscriptions, PassThrough.Epoch)}.
+	 * @param time
+	 *            current time in milliseconds since the epoch.
+	 * @param started
+	 *            System.nanoTime() when the run started.
+	 * @return true if a frame was sent.
+	 */
+	public boolean send(Iterable<Connection> clients,
+			Subscriptions subscriptions, Fix fix, int status, int sentences,
+			int forwarded, long time, long started) {
+		boolean sent = false;
+		mFrameCount = 0;
+		for (Connection conn : clients) {
+			Subscription subscription = subscriptions.getSubscription(conn);
+			if (!subscription.isDue(mTick))
+				continue;
+			SentenceDialect dialect = subscription.getDialect();
+			int due = subscription.getSentences() & sentences;
+			if (isForwardedTo(dialect))
+				due &= ~forwarded;
+			Frame frame = encode(dialect, due, fix, status, time, started);
+			if (frame != null) {
+				conn.write(frame);
+				sent = true;
+			}
+		}
+		for (int i = 0; i < mFrameCount; i++) {
+			mFrames[i] = null;
+		}
+		mTick++;
+		return sent;
+	}
+
+	/**
+	 * Forwards the chip's sentences of an epoch, every client of an NMEA
+	 * dialect gets the types it subscribed to.
+	 *
+	 * @param clients
+	 *            the connected clients.
+	 * @param subscriptions
+	 *            subscriptions of the clients.
+	 * @param epoch
+	 *            sentences of the epoch.
+	 */
+	public static void forward(Iterable<Connection> clients,
+			Subscriptions subscriptions, PassThrough.Epoch epoch) {
+		for (Connection conn : clients) {
+			Subscription subscription = subscriptions.getSubscription(conn);
+			if (!isForwardedTo(subscription.getDialect()))
+				continue;
+			Frame frame = epoch.select(subscription.getSentences());
+			if (frame != null)
+				conn.write(frame);
+		}
+	}
+
+	/**
+	 * @return true if the clients of the dialect get the chip's sentences.
+	 */
+	private static boolean isForwardedTo(SentenceDialect dialect) {
+		return dialect.isNmea();
+	}
+
+	/**
+	 * @return the frame of the sentences in this run, null if there are
+	 *         none.
+	 */
+	private Frame encode(SentenceDialect dialect, int sentences, Fix fix,
+			int status, long time, long started) {
+		if (sentences == 0)
+			return null;
+		for (int i = 0; i < mFrameCount; i++) {
+			if (mFrameDialects[i] == dialect && mFrameSentences[i] == sentences)
+				return mFrames[i];
+		}
+
+		// a single sentence is sent as cached, several are joined
+		Frame frame = null;
+		int count = 0;
+		mEncoder.reset();
+		for (int sentence : mSentences) {
+			if ((sentences & 1 << sentence) == 0)
+				continue;
+			Frame part = mCache.encode(fix, dialect, sentence, status, time);
+			if (part == null)
+				continue;
+			count += part.getSentences();
+			if (frame == null) {
+				frame = part;
+				continue;
+			}
+			if (mEncoder.getLength() == 0)
+				mEncoder.append(frame.getData(), 0, frame.getLength());
+			mEncoder.append(part.getData(), 0, part.getLength());
+		}
+		if (mEncoder.getLength() > 0)
+			frame = Frame.copyOf(mEncoder, count);
+		if (frame == null)
+			return null;
+		mSynthesised.increment();
+		frame = frame.withStamp(new FixTrace.Stamp(fix.getSequence(), false,
+				fix.getReceived(), started, System.nanoTime()));
+
+		if (mFrameCount < MAX_FRAMES) {
+			mFrameDialects[mFrameCount] = dialect;
+			mFrameSentences[mFrameCount] = sentences;
+			mFrames[mFrameCount] = frame;
+			mFrameCount++;
+		}
+		return frame;
+	}
+}
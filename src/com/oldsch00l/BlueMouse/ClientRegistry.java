@@ -0,0 +1,176 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The connected clients of all transports.
+ *
+ * Every client gets a slot, a removed client frees its slot for the next
+ * one. Adding and removing take a short lock of the registry, iterating
+ * doesn't lock at all: the broadcast of the sentences walks the slots while
+ * clients connect and disconnect, it sees every client that stays connected
+ * and never throws. The name and address of a client are kept with it, the
+ * UI gets them without asking the sockets.
+ */
+public class ClientRegistry implements Iterable<Connection> {
+	private static final int INITIAL_SLOTS = 8;
+
+	private final Map<Connection, Client> mClients = new ConcurrentHashMap<Connection, Client>();
+	// replaced as a whole when growing, guarded by this for writes
+	private volatile AtomicReferenceArray<Client> mSlots = new AtomicReferenceArray<Client>(INITIAL_SLOTS);
+	private int[] mFree = new int[INITIAL_SLOTS];
+	private int mFreeCount;
+	private int mUsed;
+
+	/**
+	 * A connected client.
+	 */
+	private static class Client {
+		final int mSlot;
+		final Connection mConnection;
+		final String mName;
+		final String mAddress;
+
+		Client(int slot, Connection connection, String name, String address) {
+			mSlot = slot;
+			mConnection = connection;
+			mName = name;
+			mAddress = address;
+		}
+	}
+
+	/**
+	 * Adds a client.
+	 *
+	 * @param connection
+	 *            the connection.
+	 * @param name
+	 *            name of the device.
+	 * @param address
+	 *            address of the device.
+	 * @return false if the connection was already added.
+	 */
+	public synchronized boolean add(Connection connection, String name,
+			String address) {
+		if (mClients.containsKey(connection))
+			return false;
+		int slot;
+		if (mFreeCount > 0) {
+			slot = mFree[--mFreeCount];
+		} else {
+			if (mUsed == mSlots.length())
+				grow();
+			slot = mUsed++;
+		}
+		Client client = new Client(slot, connection, name, address);
+		mClients.put(connection, client);
+		mSlots.set(slot, client);
+		return true;
+	}
+
+	/**
+	 * Removes a client.
+	 *
+	 * @return false if the connection was already removed.
+	 */
+	public synchronized boolean remove(Connection connection) {
+		Client client = mClients.remove(connection);
+		if (client == null)
+			return false;
+		mSlots.set(client.mSlot, null);
+		if (mFreeCount == mFree.length) {
+			int[] free = new int[mFree.length * 2];
+			System.arraycopy(mFree, 0, free, 0, mFreeCount);
+			mFree = free;
+		}
+		mFree[mFreeCount++] = client.mSlot;
+		return true;
+	}
+
+	/**
+	 * @return number of connected clients.
+	 */
+	public int size() {
+		return mClients.size();
+	}
+
+	/**
+	 * @return true if the connection is registered.
+	 */
+	public boolean contains(Connection connection) {
+		return mClients.containsKey(connection);
+	}
+
+	/**
+	 * Lists the names and addresses of the clients, in the same order.
+	 */
+	public void getDevices(List<String> names, List<String> addresses) {
+		AtomicReferenceArray<Client> slots = mSlots;
+		for (int i = 0; i < slots.length(); i++) {
+			Client client = slots.get(i);
+			if (client != null) {
+				names.add(client.mName);
+				addresses.add(client.mAddress);
+			}
+		}
+	}
+
+	/**
+	 * @return the connections, without a lock and without failing on
+	 *         concurrent changes.
+	 */
+	@Override
+	public Iterator<Connection> iterator() {
+		return new SlotIterator(mSlots);
+	}
+
+	private void grow() {
+		AtomicReferenceArray<Client> slots = new AtomicReferenceArray<Client>(mSlots.length() * 2);
+		for (int i = 0; i < mSlots.length(); i++) {
+			slots.set(i, mSlots.get(i));
+		}
+		mSlots = slots;
+	}
+
+	private static class SlotIterator implements Iterator<Connection> {
+		private final AtomicReferenceArray<Client> mSlots;
+		private int mIndex;
+		private Client mNext;
+
+		SlotIterator(AtomicReferenceArray<Client> slots) {
+			mSlots = slots;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mNext != null;
+		}
+
+		@Override
+		public Connection next() {
+			if (mNext == null)
+				throw new NoSuchElementException();
+			Connection connection = mNext.mConnection;
+			advance();
+			return connection;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			mNext = null;
+			while (mNext == null && mIndex < mSlots.length()) {
+				mNext = mSlots.get(mIndex++);
+			}
+		}
+	}
+}
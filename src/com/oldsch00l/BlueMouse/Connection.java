@@ -0,0 +1,34 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * A connected client of a {@link Transport}.
+ */
+public interface Connection {
+	/**
+	 * @return a human readable name of the client.
+	 */
+	public String getDeviceName();
+
+	/**
+	 * @return the address of the client, e.g. the Bluetooth address.
+	 */
+	public String getDeviceAddress();
+
+	/**
+	 * Queues a frame for the client, never blocks.
+	 *
+	 * @param frame
+	 *            frame to send, it is shared with other connections.
+	 */
+	public void write(Frame frame);
+
+	/**
+	 * @return the progress of the connection, checked by the watchdog.
+	 */
+	public Liveness getLiveness();
+
+	/**
+	 * Closes the connection.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,127 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Extrapolates the position between the location updates.
+ *
+ * The providers deliver a fix every second or less often, emissions may run
+ * faster. From the speed and bearing of the last fix, and optionally the
+ * acceleration between the last two fixes, the position at the emission is
+ * predicted. Predictions stop after the horizon and for fixes that don't
+ * move, the emission then sends the last real fix again. A new real fix
+ * replaces the prediction right away.
+ *
+ * The fixes are added by the thread of the location source and predicted by
+ * the emission thread.
+ */
+public class DeadReckoning {
+	/** Constant speed along the bearing. */
+	public static final int MODEL_LINEAR = 0;
+	/** Speed changing like between the last two fixes. */
+	public static final int MODEL_ACCELERATION = 1;
+
+	public static final int DEFAULT_HORIZON = 3000;
+
+	/** Slower fixes aren't extrapolated, their bearing is mostly noise. */
+	private static final float MIN_SPEED = 0.5f;
+	/** Emissions closer to the fix send the fix itself, in ns. */
+	private static final long MIN_STEP = 50000000L;
+	/** Accelerations beyond this are measurement errors, in m/s^2. */
+	private static final double MAX_ACCELERATION = 5;
+	private static final double EARTH_RADIUS = 6371000;
+
+	private final int mModel;
+	private final long mHorizon;
+
+	private Fix mLast;
+	private Fix mPrevious;
+
+	/**
+	 * @param model
+	 *            e.g. {@link #MODEL_LINEAR}.
+	 * @param horizon
+	 *            longest extrapolation after a fix in ms.
+	 */
+	public DeadReckoning(int model, long horizon) {
+		mModel = model;
+		mHorizon = horizon * 1000000L;
+	}
+
+	/**
+	 * @param name
+	 *            "linear" or "acceleration".
+	 * @return the model, -1 if dead reckoning is off.
+	 */
+	public static int parseModel(String name) {
+		if ("linear".equals(name))
+			return MODEL_LINEAR;
+		if ("acceleration".equals(name))
+			return MODEL_ACCELERATION;
+		return -1;
+	}
+
+	/**
+	 * Adds a real fix.
+	 */
+	public synchronized void update(Fix fix) {
+		if (mLast != null && fix.getTime() <= mLast.getTime())
+			mPrevious = null;
+		else
+			mPrevious = mLast;
+		mLast = fix;
+	}
+
+	/**
+	 * @param now
+	 *            current System.nanoTime().
+	 * @param utc
+	 *            UTC time of the emission in ms since the epoch, the time of
+	 *            the predicted fix.
+	 * @return the predicted fix, null if the last real fix should be sent.
+	 */
+	public synchronized Fix predict(long now, long utc) {
+		Fix last = mLast;
+		if (last == null || last.getSpeed() < MIN_SPEED)
+			return null;
+		long step = now - last.getReceived();
+		if (step < MIN_STEP || step > mHorizon)
+			return null;
+		double dt = step / 1e9;
+
+		double speed = last.getSpeed();
+		double distance = speed * dt;
+		if (mModel == MODEL_ACCELERATION && mPrevious != null) {
+			double a = (speed - mPrevious.getSpeed())
+					/ ((last.getTime() - mPrevious.getTime()) / 1000.0);
+			a = Math.max(-MAX_ACCELERATION, Math.min(MAX_ACCELERATION, a));
+			if (speed + a * dt < 0) {
+				// stopped within the step
+				distance = speed * speed / (-2 * a);
+				speed = 0;
+			} else {
+				distance += a * dt * dt / 2;
+				speed += a * dt;
+			}
+		}
+
+		double bearing = Math.toRadians(last.getBearing());
+		double latitude = Math.toRadians(last.getLatitude());
+		double north = distance * Math.cos(bearing);
+		double east = distance * Math.sin(bearing);
+		long lat = last.getLatitudeNanos()
+				+ Fix.toNanodegrees(Math.toDegrees(north / EARTH_RADIUS));
+		long lon = last.getLongitudeNanos()
+				+ Fix.toNanodegrees(Math.toDegrees(east
+						/ (EARTH_RADIUS * Math.max(Math.cos(latitude), 0.01))));
+		lat = Math.max(-90 * Fix.NANODEGREES, Math.min(90 * Fix.NANODEGREES, lat));
+		if (lon >= 180 * Fix.NANODEGREES)
+			lon -= 360 * Fix.NANODEGREES;
+		else if (lon < -180 * Fix.NANODEGREES)
+			lon += 360 * Fix.NANODEGREES;
+
+		// stamped like the emission, the age stays the one of the real fix
+		return new Fix(last.getSequence(), last.getProvider(), utc,
+				last.getReceived(), lat, lon,
+				last.hasAltitude(), last.getAltitude(), (float) speed,
+				last.getBearing(), last.getAccuracy(), last.getSatellites());
+	}
+}
@@ -0,0 +1,301 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs periodic emissions on a single thread against the monotonic clock.
+ *
+ * Every emission has a period and a phase offset within the period, its
+ * deadlines are origin + phase + k * period. Deadlines are computed from the
+ * origin and not from the previous run, so the schedule doesn't drift. A run
+ * that starts later than the allowed lateness is skipped and the next
+ * emission waits for the next deadline ahead, missed deadlines never pile up.
+ *
+ * With a {@link UtcClock} the origin is a whole multiple of the period in UTC
+ * instead of the start of the scheduler, e.g. a 200ms emission runs at .000,
+ * .200 and so on of every second. The origin follows the corrections of the
+ * clock, a run is never repeated for a deadline moved back.
+ *
+ * Besides the periodic emissions there are triggered ones, run as soon as an
+ * event fires them but not closer together than their minimum spacing.
+ *
+ * The emissions must not block, they share one thread.
+ */
+public class EmissionScheduler {
+	/** Fraction of the period a run may be late before it is skipped. */
+	private static final int MAX_LATENESS_DIVISOR = 2;
+
+	private final ScheduledExecutorService mExecutor;
+	private final long mOrigin;
+	private final UtcClock mClock;
+	private final AtomicLong mRuns = new AtomicLong();
+	private final AtomicLong mSkipped = new AtomicLong();
+	private final AtomicLong mCoalesced = new AtomicLong();
+	private final AtomicLong mMaxJitter = new AtomicLong();
+	private final Metrics.Histogram mJitter;
+	private final Metrics.Counter mErrors;
+
+	public EmissionScheduler() {
+		this(null, null);
+	}
+
+	/**
+	 * @param metrics
+	 *            gets the delay of every periodic run behind its deadline in
+	 *            microseconds and the failed runs, may be null.
+	 * @param clock
+	 *            aligns the deadlines to UTC, null to start them with the
+	 *            scheduler.
+	 */
+	public EmissionScheduler(Metrics metrics, UtcClock clock) {
+		mJitter = metrics != null ? metrics.histogram("emission.tick_jitter_us") : null;
+		mErrors = metrics != null ? metrics.counter("emission.task_errors") : null;
+		mClock = clock;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "EmissionScheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mOrigin = System.nanoTime();
+	}
+
+	/**
+	 * Starts a periodic emission.
+	 *
+	 * @param task
+	 *            the emission, must not block.
+	 * @param period
+	 *            period in milliseconds.
+	 * @param phase
+	 *            offset within the period in milliseconds.
+	 * @return the emission, to cancel it.
+	 */
+	public Emission schedule(Runnable task, long period, long phase) {
+		Emission emission = new Emission(task,
+				TimeUnit.MILLISECONDS.toNanos(period),
+				TimeUnit.MILLISECONDS.toNanos(phase % period));
+		emission.arm(System.nanoTime());
+		return emission;
+	}
+
+	/**
+	 * Creates an emission that runs when it is fired.
+	 *
+	 * @param task
+	 *            the emission, must not block.
+	 * @param minSpacing
+	 *            minimal time between two runs in milliseconds.
+	 * @return the emission, to fire and cancel it.
+	 */
+	public Trigger trigger(Runnable task, long minSpacing) {
+		return new Trigger(task, TimeUnit.MILLISECONDS.toNanos(minSpacing));
+	}
+
+	/**
+	 * Stops all emissions, the scheduler can't be used afterwards.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return number of runs.
+	 */
+	public long getRuns() {
+		return mRuns.get();
+	}
+
+	/**
+	 * @return number of runs skipped because they were too late.
+	 */
+	public long getSkipped() {
+		return mSkipped.get();
+	}
+
+	/**
+	 * @return number of fired triggers merged into a pending run.
+	 */
+	public long getCoalesced() {
+		return mCoalesced.get();
+	}
+
+	/**
+	 * @return largest delay of a run behind its deadline in nanoseconds.
+	 */
+	public long getMaxJitter() {
+		return mMaxJitter.get();
+	}
+
+	/**
+	 * A periodic emission of the scheduler.
+	 */
+	public class Emission implements Runnable {
+		private final Runnable mTask;
+		private final long mPeriod;
+		private final long mPhase;
+		private final long mMaxLateness;
+		private long mDeadline;
+		private boolean mArmed;
+		private volatile ScheduledFuture<?> mFuture;
+		private volatile boolean mCancelled;
+
+		private Emission(Runnable task, long period, long phase) {
+			mTask = task;
+			mPeriod = period;
+			mPhase = phase;
+			mMaxLateness = period / MAX_LATENESS_DIVISOR;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled)
+				return;
+			long now = System.nanoTime();
+			long lateness = now - mDeadline;
+			if (lateness > mMaxLateness) {
+				mSkipped.incrementAndGet();
+			} else {
+				recordJitter(lateness);
+				mRuns.incrementAndGet();
+				try {
+					mTask.run();
+				} catch (RuntimeException e) {
+					// keep the schedule alive, a ScheduledExecutorService
+					// would silently drop the emission
+					onError();
+				}
+			}
+			arm(System.nanoTime());
+		}
+
+		/**
+		 * Stops the emission, a running emission is finished.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			ScheduledFuture<?> future = mFuture;
+			if (future != null)
+				future.cancel(false);
+		}
+
+		/**
+		 * Schedules the run for the first deadline ahead that wasn't run yet.
+		 */
+		private void arm(long now) {
+			if (mCancelled)
+				return;
+			long origin = mClock != null ? mClock.align(mPeriod) : mOrigin;
+			long elapsed = now - origin - mPhase;
+			long k = elapsed <= 0 ? 0 : elapsed / mPeriod;
+			long deadline = origin + mPhase + k * mPeriod;
+			// the first run may start right away if its deadline just passed
+			if (mArmed ? deadline <= mDeadline || deadline < now
+					: now - deadline > mMaxLateness)
+				deadline += mPeriod;
+			mDeadline = deadline;
+			mArmed = true;
+			try {
+				mFuture = mExecutor.schedule(this, mDeadline - now,
+						TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// scheduler was shut down
+			}
+		}
+	}
+
+	/**
+	 * An emission run when it is fired.
+	 *
+	 * Firing it again while a run is pending doesn't add a run, the pending
+	 * run sees the latest state. A run is delayed until the minimum spacing
+	 * since the last run has passed, so bursts are merged into one run.
+	 */
+	public class Trigger implements Runnable {
+		private final Runnable mTask;
+		private final long mMinSpacing;
+		private final AtomicBoolean mPending = new AtomicBoolean();
+		private volatile long mLastRun;
+		private volatile boolean mHasRun;
+		private volatile boolean mCancelled;
+
+		private Trigger(Runnable task, long minSpacing) {
+			mTask = task;
+			mMinSpacing = minSpacing;
+		}
+
+		/**
+		 * Requests a run, may be called from any thread.
+		 */
+		public void fire() {
+			if (mCancelled)
+				return;
+			if (!mPending.compareAndSet(false, true)) {
+				mCoalesced.incrementAndGet();
+				return;
+			}
+			long delay = 0;
+			if (mHasRun)
+				delay = Math.max(0, mLastRun + mMinSpacing - System.nanoTime());
+			try {
+				mExecutor.schedule(this, delay, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// scheduler was shut down
+			}
+		}
+
+		@Override
+		public void run() {
+			// a fire during the run requests the next one
+			mPending.set(false);
+			if (mCancelled)
+				return;
+			mLastRun = System.nanoTime();
+			mHasRun = true;
+			mRuns.incrementAndGet();
+			try {
+				mTask.run();
+			} catch (RuntimeException e) {
+				onError();
+			}
+		}
+
+		/**
+		 * Stops the emission, a running emission is finished.
+		 */
+		public void cancel() {
+			mCancelled = true;
+		}
+	}
+
+	/**
+	 * @return number of runs that threw an exception.
+	 */
+	public long getErrors() {
+		return mErrors != null ? mErrors.get() : 0;
+	}
+
+	private void onError() {
+		if (mErrors != null)
+			mErrors.increment();
+	}
+
+	private void recordJitter(long lateness) {
+		if (mJitter != null)
+			mJitter.record(lateness / 1000);
+		long max;
+		while (lateness > (max = mMaxJitter.get())) {
+			if (mMaxJitter.compareAndSet(max, lateness))
+				break;
+		}
+	}
+}
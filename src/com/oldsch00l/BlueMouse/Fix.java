@@ -0,0 +1,199 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Immutable snapshot of a location fix.
+ *
+ * A fix is created once per location update and published through a volatile
+ * reference, the emitting threads read the reference once per sentence and
+ * always see a consistent set of values without locking or copying. Latitude
+ * and longitude are kept as fixed-point nanodegrees, so positions are
+ * formatted with integer arithmetic.
+ */
+public class Fix {
+	/** Number of nanodegrees in a degree. */
+	public static final long NANODEGREES = 1000000000L;
+
+	/** The source didn't tell the number of satellites. */
+	public static final int SATELLITES_UNKNOWN = -1;
+
+	/** Provider of a fix remembered from the previous run. */
+	public static final String PROVIDER_CACHED = "cached";
+
+	private final long mSequence;
+	private final String mProvider;
+	private final long mTime;
+	private final long mReceived;
+	private final long mLatitude;
+	private final long mLongitude;
+	private final boolean mHasAltitude;
+	private final double mAltitude;
+	private final float mSpeed;
+	private final float mBearing;
+	private final float mAccuracy;
+	private final int mSatellites;
+
+	/**
+	 * @param sequence
+	 *            number of the fix, increasing with every update.
+	 * @param provider
+	 *            name of the location provider, e.g. "gps".
+	 * @param time
+	 *            time of the fix in ms since the epoch.
+	 * @param received
+	 *            System.nanoTime() when the fix arrived.
+	 * @param latitude
+	 *            latitude in nanodegrees.
+	 * @param longitude
+	 *            longitude in nanodegrees.
+	 * @param hasAltitude
+	 *            false if the provider has no altitude.
+	 * @param altitude
+	 *            altitude in meters, 0 if unknown.
+	 * @param speed
+	 *            speed in m/s.
+	 * @param bearing
+	 *            bearing in degrees.
+	 * @param accuracy
+	 *            accuracy in meters.
+	 * @param satellites
+	 *            number of used satellites or {@link #SATELLITES_UNKNOWN}.
+	 */
+	public Fix(long sequence, String provider, long time, long received,
+			long latitude, long longitude, boolean hasAltitude,
+			double altitude, float speed, float bearing, float accuracy,
+			int satellites) {
+		mSequence = sequence;
+		mProvider = provider;
+		mTime = time;
+		mReceived = received;
+		mLatitude = latitude;
+		mLongitude = longitude;
+		mHasAltitude = hasAltitude;
+		mAltitude = altitude;
+		mSpeed = speed;
+		mBearing = bearing;
+		mAccuracy = accuracy;
+		mSatellites = satellites;
+	}
+
+	/**
+	 * @param degrees
+	 *            latitude or longitude in degrees.
+	 * @return the nearest value in nanodegrees.
+	 */
+	public static long toNanodegrees(double degrees) {
+		return Math.round(degrees * NANODEGREES);
+	}
+
+	public long getSequence() {
+		return mSequence;
+	}
+
+	public String getProvider() {
+		return mProvider;
+	}
+
+	/**
+	 * @return true if the fix was remembered from the previous run, see
+	 *         {@link #PROVIDER_CACHED}.
+	 */
+	public boolean isCached() {
+		return PROVIDER_CACHED.equals(mProvider);
+	}
+
+	/**
+	 * @return time of the fix in ms since the epoch.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return System.nanoTime() when the fix arrived.
+	 */
+	public long getReceived() {
+		return mReceived;
+	}
+
+	/**
+	 * @param now
+	 *            current System.nanoTime().
+	 * @return time since the fix arrived in ms.
+	 */
+	public long getAge(long now) {
+		return (now - mReceived) / 1000000L;
+	}
+
+	/**
+	 * @return latitude in nanodegrees.
+	 */
+	public long getLatitudeNanos() {
+		return mLatitude;
+	}
+
+	/**
+	 * @return longitude in nanodegrees.
+	 */
+	public long getLongitudeNanos() {
+		return mLongitude;
+	}
+
+	/**
+	 * @return latitude in degrees.
+	 */
+	public double getLatitude() {
+		return mLatitude / (double) NANODEGREES;
+	}
+
+	/**
+	 * @return longitude in degrees.
+	 */
+	public double getLongitude() {
+		return mLongitude / (double) NANODEGREES;
+	}
+
+	public boolean hasAltitude() {
+		return mHasAltitude;
+	}
+
+	/**
+	 * @return altitude in meters, 0 if unknown.
+	 */
+	public double getAltitude() {
+		return mAltitude;
+	}
+
+	/**
+	 * @return speed in m/s.
+	 */
+	public float getSpeed() {
+		return mSpeed;
+	}
+
+	/**
+	 * @return bearing in degrees.
+	 */
+	public float getBearing() {
+		return mBearing;
+	}
+
+	/**
+	 * @return accuracy in meters.
+	 */
+	public float getAccuracy() {
+		return mAccuracy;
+	}
+
+	/**
+	 * @return number of used satellites or {@link #SATELLITES_UNKNOWN}.
+	 */
+	public int getSatellites() {
+		return mSatellites;
+	}
+
+	@Override
+	public String toString() {
+		return "Fix #" + mSequence + " " + mProvider + " " + mTime + " "
+				+ getLatitude() + "," + getLongitude();
+	}
+}
@@ -0,0 +1,101 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Builds fixes from the RMC and GGA sentences of a receiver or a log.
+ *
+ * RMC brings the time, position, speed and course, GGA the altitude, HDOP
+ * and satellites. Every sentence updates its fields, the fix combines the
+ * latest of both. A fix is reported once per epoch, when the later of the
+ * two sentences of the same time arrives, and only after a valid RMC. Only
+ * used by the thread reading the sentences.
+ */
+public class FixBuilder {
+	private final String mProvider;
+
+	// fields of the last RMC and GGA
+	private long mTime;
+	private long mLatitude;
+	private long mLongitude;
+	private boolean mHasAltitude;
+	private double mAltitude;
+	private float mSpeed;
+	private float mBearing;
+	private float mAccuracy;
+	private int mSatellites = Fix.SATELLITES_UNKNOWN;
+
+	// time of day of the last GGA, -1 for none
+	private int mGGATime = -1;
+	// a valid RMC waits for the GGA of its epoch
+	private boolean mPending;
+
+	/**
+	 * @param provider
+	 *            provider of the fixes, e.g. "gps".
+	 */
+	public FixBuilder(String provider) {
+		mProvider = provider;
+	}
+
+	/**
+	 * @param sentence
+	 *            a sentence.
+	 * @return true if the sentence completed the fix of an epoch, other
+	 *         types and RMC without a valid position are ignored.
+	 */
+	public boolean update(NMEASentence sentence) {
+		switch (sentence.getType()) {
+		case NMEASentence.TYPE_RMC:
+			if (sentence.getChar(NMEASentence.RMC_STATUS) != 'A')
+				return false;
+			long date = sentence.getDateMillis(NMEASentence.RMC_DATE);
+			int time = sentence.getTimeOfDay(NMEASentence.RMC_TIME);
+			if (date < 0 || time < 0)
+				return false;
+			mTime = date + time;
+			mLatitude = Fix.toNanodegrees(sentence.getDegrees(NMEASentence.RMC_LATITUDE));
+			mLongitude = Fix.toNanodegrees(sentence.getDegrees(NMEASentence.RMC_LONGITUDE));
+			// knots to m/s
+			mSpeed = (float) (sentence.getDouble(NMEASentence.RMC_SPEED, 0) * 1852 / 3600);
+			mBearing = (float) sentence.getDouble(NMEASentence.RMC_COURSE, 0);
+			// a RMC still pending means the GGAs stopped
+			if (mPending)
+				mGGATime = -1;
+			// GGA of this epoch already seen or not sent at all
+			if (mGGATime == time || mGGATime < 0) {
+				mPending = false;
+				return true;
+			}
+			mPending = true;
+			return false;
+		case NMEASentence.TYPE_GGA:
+			mGGATime = sentence.getTimeOfDay(NMEASentence.GGA_TIME);
+			if (!sentence.isEmpty(NMEASentence.GGA_LONGITUDE + 1)) {
+				mHasAltitude = true;
+				mAltitude = sentence.getDouble(NMEASentence.GGA_ALTITUDE, 0);
+				// the dialects write the accuracy as HDOP
+				mAccuracy = (float) sentence.getDouble(NMEASentence.GGA_HDOP, 0);
+				mSatellites = sentence.getInt(NMEASentence.GGA_SATELLITES, 0);
+			}
+			if (!mPending)
+				return false;
+			// the RMC of this epoch came first
+			mPending = false;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param sequence
+	 *            sequence number of the fix.
+	 * @param received
+	 *            System.nanoTime() when the sentence arrived.
+	 * @return the fix of the latest sentences.
+	 */
+	public Fix build(long sequence, long received) {
+		return new Fix(sequence, mProvider, mTime, received, mLatitude,
+				mLongitude, mHasAltitude, mAltitude, mSpeed, mBearing,
+				mAccuracy, mSatellites);
+	}
+}
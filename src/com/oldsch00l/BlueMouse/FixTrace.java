@@ -0,0 +1,159 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Traces the age of the fixes on their way to the clients.
+ *
+ * A traced frame carries a {@link Stamp} with the System.nanoTime() when its
+ * fix arrived, when its emission started and when it was encoded and queued.
+ * When a client finished writing the frame the stages are added to the
+ * histograms of the {@link Metrics} and the record is kept in a ring buffer
+ * of the latest writes:
+ *
+ * <pre>
+ * wait    fix arrived until its emission started
+ * encode  emission started until the frame was queued
+ * queue   queued until the writer took it
+ * write   the write to the client
+ * age     fix arrived until the write returned
+ * </pre>
+ */
+public class FixTrace {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Times of a frame until it was queued.
+	 */
+	public static class Stamp {
+		private final long mSequence;
+		private final boolean mChip;
+		private final long mReceived;
+		private final long mStarted;
+		private final long mEncoded;
+
+		/**
+		 * @param sequence
+		 *            sequence of the fix or number of the chip epoch.
+		 * @param chip
+		 *            true for the chip's own sentences.
+		 * @param received
+		 *            System.nanoTime() when the fix or the first sentence
+		 *            arrived.
+		 * @param started
+		 *            System.nanoTime() when the emission started.
+		 * @param encoded
+		 *            System.nanoTime() when the frame was queued.
+		 */
+		public Stamp(long sequence, boolean chip, long received, long started,
+				long encoded) {
+			mSequence = sequence;
+			mChip = chip;
+			mReceived = received;
+			mStarted = started;
+			mEncoded = encoded;
+		}
+	}
+
+	private final int mCapacity;
+	private final long[] mSequence;
+	private final boolean[] mChip;
+	private final String[] mClient;
+	// stages in microseconds
+	private final long[] mWait;
+	private final long[] mEncode;
+	private final long[] mQueue;
+	private final long[] mWrite;
+	private final long[] mAge;
+	private long mRecords;
+
+	private final Metrics.Histogram mWaitHistogram;
+	private final Metrics.Histogram mEncodeHistogram;
+	private final Metrics.Histogram mQueueHistogram;
+	private final Metrics.Histogram mWriteHistogram;
+	private final Metrics.Histogram mAgeHistogram;
+
+	/**
+	 * @param capacity
+	 *            number of writes kept.
+	 * @param metrics
+	 *            gets the histograms of the stages.
+	 */
+	public FixTrace(int capacity, Metrics metrics) {
+		mCapacity = capacity;
+		mSequence = new long[capacity];
+		mChip = new boolean[capacity];
+		mClient = new String[capacity];
+		mWait = new long[capacity];
+		mEncode = new long[capacity];
+		mQueue = new long[capacity];
+		mWrite = new long[capacity];
+		mAge = new long[capacity];
+		mWaitHistogram = metrics.histogram("trace.wait_us");
+		mEncodeHistogram = metrics.histogram("trace.encode_us");
+		mQueueHistogram = metrics.histogram("trace.queue_us");
+		mWriteHistogram = metrics.histogram("trace.write_us");
+		mAgeHistogram = metrics.histogram("trace.age_at_send_us");
+	}
+
+	/**
+	 * A client wrote a traced frame.
+	 *
+	 * @param stamp
+	 *            stamp of the frame.
+	 * @param client
+	 *            name of the client.
+	 * @param taken
+	 *            System.nanoTime() when the writer took the frame.
+	 * @param written
+	 *            System.nanoTime() when the write returned.
+	 */
+	public void record(Stamp stamp, String client, long taken, long written) {
+		long wait = (stamp.mStarted - stamp.mReceived) / 1000;
+		long encode = (stamp.mEncoded - stamp.mStarted) / 1000;
+		long queue = (taken - stamp.mEncoded) / 1000;
+		long write = (written - taken) / 1000;
+		long age = (written - stamp.mReceived) / 1000;
+		mWaitHistogram.record(wait);
+		mEncodeHistogram.record(encode);
+		mQueueHistogram.record(queue);
+		mWriteHistogram.record(write);
+		mAgeHistogram.record(age);
+
+		synchronized (this) {
+			int i = (int) (mRecords++ % mCapacity);
+			mSequence[i] = stamp.mSequence;
+			mChip[i] = stamp.mChip;
+			mClient[i] = client;
+			mWait[i] = wait;
+			mEncode[i] = encode;
+			mQueue[i] = queue;
+			mWrite[i] = write;
+			mAge[i] = age;
+		}
+	}
+
+	/**
+	 * @return the kept writes, oldest first, one per line with the stages in
+	 *         microseconds.
+	 */
+	public synchronized String toText() {
+		StringBuilder sb = new StringBuilder(
+				"seq source client wait encode queue write age\n");
+		long first = Math.max(0, mRecords - mCapacity);
+		for (long r = first; r < mRecords; r++) {
+			int i = (int) (r % mCapacity);
+			sb.append(mSequence[i]).append(mChip[i] ? " chip " : " fix ")
+					.append(mClient[i]).append(' ').append(mWait[i])
+					.append(' ').append(mEncode[i]).append(' ')
+					.append(mQueue[i]).append(' ').append(mWrite[i])
+					.append(' ').append(mAge[i]).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return number of traced writes so far.
+	 */
+	public synchronized long getRecords() {
+		return mRecords;
+	}
+}
@@ -0,0 +1,106 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Encoded bytes that are sent to the clients.
+ *
+ * A frame is never modified after it was created, so one frame is shared by
+ * reference between the outbound queues of all connections.
+ *
+ * A frame knows the number of sentences in it, counted when they are encoded,
+ * as the binary and JSON dialects have no line ends to count. A frame may
+ * carry a {@link FixTrace.Stamp} to trace the age of its fix.
+ */
+public class Frame {
+	private final byte[] mData;
+	private final int mLength;
+	private final int mSentences;
+	private final FixTrace.Stamp mStamp;
+
+	/**
+	 * @param data
+	 *            bytes of the frame without sentences, e.g. a command, the
+	 *            array must not be changed afterwards.
+	 */
+	public Frame(byte[] data) {
+		this(data, data.length, 0, null);
+	}
+
+	/**
+	 * @param data
+	 *            bytes of the frame, the array must not be changed afterwards.
+	 * @param length
+	 *            number of valid bytes in data.
+	 * @param sentences
+	 *            number of sentences, reports or messages in the frame.
+	 * @param stamp
+	 *            trace of the frame, may be null.
+	 */
+	public Frame(byte[] data, int length, int sentences, FixTrace.Stamp stamp) {
+		mData = data;
+		mLength = length;
+		mSentences = sentences;
+		mStamp = stamp;
+	}
+
+	/**
+	 * @param stamp
+	 *            trace of the frame.
+	 * @return a frame sharing the bytes of this one with the stamp.
+	 */
+	public Frame withStamp(FixTrace.Stamp stamp) {
+		return new Frame(mData, mLength, mSentences, stamp);
+	}
+
+	/**
+	 * Creates a frame from a part of a buffer that may be reused.
+	 *
+	 * @param buffer
+	 *            buffer holding the bytes.
+	 * @param offset
+	 *            start of the bytes in the buffer.
+	 * @param length
+	 *            number of bytes.
+	 * @param sentences
+	 *            number of sentences in the bytes.
+	 * @return a frame holding a copy of the bytes.
+	 */
+	public static Frame copyOf(byte[] buffer, int offset, int length,
+			int sentences) {
+		byte[] data = new byte[length];
+		System.arraycopy(buffer, offset, data, 0, length);
+		return new Frame(data, length, sentences, null);
+	}
+
+	/**
+	 * @param encoder
+	 *            encoder holding the sentences.
+	 * @param sentences
+	 *            number of sentences in the encoder.
+	 * @return a frame holding a copy of the encoded bytes.
+	 */
+	public static Frame copyOf(NMEAEncoder encoder, int sentences) {
+		return copyOf(encoder.getBuffer(), 0, encoder.getLength(), sentences);
+	}
+
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return number of sentences, reports or messages in the frame.
+	 */
+	public int getSentences() {
+		return mSentences;
+	}
+
+	/**
+	 * @return trace of the frame, null if it isn't traced.
+	 */
+	public FixTrace.Stamp getStamp() {
+		return mStamp;
+	}
+}
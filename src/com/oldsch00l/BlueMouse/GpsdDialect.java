@@ -0,0 +1,141 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * The JSON reports of gpsd instead of NMEA: TPV for {@link #RMC} and SKY for
+ * {@link #GGA}, one object per line.
+ *
+ * The reports are written straight into the {@link NMEAEncoder} like the
+ * sentences, so they are cached, joined and queued the same way. Only the
+ * counts of the satellites are known, SKY has no satellite list.
+ *
+ * @see GpsdProtocol
+ */
+public class GpsdDialect implements SentenceDialect {
+	public static final GpsdDialect DIALECT = new GpsdDialect();
+
+	/** Name of the dialect and of the device in the reports. */
+	public static final String NAME = "gpsd";
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isCacheable() {
+		// the reports carry the time of the fix
+		return true;
+	}
+
+	@Override
+	public boolean isNmea() {
+		// JSON reports
+		return false;
+	}
+
+	@Override
+	public boolean encode(int sentence, Fix fix, int status, long now,
+			NMEAEncoder encoder) {
+		switch (sentence) {
+		case RMC:
+			encodeTPV(fix, status, encoder);
+			break;
+		case GGA:
+			encodeSKY(fix, status, encoder);
+			break;
+		default:
+			return false;
+		}
+		encoder.appendLineEnd();
+		return true;
+	}
+
+	/**
+	 * Writes a TPV object without line end, mode 1 without a fix or for
+	 * invalid ones.
+	 */
+	public static void encodeTPV(Fix fix, int status, NMEAEncoder encoder) {
+		begin(encoder, "TPV");
+		name(encoder, "device").append('"').append(NAME).append('"');
+		if (fix == null || status == STATUS_INVALID) {
+			name(encoder, "mode").append('1');
+			if (fix != null) {
+				name(encoder, "time");
+				appendTime(encoder, fix.getTime());
+			}
+			encoder.append('}');
+			return;
+		}
+		name(encoder, "mode").append(fix.hasAltitude() ? '3' : '2');
+		if (status == STATUS_ESTIMATED) {
+			// dead reckoning
+			name(encoder, "status").append('6');
+		}
+		name(encoder, "time");
+		appendTime(encoder, fix.getTime());
+		name(encoder, "lat").appendDecimal(fix.getLatitude(), 1, 1, 9);
+		name(encoder, "lon").appendDecimal(fix.getLongitude(), 1, 1, 9);
+		if (fix.hasAltitude())
+			name(encoder, "alt").appendDecimal(fix.getAltitude(), 1, 1, 3);
+		name(encoder, "track").appendDecimal(fix.getBearing(), 1, 1, 4);
+		name(encoder, "speed").appendDecimal(fix.getSpeed(), 1, 1, 3);
+		if (fix.getAccuracy() > 0)
+			name(encoder, "eph").appendDecimal(fix.getAccuracy(), 1, 1, 3);
+		encoder.append('}');
+	}
+
+	/**
+	 * Writes a SKY object without line end.
+	 */
+	public static void encodeSKY(Fix fix, int status, NMEAEncoder encoder) {
+		begin(encoder, "SKY");
+		name(encoder, "device").append('"').append(NAME).append('"');
+		if (fix != null) {
+			name(encoder, "time");
+			appendTime(encoder, fix.getTime());
+			if (status != STATUS_INVALID && fix.getAccuracy() > 0)
+				// the dialects write the accuracy as HDOP
+				name(encoder, "hdop").appendDecimal(fix.getAccuracy(), 1, 1, 2);
+			if (fix.getSatellites() != Fix.SATELLITES_UNKNOWN) {
+				int used = status == STATUS_INVALID ? 0 : fix.getSatellites();
+				name(encoder, "nSat").appendInt(fix.getSatellites(), 1);
+				name(encoder, "uSat").appendInt(used, 1);
+			}
+		}
+		name(encoder, "satellites").append("[]}");
+	}
+
+	/**
+	 * Starts an object with its class.
+	 */
+	static void begin(NMEAEncoder encoder, String cls) {
+		encoder.append("{\"class\":\"").append(cls).append('"');
+	}
+
+	/**
+	 * Writes the name of a further member.
+	 */
+	static NMEAEncoder name(NMEAEncoder encoder, String name) {
+		return encoder.append(",\"").append(name).append("\":");
+	}
+
+	/**
+	 * Writes a time as quoted ISO 8601 UTC, e.g. "2011-07-27T12:34:56.000Z".
+	 */
+	static void appendTime(NMEAEncoder encoder, long millis) {
+		int date = NMEAEncoder.toCivilDate(millis);
+		long ms = millis % MILLIS_PER_DAY;
+		if (ms < 0)
+			ms += MILLIS_PER_DAY;
+		int seconds = (int) (ms / 1000);
+		encoder.append('"').appendInt(date / 10000, 4).append('-')
+				.appendInt(date / 100 % 100, 2).append('-')
+				.appendInt(date % 100, 2).append('T')
+				.appendInt(seconds / 3600, 2).append(':')
+				.appendInt(seconds / 60 % 60, 2).append(':')
+				.appendInt(seconds % 60, 2).append('.')
+				.appendInt(ms % 1000, 3).append("Z\"");
+	}
+}
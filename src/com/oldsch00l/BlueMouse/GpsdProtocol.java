@@ -0,0 +1,136 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Answers the commands of gpsd clients, e.g. cgps, gpspipe or chrony.
+ *
+ * A client sends "?WATCH={"enable":true,"json":true};" and gets TPV and SKY
+ * reports of the {@link GpsdDialect} from then on, with "nmea":true it gets
+ * NMEA sentences instead. VERSION, DEVICES and POLL are answered as well.
+ * The watch is kept as the {@link Subscription} of the connection.
+ *
+ * The members of the commands are found by name, not by a full JSON parser.
+ */
+public class GpsdProtocol {
+	/** Version of the gpsd protocol spoken. */
+	public static final int PROTO_MAJOR = 3;
+	public static final int PROTO_MINOR = 11;
+
+	/**
+	 * Handles a command and writes the answer to the connection.
+	 *
+	 * @param command
+	 *            the command from '?' without ';'.
+	 * @param connection
+	 *            the client.
+	 * @param current
+	 *            the subscription of the client.
+	 * @param nmea
+	 *            dialect for clients watching NMEA.
+	 * @param fix
+	 *            current fix for POLL, may be null.
+	 * @return the new subscription, null if it didn't change.
+	 */
+	public static Subscription onCommand(String command, Connection connection,
+			Subscription current, SentenceDialect nmea, Fix fix) {
+		int equals = command.indexOf('=');
+		String name = equals < 0 ? command : command.substring(0, equals);
+		String body = equals < 0 ? null : command.substring(equals + 1);
+
+		NMEAEncoder encoder = new NMEAEncoder();
+		// number of objects in the answer
+		int objects = 1;
+		Subscription subscription = null;
+		if ("?VERSION".equals(name)) {
+			appendVersion(encoder);
+		} else if ("?DEVICES".equals(name)) {
+			appendDevices(encoder);
+		} else if ("?POLL".equals(name)) {
+			GpsdDialect.begin(encoder, "POLL");
+			if (fix != null) {
+				GpsdDialect.name(encoder, "time");
+				GpsdDialect.appendTime(encoder, fix.getTime());
+			}
+			GpsdDialect.name(encoder, "active").append(fix != null ? '1' : '0');
+			GpsdDialect.name(encoder, "tpv").append('[');
+			if (fix != null)
+				GpsdDialect.encodeTPV(fix, SentenceDialect.STATUS_VALID, encoder);
+			encoder.append(']');
+			GpsdDialect.name(encoder, "sky").append('[');
+			if (fix != null)
+				GpsdDialect.encodeSKY(fix, SentenceDialect.STATUS_VALID, encoder);
+			encoder.append("]}").appendLineEnd();
+		} else if ("?WATCH".equals(name)) {
+			boolean watching = current.getSentences() != 0;
+			boolean enable = watching;
+			boolean json = current.getDialect() == GpsdDialect.DIALECT;
+			if (body != null) {
+				enable = getFlag(body, "enable", true);
+				boolean wantsNmea = getFlag(body, "nmea", false);
+				json = getFlag(body, "json", !wantsNmea);
+				if (enable && !json && !wantsNmea)
+					enable = false;
+				subscription = new Subscription(enable ? Subscription.ALL_SENTENCES : 0,
+						current.getDecimation(), json ? GpsdDialect.DIALECT : nmea);
+				// the banner gpsd sends on connect, before the first watch
+				if (enable && current.getDialect() != GpsdDialect.DIALECT) {
+					appendVersion(encoder);
+					objects++;
+				}
+				appendDevices(encoder);
+				objects++;
+			}
+			GpsdDialect.begin(encoder, "WATCH");
+			GpsdDialect.name(encoder, "enable").append(enable ? "true" : "false");
+			GpsdDialect.name(encoder, "json").append(enable && json ? "true" : "false");
+			GpsdDialect.name(encoder, "nmea").append(enable && !json ? "true" : "false");
+			encoder.append('}').appendLineEnd();
+		} else {
+			GpsdDialect.begin(encoder, "ERROR");
+			GpsdDialect.name(encoder, "message").append("\"Unrecognized request '");
+			for (int i = 1; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (Character.isLetterOrDigit(c))
+					encoder.append(c);
+			}
+			encoder.append("'\"}").appendLineEnd();
+		}
+		connection.write(Frame.copyOf(encoder, objects));
+		return subscription;
+	}
+
+	private static void appendVersion(NMEAEncoder encoder) {
+		GpsdDialect.begin(encoder, "VERSION");
+		GpsdDialect.name(encoder, "release").append("\"BlueMouse\"");
+		GpsdDialect.name(encoder, "rev").append("\"BlueMouse\"");
+		GpsdDialect.name(encoder, "proto_major").appendInt(PROTO_MAJOR, 1);
+		GpsdDialect.name(encoder, "proto_minor").appendInt(PROTO_MINOR, 1);
+		encoder.append('}').appendLineEnd();
+	}
+
+	private static void appendDevices(NMEAEncoder encoder) {
+		GpsdDialect.begin(encoder, "DEVICES");
+		GpsdDialect.name(encoder, "devices").append('[');
+		GpsdDialect.begin(encoder, "DEVICE");
+		GpsdDialect.name(encoder, "path").append('"').append(GpsdDialect.NAME).append('"');
+		GpsdDialect.name(encoder, "driver").append("\"BlueMouse\"");
+		encoder.append("}]}").appendLineEnd();
+	}
+
+	/**
+	 * @return the boolean member of a JSON object, the default if it is
+	 *         missing.
+	 */
+	static boolean getFlag(String json, String name, boolean defaultValue) {
+		int i = json.indexOf('"' + name + '"');
+		if (i < 0)
+			return defaultValue;
+		i += name.length() + 2;
+		while (i < json.length() && (json.charAt(i) == ' ' || json.charAt(i) == ':'))
+			i++;
+		if (json.startsWith("true", i))
+			return true;
+		if (json.startsWith("false", i))
+			return false;
+		return defaultValue;
+	}
+}
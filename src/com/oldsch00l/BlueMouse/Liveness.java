@@ -0,0 +1,73 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Tracks whether a connection still makes progress.
+ *
+ * A half-open link, e.g. a camera that went out of range, doesn't fail its
+ * writes for a long time, they just don't return. The writer of a connection
+ * reports the start and end of every write and the reader every inbound
+ * byte, the watchdog of the service evicts connections whose write makes no
+ * progress for longer than the deadline. A slow client that takes a part of
+ * every write is alive.
+ *
+ * All times are System.nanoTime(), the fields are written by the threads of
+ * the connection and read by the watchdog.
+ */
+public class Liveness {
+	private final long mCreated = System.nanoTime();
+	// 0 while no write is in progress, else the start or last progress of it
+	private volatile long mWriteStarted;
+	private volatile long mLastWrite;
+	private volatile long mLastRead;
+
+	/**
+	 * A write started, a write already in progress keeps its start.
+	 */
+	public void onWriteStart(long now) {
+		if (mWriteStarted == 0)
+			mWriteStarted = now;
+	}
+
+	/**
+	 * A write in progress took some bytes, its deadline starts again.
+	 */
+	public void onWriteProgress(long now) {
+		mWriteStarted = now;
+	}
+
+	/**
+	 * A write completed.
+	 */
+	public void onWriteDone(long now) {
+		mLastWrite = now;
+		mWriteStarted = 0;
+	}
+
+	/**
+	 * Bytes arrived from the client.
+	 */
+	public void onRead(long now) {
+		mLastRead = now;
+	}
+
+	/**
+	 * @param now
+	 *            current System.nanoTime().
+	 * @param writeDeadline
+	 *            longest time a write may make no progress in ms.
+	 * @return why the connection is stalled or null if it is alive.
+	 */
+	public String check(long now, long writeDeadline) {
+		long started = mWriteStarted;
+		if (started == 0 || now - started <= writeDeadline * 1000000L)
+			return null;
+		return "write without progress for " + (now - started) / 1000000L + "ms, last write "
+				+ ago(now, mLastWrite) + ", last read " + ago(now, mLastRead);
+	}
+
+	private String ago(long now, long time) {
+		if (time == 0)
+			return "never (connected " + (now - mCreated) / 1000000L + "ms ago)";
+		return (now - time) / 1000000L + "ms ago";
+	}
+}
@@ -0,0 +1,384 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and histograms of the service, e.g. to find out why a
+ * client falls behind.
+ *
+ * Counters are striped over several cells, threads mostly add to their own
+ * cell and a read sums them up. Histograms count values in power of two
+ * buckets. Every connection gets a {@link Client} with its own counters,
+ * which is only written by the thread writing to the connection.
+ *
+ * The metrics are dumped as text or JSON, reads are not atomic across
+ * counters.
+ */
+public class Metrics {
+	private final Map<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+	private final Map<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+	private final Map<Object, Client> mClients = new ConcurrentHashMap<Object, Client>();
+	private final long mStarted = System.currentTimeMillis();
+	private final FixTrace mTrace = new FixTrace(FixTrace.DEFAULT_CAPACITY, this);
+	// System.nanoTime() of the start until the first write, 0 after it
+	private final AtomicLong mStartPending = new AtomicLong();
+	private final Histogram mFirstByte = histogram("startup.first_byte_us");
+
+	/**
+	 * @param name
+	 *            name of the counter.
+	 * @return the counter, created on first use.
+	 */
+	public Counter counter(String name) {
+		Counter counter = mCounters.get(name);
+		if (counter == null) {
+			synchronized (mCounters) {
+				counter = mCounters.get(name);
+				if (counter == null) {
+					counter = new Counter();
+					mCounters.put(name, counter);
+				}
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @param name
+	 *            name of the histogram, should end with the unit.
+	 * @return the histogram, created on first use.
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = mHistograms.get(name);
+		if (histogram == null) {
+			synchronized (mHistograms) {
+				histogram = mHistograms.get(name);
+				if (histogram == null) {
+					histogram = new Histogram();
+					mHistograms.put(name, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Adds the metrics of a connection.
+	 *
+	 * @param key
+	 *            the connection.
+	 * @param name
+	 *            name of the client in the dumps.
+	 * @param queue
+	 *            outbound queue of the connection, for its depth.
+	 * @return the metrics of the connection.
+	 */
+	public Client addClient(Object key, String name, OutboundQueue queue) {
+		Client client = new Client(this, name, queue);
+		mClients.put(key, client);
+		return client;
+	}
+
+	/**
+	 * Removes the metrics of a closed connection.
+	 *
+	 * @param key
+	 *            the connection.
+	 */
+	public void removeClient(Object key) {
+		mClients.remove(key);
+	}
+
+	/**
+	 * Starts measuring the time until the next byte is written to any
+	 * client, e.g. after the service was started.
+	 *
+	 * @param now
+	 *            current System.nanoTime().
+	 */
+	public void onStart(long now) {
+		mStartPending.set(now);
+	}
+
+	/**
+	 * @return the trace of the written fixes.
+	 */
+	public FixTrace getTrace() {
+		return mTrace;
+	}
+
+	/**
+	 * @return all metrics as lines of "name value".
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("uptime_s ").append(getUptime() / 1000).append('\n');
+		for (Map.Entry<String, Counter> e : sorted(mCounters).entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, Histogram> e : sorted(mHistograms).entrySet()) {
+			sb.append(e.getKey()).append(' ');
+			e.getValue().appendSummary(sb);
+			sb.append('\n');
+		}
+		for (Client client : mClients.values()) {
+			sb.append("client ").append(client.mName)
+					.append(" bytes=").append(client.mBytes.get())
+					.append(" frames=").append(client.mFrames.get())
+					.append(" sentences=").append(client.mSentences.get())
+					.append(" errors=").append(client.mErrors.get())
+					.append(" queued=").append(client.mQueue.size())
+					.append(" dropped=").append(client.mQueue.getDropped())
+					.append(" write_us ");
+			client.mWriteLatency.appendSummary(sb);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return all metrics as a JSON object.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"uptime_ms\":").append(getUptime());
+		sb.append(",\"counters\":{");
+		boolean first = true;
+		for (Map.Entry<String, Counter> e : sorted(mCounters).entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			appendString(sb, e.getKey()).append(':').append(e.getValue().get());
+		}
+		sb.append("},\"histograms\":{");
+		first = true;
+		for (Map.Entry<String, Histogram> e : sorted(mHistograms).entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			appendString(sb, e.getKey()).append(':');
+			e.getValue().appendJson(sb);
+		}
+		sb.append("},\"clients\":[");
+		first = true;
+		for (Client client : mClients.values()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("{\"name\":");
+			appendString(sb, client.mName)
+					.append(",\"bytes\":").append(client.mBytes.get())
+					.append(",\"frames\":").append(client.mFrames.get())
+					.append(",\"sentences\":").append(client.mSentences.get())
+					.append(",\"errors\":").append(client.mErrors.get())
+					.append(",\"queued\":").append(client.mQueue.size())
+					.append(",\"dropped\":").append(client.mQueue.getDropped())
+					.append(",\"write_us\":");
+			client.mWriteLatency.appendJson(sb);
+			sb.append('}');
+		}
+		return sb.append("]}").toString();
+	}
+
+	private long getUptime() {
+		return System.currentTimeMillis() - mStarted;
+	}
+
+	private static <T> TreeMap<String, T> sorted(Map<String, T> map) {
+		return new TreeMap<String, T>(map);
+	}
+
+	private static StringBuilder appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < ' ')
+				sb.append(' ');
+			else
+				sb.append(c);
+		}
+		return sb.append('"');
+	}
+
+	/**
+	 * A counter that threads can add to without contending.
+	 */
+	public static class Counter {
+		private static final int STRIPES = 8;
+		// cells are a cache line apart
+		private static final int SPACING = 8;
+
+		private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * SPACING);
+
+		public void increment() {
+			add(1);
+		}
+
+		public void add(long delta) {
+			int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			mCells.addAndGet(stripe * SPACING, delta);
+		}
+
+		/**
+		 * @return the sum of all cells.
+		 */
+		public long get() {
+			long sum = 0;
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				sum += mCells.get(stripe * SPACING);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Counts non-negative values in buckets of powers of two, bucket i holds
+	 * the values from 2^(i-1) to 2^i - 1 and bucket 0 the zeros.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+		private final Counter mSum = new Counter();
+
+		/**
+		 * @param value
+		 *            the value, negative values count as 0.
+		 */
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+			mSum.add(value);
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += mBuckets.get(i);
+			}
+			return count;
+		}
+
+		/**
+		 * @param fraction
+		 *            e.g. 0.99 for the 99th percentile.
+		 * @return upper bound of the bucket holding the percentile, 0 if
+		 *         nothing was recorded.
+		 */
+		public long getPercentile(double fraction) {
+			long[] buckets = snapshot();
+			long count = 0;
+			for (long n : buckets) {
+				count += n;
+			}
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return upperBound(i);
+			}
+			return 0;
+		}
+
+		private long[] snapshot() {
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = mBuckets.get(i);
+			}
+			return buckets;
+		}
+
+		private static long upperBound(int bucket) {
+			return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE
+					: (1L << bucket) - 1;
+		}
+
+		void appendSummary(StringBuilder sb) {
+			long count = getCount();
+			sb.append("count=").append(count);
+			if (count > 0) {
+				sb.append(" mean=").append(mSum.get() / count)
+						.append(" p50<=").append(getPercentile(0.5))
+						.append(" p99<=").append(getPercentile(0.99))
+						.append(" max<=").append(getPercentile(1));
+			}
+		}
+
+		void appendJson(StringBuilder sb) {
+			long[] buckets = snapshot();
+			int last = BUCKETS - 1;
+			while (last > 0 && buckets[last] == 0) {
+				last--;
+			}
+			sb.append("{\"count\":").append(getCount())
+					.append(",\"sum\":").append(mSum.get())
+					.append(",\"buckets\":[");
+			for (int i = 0; i <= last; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(buckets[i]);
+			}
+			sb.append("]}");
+		}
+	}
+
+	/**
+	 * Metrics of one connection.
+	 */
+	public static class Client {
+		private final Metrics mMetrics;
+		private final String mName;
+		private final OutboundQueue mQueue;
+		private final Counter mBytes = new Counter();
+		private final Counter mFrames = new Counter();
+		private final Counter mSentences = new Counter();
+		private final Counter mErrors = new Counter();
+		private final Histogram mWriteLatency = new Histogram();
+
+		private Client(Metrics metrics, String name, OutboundQueue queue) {
+			mMetrics = metrics;
+			mName = name;
+			mQueue = queue;
+		}
+
+		/**
+		 * A frame was written.
+		 *
+		 * @param frame
+		 *            the frame.
+		 * @param taken
+		 *            System.nanoTime() when the frame was taken from the
+		 *            queue.
+		 * @param written
+		 *            System.nanoTime() when the write returned.
+		 */
+		public void onWritten(Frame frame, long taken, long written) {
+			mBytes.add(frame.getLength());
+			mFrames.increment();
+			mSentences.add(frame.getSentences());
+			mWriteLatency.record((written - taken) / 1000);
+			if (frame.getStamp() != null)
+				mMetrics.mTrace.record(frame.getStamp(), mName, taken, written);
+			if (mMetrics.mStartPending.get() != 0) {
+				long started = mMetrics.mStartPending.getAndSet(0);
+				if (started != 0)
+					mMetrics.mFirstByte.record((written - started) / 1000);
+			}
+		}
+
+		/**
+		 * A write failed.
+		 */
+		public void onError() {
+			mErrors.increment();
+		}
+	}
+}
@@ -0,0 +1,456 @@
+package com.oldsch00l.BlueMouse;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Writes NMEA sentences straight into a reusable byte buffer.
+ *
+ * Numbers are written with fixed-point integer arithmetic following the
+ * DecimalFormat rules the formatters used before (HALF_EVEN rounding, minimum
+ * integer digits, optional fraction digits), time and date fields are derived
+ * arithmetically from epoch millis and the XOR checksum is updated while the
+ * sentence is written.
+ *
+ * An encoder is not thread-safe, every thread that formats sentences needs its
+ * own instance.
+ */
+public class NMEAEncoder {
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L,
+			100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+			10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+			100000000000000L, 1000000000000000L, 10000000000000000L,
+			100000000000000000L, 1000000000000000000L };
+
+	/** Largest value that can be scaled to a long without losing digits. */
+	private static final double MAX_FAST_SCALED = 1e15;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private byte[] mBuffer;
+	private int mLength;
+	private int mChecksum;
+
+	public NMEAEncoder() {
+		this(128);
+	}
+
+	/**
+	 * @param capacity
+	 *            initial size of the sentence buffer, it grows if needed.
+	 */
+	public NMEAEncoder(int capacity) {
+		mBuffer = new byte[capacity];
+	}
+
+	/**
+	 * Clears the buffer and the running checksum.
+	 *
+	 * @return this encoder
+	 */
+	public NMEAEncoder reset() {
+		mLength = 0;
+		mChecksum = 0;
+		return this;
+	}
+
+	/**
+	 * Starts a new sentence within the buffer. Content written before is kept,
+	 * so several sentences can be put in one buffer.
+	 *
+	 * @return this encoder
+	 */
+	public NMEAEncoder begin() {
+		mChecksum = 0;
+		return this;
+	}
+
+	/**
+	 * Appends an ASCII char. Every char except '$' and '*' is added to the
+	 * checksum, the same as {@link NMEAHelper#getNMEAChecksum(StringBuilder)}
+	 * does.
+	 *
+	 * @param c
+	 *            char to append.
+	 * @return this encoder
+	 */
+	public NMEAEncoder append(char c) {
+		ensureCapacity(1);
+		put((byte) c);
+		return this;
+	}
+
+	/**
+	 * Appends an ASCII string.
+	 *
+	 * @param s
+	 *            string to append.
+	 * @return this encoder
+	 */
+	public NMEAEncoder append(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			put((byte) s.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends already encoded ASCII bytes.
+	 *
+	 * @param bytes
+	 *            bytes to append.
+	 * @return this encoder
+	 */
+	public NMEAEncoder append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			put(bytes[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a part of a buffer holding ASCII bytes.
+	 *
+	 * @param bytes
+	 *            buffer holding the bytes.
+	 * @param offset
+	 *            start of the bytes.
+	 * @param length
+	 *            number of bytes.
+	 * @return this encoder
+	 */
+	public NMEAEncoder append(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		for (int i = offset; i < offset + length; i++) {
+			put(bytes[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a constant part of a sentence whose checksum is already known.
+	 *
+	 * @param bytes
+	 *            bytes to append.
+	 * @param checksum
+	 *            XOR of the bytes, without '$' and '*'.
+	 * @see SentenceTemplate
+	 */
+	public NMEAEncoder append(byte[] bytes, int checksum) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+		mLength += bytes.length;
+		mChecksum ^= checksum;
+		return this;
+	}
+
+	/**
+	 * Appends an integer, zero padded to the given number of digits.
+	 *
+	 * @param value
+	 *            value to append.
+	 * @param minDigits
+	 *            minimal number of digits.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendInt(long value, int minDigits) {
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		appendDigits(value, minDigits);
+		return this;
+	}
+
+	/**
+	 * Appends a decimal number the same way a DecimalFormat with a pattern
+	 * like "00.0##" would do.
+	 *
+	 * @param value
+	 *            value to append.
+	 * @param minInt
+	 *            minimal number of integer digits, "00.0##" has 2.
+	 * @param minFrac
+	 *            minimal number of fraction digits, "00.0##" has 1.
+	 * @param maxFrac
+	 *            maximal number of fraction digits, "00.0##" has 3.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendDecimal(double value, int minInt, int minFrac,
+			int maxFrac) {
+		if (value != value || Double.isInfinite(value)) {
+			return append("NaN");
+		}
+		if (value < 0 || (value == 0 && 1 / value < 0)) {
+			append('-');
+			value = -value;
+		}
+		appendScaled(roundHalfEven(value, maxFrac), maxFrac, minInt, minFrac);
+		return this;
+	}
+
+	/**
+	 * Appends the absolute value of a latitude or longitude in the NMEA
+	 * format (d)ddmm.mmmm, rounding HALF_EVEN with integer arithmetic.
+	 *
+	 * @param nanodegrees
+	 *            the position in nanodegrees, see {@link Fix}.
+	 * @param minInt
+	 *            minimal number of integer digits, 4 for ddmm.
+	 * @param minFrac
+	 *            minimal number of fraction digits of the minutes.
+	 * @param maxFrac
+	 *            maximal number of fraction digits of the minutes, up to 7.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendPosition(long nanodegrees, int minInt,
+			int minFrac, int maxFrac) {
+		long value = Math.abs(nanodegrees);
+		long degrees = value / Fix.NANODEGREES;
+		// minutes times 10^maxFrac, exact before the division
+		long minutes = (value - degrees * Fix.NANODEGREES) * 60 * POW10[maxFrac];
+		long scaled = minutes / Fix.NANODEGREES;
+		long rest = minutes - scaled * Fix.NANODEGREES;
+		if (rest * 2 > Fix.NANODEGREES
+				|| (rest * 2 == Fix.NANODEGREES && (scaled & 1) != 0))
+			scaled++;
+		appendScaled(degrees * 100 * POW10[maxFrac] + scaled, maxFrac, minInt,
+				minFrac);
+		return this;
+	}
+
+	private void appendScaled(long scaled, int maxFrac, int minInt, int minFrac) {
+		long intPart = scaled / POW10[maxFrac];
+		long fracPart = scaled % POW10[maxFrac];
+
+		int fracDigits = maxFrac;
+		while (fracDigits > minFrac && fracPart % 10 == 0) {
+			fracPart /= 10;
+			fracDigits--;
+		}
+
+		if (intPart != 0 || minInt > 0) {
+			appendDigits(intPart, minInt);
+		} else if (fracDigits == 0) {
+			// DecimalFormat never writes an empty number
+			append('0');
+		}
+		if (fracDigits > 0) {
+			append('.');
+			appendDigits(fracPart, fracDigits);
+		}
+	}
+
+	/**
+	 * Appends the UTC time of day as HHmmss.SSS.
+	 *
+	 * @param millis
+	 *            milliseconds since the epoch.
+	 * @param withMillis
+	 *            write the milliseconds, if false ".000" is written.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendTime(long millis, boolean withMillis) {
+		long ms = millis % MILLIS_PER_DAY;
+		if (ms < 0)
+			ms += MILLIS_PER_DAY;
+		int seconds = (int) (ms / 1000);
+		appendDigits(seconds / 3600, 2);
+		appendDigits(seconds / 60 % 60, 2);
+		appendDigits(seconds % 60, 2);
+		append('.');
+		appendDigits(withMillis ? ms % 1000 : 0, 3);
+		return this;
+	}
+
+	/**
+	 * Appends the UTC date as ddMMyy.
+	 *
+	 * @param millis
+	 *            milliseconds since the epoch.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendDate(long millis) {
+		int date = toCivilDate(millis);
+		appendDigits(date % 100, 2);
+		appendDigits(date / 100 % 100, 2);
+		appendDigits(date / 10000 % 100, 2);
+		return this;
+	}
+
+	/**
+	 * Converts epoch millis to the UTC calendar date.
+	 *
+	 * @param millis
+	 *            milliseconds since the epoch.
+	 * @return the date as decimal yyyyMMdd, e.g. 20110727.
+	 */
+	public static int toCivilDate(long millis) {
+		long days = millis / MILLIS_PER_DAY;
+		if (millis % MILLIS_PER_DAY < 0)
+			days--;
+
+		// days to civil date, see
+		// http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long day = doy - (153 * mp + 2) / 5 + 1;
+		long month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		return (int) (year * 10000 + month * 100 + day);
+	}
+
+	/**
+	 * Appends the checksum of the current sentence as lower case hex without
+	 * padding, like Integer.toHexString().
+	 *
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendChecksum() {
+		int checksum = mChecksum;
+		ensureCapacity(2);
+		if (checksum > 0xf)
+			mBuffer[mLength++] = HEX[checksum >> 4];
+		mBuffer[mLength++] = HEX[checksum & 0xf];
+		return this;
+	}
+
+	/**
+	 * Appends an integer as little endian binary, e.g. for UBX messages. The
+	 * bytes are not added to the checksum.
+	 *
+	 * @param value
+	 *            value to append, only the low bytes are written.
+	 * @param bytes
+	 *            number of bytes, 1 to 8.
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendLittleEndian(long value, int bytes) {
+		ensureCapacity(bytes);
+		for (int i = 0; i < bytes; i++) {
+			mBuffer[mLength++] = (byte) value;
+			value >>= 8;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the line terminator CR LF.
+	 *
+	 * @return this encoder
+	 */
+	public NMEAEncoder appendLineEnd() {
+		ensureCapacity(2);
+		mBuffer[mLength++] = '\r';
+		mBuffer[mLength++] = '\n';
+		return this;
+	}
+
+	/**
+	 * Finishes the current sentence with '*', checksum and line terminator.
+	 *
+	 * @return this encoder
+	 */
+	public NMEAEncoder end() {
+		return append('*').appendChecksum().appendLineEnd();
+	}
+
+	public int getChecksum() {
+		return mChecksum;
+	}
+
+	/**
+	 * @return the internal buffer, valid up to {@link #getLength()}.
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return a copy of the written bytes.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[mLength];
+		System.arraycopy(mBuffer, 0, copy, 0, mLength);
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++) {
+			chars[i] = (char) mBuffer[i];
+		}
+		return new String(chars);
+	}
+
+	private void put(byte b) {
+		if (b != '$' && b != '*')
+			mChecksum ^= b;
+		mBuffer[mLength++] = b;
+	}
+
+	private void appendDigits(long value, int minDigits) {
+		int digits = 1;
+		while (digits < POW10.length && value >= POW10[digits]) {
+			digits++;
+		}
+		if (digits < minDigits)
+			digits = minDigits;
+		ensureCapacity(digits);
+		for (int i = mLength + digits - 1; i >= mLength; i--) {
+			byte b = (byte) ('0' + value % 10);
+			mChecksum ^= b;
+			mBuffer[i] = b;
+			value /= 10;
+		}
+		mLength += digits;
+	}
+
+	private void ensureCapacity(int more) {
+		if (mLength + more > mBuffer.length) {
+			byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength
+					+ more)];
+			System.arraycopy(mBuffer, 0, grown, 0, mLength);
+			mBuffer = grown;
+		}
+	}
+
+	/**
+	 * Scales a positive value by 10^fraction and rounds HALF_EVEN on the
+	 * exact binary value, as DecimalFormat does.
+	 *
+	 * Only if the scaled value is close to a tie the exact decision is left to
+	 * BigDecimal, which doesn't happen for the usual sensor values.
+	 */
+	private static long roundHalfEven(double value, int fraction) {
+		double scaled = value * POW10[fraction];
+		if (scaled < MAX_FAST_SCALED) {
+			double floor = Math.floor(scaled);
+			double rest = scaled - floor;
+			// error of the multiplication is far below this margin
+			double margin = scaled * 1e-15 + 1e-300;
+			if (Math.abs(rest - 0.5) > margin) {
+				long result = (long) floor;
+				return rest > 0.5 ? result + 1 : result;
+			}
+		}
+		return new BigDecimal(value).setScale(fraction, RoundingMode.HALF_EVEN)
+				.unscaledValue().longValue();
+	}
+}
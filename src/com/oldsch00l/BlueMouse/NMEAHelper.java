@@ -1,16 +1,53 @@
 package com.oldsch00l.BlueMouse;
 
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+/**
+ * The "generic" dialect: time stamps of the fix in ms, variable length
+ * positions and the mode indicator in RMC.
+ */
+public class NMEAHelper implements SentenceDialect {
+	public static final NMEAHelper DIALECT = new NMEAHelper();
+
+	// by status, invalid fixes have quality 0, status V and mode N, estimated
+	// ones quality 6 and mode E
+	private final SentenceTemplate[] mGGAs = {
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,1,%,,%,M,,M,"),
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,0,%,,%,M,,M,"),
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,6,%,,%,M,,M,") };
+	private final SentenceTemplate[] mRMCs = {
+			new SentenceTemplate("$GPRMC,%,A,%,%,%,%,%,%,%,,,A"),
+			new SentenceTemplate("$GPRMC,%,V,%,%,%,%,%,%,%,,,N"),
+			new SentenceTemplate("$GPRMC,%,A,%,%,%,%,%,%,%,,,E") };
+
+	@Override
+	public String getName() {
+		return SentenceDialects.GENERIC;
+	}
+
+	@Override
+	public boolean isCacheable() {
+		// carries the time of the fix
+		return true;
+	}
 
-import android.location.Location;
-import android.os.Bundle;
+	@Override
+	public boolean isNmea() {
+		return true;
+	}
+
+	@Override
+	public boolean encode(int sentence, Fix fix, int status, long now,
+			NMEAEncoder encoder) {
+		switch (sentence) {
+		case RMC:
+			encodeRMC(fix, status, encoder);
+			return true;
+		case GGA:
+			encodeGGA(fix, status, encoder);
+			return true;
+		}
+		return false;
+	}
 
-public class NMEAHelper {
 	/**
 	 * Creates a NMEA checksum for a sentence.
 	 * 
@@ -31,94 +68,77 @@ public class NMEAHelper {
 		return checksum;
 	}
 
-	public static DecimalFormatSymbols decSymFormat = new DecimalFormatSymbols();
-	static {
-		decSymFormat.setDecimalSeparator('.');
-	}
-	public static DecimalFormat locFormat = new DecimalFormat("0000.######", decSymFormat);
-	public static DecimalFormat shortFormat = new DecimalFormat("##.#", decSymFormat);
-
-	public static SimpleDateFormat HHMMSS = new SimpleDateFormat("HHmmss.000",
-			Locale.UK);
-
-	public static SimpleDateFormat DDMMYY = new SimpleDateFormat("ddMMyy",
-			Locale.UK);
-	static {
-		HHMMSS.setTimeZone(TimeZone.getTimeZone("GMT"));
-		DDMMYY.setTimeZone(TimeZone.getTimeZone("GMT"));
-	}
-
 	/**
 	 * Creates a valid NMEA GGA Global Positioning System Fix Data.
 	 * 
 	 * Example:
 	 * $GPGGA,191410,4735.5634,N,00739.3538,E,1,04,4.4,351.5,M,48.0,M,,*45
 	 * 
-	 * @param loc
-	 *            object to transfer into a GGA sentence.
+	 * @param fix
+	 *            fix to transfer into a GGA sentence.
 	 * @return The GGA sentence as String.
 	 */
-	public static String getNMEAGGA(final Location loc) {
-		StringBuilder sbGPGGA = new StringBuilder();
-
-		char cNorthSouth = loc.getLatitude() >= 0 ? 'N' : 'S';
-		char cEastWest = loc.getLongitude() >= 0 ? 'E' : 'W';
-
-		Date curDate = new Date();
-		sbGPGGA.append("$GPGGA,");
-		sbGPGGA.append(HHMMSS.format(curDate));
-		sbGPGGA.append(',');
-		sbGPGGA.append(getCorrectPosition(loc.getLatitude()));
-		sbGPGGA.append(",");
-		sbGPGGA.append(cNorthSouth);
-		sbGPGGA.append(',');
-		sbGPGGA.append(getCorrectPosition(loc.getLongitude()));
-		sbGPGGA.append(',');
-		sbGPGGA.append(cEastWest);
-		sbGPGGA.append(',');
-		sbGPGGA.append('1'); // quality
-		sbGPGGA.append(',');
-		Bundle bundle = loc.getExtras();
-		int satellites = 7;
-		if( bundle != null )
-			satellites = bundle.getInt("satellites", 7);
-		sbGPGGA.append(satellites);
-		sbGPGGA.append(',');
-		sbGPGGA.append(',');
-		if (loc.hasAltitude())
-			sbGPGGA.append(shortFormat.format(loc.getAltitude()));
-		sbGPGGA.append(',');
-		sbGPGGA.append('M');
-		sbGPGGA.append(',');
-		sbGPGGA.append(',');
-		sbGPGGA.append('M');
-		sbGPGGA.append(',');
-		sbGPGGA.append("*");
-		int checksum = getNMEAChecksum(sbGPGGA);
-		sbGPGGA.append(java.lang.Integer.toHexString(checksum));
-		sbGPGGA.append("\r\n");
-
-		return sbGPGGA.toString();
+	public static String getNMEAGGA(final Fix fix) {
+		NMEAEncoder encoder = new NMEAEncoder();
+		DIALECT.encodeGGA(fix, STATUS_VALID, encoder);
+		return encoder.toString();
 	}
 
 	/**
-	 * Returns the correct NMEA position string.
+	 * Writes a GGA sentence, see {@link #getNMEAGGA(Fix)}.
 	 * 
-	 * Android location object returns the data in the format that is not
-	 * expected by the NMEA data set. We have to multiple the minutes and
-	 * seconds by 60.
+	 * @param fix
+	 *            fix to transfer into a GGA sentence.
+	 * @param status
+	 *            status of the fix, e.g. {@link #STATUS_VALID}.
+	 * @param encoder
+	 *            encoder the sentence is appended to.
+	 */
+	public void encodeGGA(final Fix fix, int status, NMEAEncoder encoder) {
+		char cNorthSouth = fix.getLatitudeNanos() >= 0 ? 'N' : 'S';
+		char cEastWest = fix.getLongitudeNanos() >= 0 ? 'E' : 'W';
+		SentenceTemplate gga = mGGAs[status];
+
+		gga.begin(encoder);
+		encoder.appendTime(fix.getTime(), true);
+		gga.next(encoder, 0);
+		appendPosition(encoder, fix.getLatitudeNanos());
+		gga.next(encoder, 1);
+		encoder.append(cNorthSouth);
+		gga.next(encoder, 2);
+		appendPosition(encoder, fix.getLongitudeNanos());
+		gga.next(encoder, 3);
+		encoder.append(cEastWest);
+		gga.next(encoder, 4);
+		int satellites = fix.getSatellites();
+		if (satellites == Fix.SATELLITES_UNKNOWN)
+			satellites = 7;
+		encoder.appendInt(satellites, 1);
+		gga.next(encoder, 5);
+		if (fix.hasAltitude())
+			appendShort(encoder, fix.getAltitude());
+		gga.next(encoder, 6);
+		encoder.end();
+	}
+
+	/**
+	 * Writes the correct NMEA position.
+	 * 
+	 * The fix has the position in degrees, NMEA expects degrees and minutes,
+	 * the fraction of the degrees is multiplied by 60.
 	 * 
-	 * @param degree
-	 *            value from the Location.getLatitude() or
-	 *            Location.getLongitude()
-	 * @return The correct formated string for a NMEA data set.
+	 * @param encoder
+	 *            encoder the position is appended to.
+	 * @param nanodegrees
+	 *            value from the Fix.getLatitudeNanos() or
+	 *            Fix.getLongitudeNanos()
 	 */
-	public static String getCorrectPosition(double degree) {
-		double val = degree - (int) degree;
-		val *= 60;
+	public static void appendPosition(NMEAEncoder encoder, long nanodegrees) {
+		encoder.appendPosition(nanodegrees, 4, 0, 6); // "0000.######"
+	}
 
-		val = (int) degree * 100 + val;
-		return locFormat.format(Math.abs(val));
+	private static void appendShort(NMEAEncoder encoder, double value) {
+		encoder.appendDecimal(value, 1, 0, 1); // "##.#"
 	}
 
 	/**
@@ -127,42 +147,49 @@ public class NMEAHelper {
 	 * Example:
 	 * $GPRMC,053117.000,V,4812.7084,N,01619.3522,E,0.14,237.29,070311,,,N*76
 	 * 
-	 * @param loc
-	 *            object to transfer into a RMC sentence.
+	 * @param fix
+	 *            fix to transfer into a RMC sentence.
 	 * @return The RMC sentence as String.
 	 */
-	public static String getNMEARMC(final Location loc) {
+	public static String getNMEARMC(final Fix fix) {
+		NMEAEncoder encoder = new NMEAEncoder();
+		DIALECT.encodeRMC(fix, STATUS_VALID, encoder);
+		return encoder.toString();
+	}
+
+	/**
+	 * Writes a RMC sentence, see {@link #getNMEARMC(Fix)}.
+	 * 
+	 * @param fix
+	 *            fix to transfer into a RMC sentence.
+	 * @param status
+	 *            status of the fix, e.g. {@link #STATUS_VALID}.
+	 * @param encoder
+	 *            encoder the sentence is appended to.
+	 */
+	public void encodeRMC(final Fix fix, int status, NMEAEncoder encoder) {
 		// $GPRMC,053117.000,V,4812.7084,N,01619.3522,E,0.14,237.29,070311,,,N*76
-		StringBuilder sbGPRMC = new StringBuilder();
-
-		char cNorthSouth = loc.getLatitude() >= 0 ? 'N' : 'S';
-		char cEastWest = loc.getLongitude() >= 0 ? 'E' : 'W';
-
-		Date curDate = new Date();
-		sbGPRMC.append("$GPRMC,");
-		sbGPRMC.append(HHMMSS.format(curDate));
-		sbGPRMC.append(",A,");
-		sbGPRMC.append(getCorrectPosition(loc.getLatitude()));
-		sbGPRMC.append(",");
-		sbGPRMC.append(cNorthSouth);
-		sbGPRMC.append(",");
-		sbGPRMC.append(getCorrectPosition(loc.getLongitude()));
-		sbGPRMC.append(',');
-		sbGPRMC.append(cEastWest);
-		sbGPRMC.append(',');
-		sbGPRMC.append(shortFormat.format(loc.getSpeed() * 1.94));
-		sbGPRMC.append(",");
-		sbGPRMC.append(shortFormat.format(loc.getBearing()));
-		sbGPRMC.append(",");
-		sbGPRMC.append(DDMMYY.format(curDate));
-		sbGPRMC.append(",,,");
-		sbGPRMC.append("A");
-		sbGPRMC.append("*");
-		int checksum = getNMEAChecksum(sbGPRMC);
-		sbGPRMC.append(java.lang.Integer.toHexString(checksum));
-		// if(D) Log.v(TAG, sbGPRMC.toString());
-		sbGPRMC.append("\r\n");
-
-		return sbGPRMC.toString();
+		char cNorthSouth = fix.getLatitudeNanos() >= 0 ? 'N' : 'S';
+		char cEastWest = fix.getLongitudeNanos() >= 0 ? 'E' : 'W';
+		SentenceTemplate rmc = mRMCs[status];
+
+		rmc.begin(encoder);
+		encoder.appendTime(fix.getTime(), true);
+		rmc.next(encoder, 0);
+		appendPosition(encoder, fix.getLatitudeNanos());
+		rmc.next(encoder, 1);
+		encoder.append(cNorthSouth);
+		rmc.next(encoder, 2);
+		appendPosition(encoder, fix.getLongitudeNanos());
+		rmc.next(encoder, 3);
+		encoder.append(cEastWest);
+		rmc.next(encoder, 4);
+		appendShort(encoder, fix.getSpeed() * 1.94);
+		rmc.next(encoder, 5);
+		appendShort(encoder, fix.getBearing());
+		rmc.next(encoder, 6);
+		encoder.appendDate(fix.getTime());
+		rmc.next(encoder, 7);
+		encoder.end();
 	}
 }
@@ -0,0 +1,274 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Streaming NMEA parser that doesn't allocate while parsing.
+ *
+ * Chars or bytes are pushed in as they come, a sentence starts with '$' and
+ * ends with CR or LF. A '$' within a sentence starts over, so truncated and
+ * concatenated lines, as in NMEA_samples/HOLUX_M1000, are skipped until the
+ * next clean sentence. Sentences with a missing or wrong checksum are
+ * dropped. Every valid sentence is handed to the listener as a reused
+ * {@link NMEASentence}.
+ *
+ * Outside of sentences an optional {@link CommandListener} gets the gpsd
+ * commands of the clients, from '?' to ';' or the line end.
+ *
+ * A parser is not thread-safe.
+ */
+public class NMEAParser {
+	/** NMEA allows 82 chars, some chips send longer proprietary sentences. */
+	public static final int MAX_LENGTH = 128;
+
+	/**
+	 * Gets the parsed sentences.
+	 */
+	public interface Listener {
+		/**
+		 * @param sentence
+		 *            the sentence, only valid during this call.
+		 */
+		public void onSentence(NMEASentence sentence);
+	}
+
+	/**
+	 * Gets the gpsd commands, e.g. "?WATCH={\"enable\":true}".
+	 */
+	public interface CommandListener {
+		/**
+		 * @param command
+		 *            the command from '?' without the ';'.
+		 */
+		public void onCommand(String command);
+	}
+
+	private final NMEASentence mSentence = new NMEASentence(MAX_LENGTH);
+	private Listener mListener;
+	private CommandListener mCommandListener;
+	// command being read, -1 outside of a command
+	private byte[] mCommand;
+	private int mCommandLength = -1;
+	private boolean mInSentence;
+	private int mChecksum;
+	private int mChecksumAt;
+
+	private long mSentences;
+	private long mChecksumErrors;
+	private long mDiscarded;
+
+	/**
+	 * @param listener
+	 *            gets the parsed sentences.
+	 */
+	public NMEAParser(Listener listener) {
+		mListener = listener;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * @param listener
+	 *            gets the gpsd commands, null to ignore them.
+	 */
+	public void setCommandListener(CommandListener listener) {
+		if (mCommand == null)
+			mCommand = new byte[MAX_LENGTH];
+		mCommandListener = listener;
+	}
+
+	/**
+	 * Parses text, e.g. a sentence from the GPS chip.
+	 *
+	 * @param text
+	 *            one or more sentences or a part of one.
+	 */
+	public void parse(CharSequence text) {
+		NMEASentence s = mSentence;
+		byte[] buffer = s.mBuffer;
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			if (!mInSentence || mChecksumAt >= 0) {
+				feed(text.charAt(i++));
+				continue;
+			}
+			// fast path for the fields up to the '*', kept in locals, the
+			// fields are only split when they are read
+			int pos = s.mLength;
+			int checksum = mChecksum;
+			int end = Math.min(length, i + MAX_LENGTH - pos);
+			while (i < end) {
+				char c = text.charAt(i);
+				if (c <= '*' || c > 0x7e)
+					break;
+				buffer[pos++] = (byte) c;
+				checksum ^= c;
+				i++;
+			}
+			s.mLength = pos;
+			mChecksum = checksum;
+			if (i < length)
+				feed(text.charAt(i++));
+		}
+	}
+
+	/**
+	 * Parses bytes, e.g. read from a log file.
+	 *
+	 * @param buffer
+	 *            buffer holding the bytes.
+	 * @param offset
+	 *            start of the bytes.
+	 * @param length
+	 *            number of bytes.
+	 */
+	public void parse(byte[] buffer, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			feed((char) (buffer[i] & 0xff));
+		}
+	}
+
+	/**
+	 * Parses one char.
+	 *
+	 * @param c
+	 *            the char.
+	 */
+	public void feed(char c) {
+		NMEASentence s = mSentence;
+		if (c == '$') {
+			if (mInSentence)
+				mDiscarded++;
+			mInSentence = true;
+			s.mBuffer[0] = '$';
+			s.mLength = 1;
+			mChecksum = 0;
+			mChecksumAt = -1;
+		} else if (!mInSentence) {
+			if (mCommandListener != null)
+				feedCommand(c);
+		} else if (c == '\r' || c == '\n') {
+			mInSentence = false;
+			finish();
+		} else if (c < 0x20 || c > 0x7e || s.mLength == MAX_LENGTH) {
+			// garbage or a lost line end, wait for the next '$'
+			mInSentence = false;
+			mDiscarded++;
+		} else {
+			if (mChecksumAt >= 0) {
+				// only the checksum digits follow the '*'
+			} else if (c == '*') {
+				mChecksumAt = s.mLength;
+			} else {
+				mChecksum ^= c;
+			}
+			s.mBuffer[s.mLength++] = (byte) c;
+		}
+	}
+
+	/**
+	 * Ends the current sentence as if a line end was received, for input
+	 * without line ends.
+	 */
+	public void flush() {
+		if (mInSentence) {
+			mInSentence = false;
+			finish();
+		}
+	}
+
+	/**
+	 * @return number of valid sentences.
+	 */
+	public long getSentences() {
+		return mSentences;
+	}
+
+	/**
+	 * @return number of sentences with a missing or wrong checksum.
+	 */
+	public long getChecksumErrors() {
+		return mChecksumErrors;
+	}
+
+	/**
+	 * @return number of sentences cut off by garbage or a new '$'.
+	 */
+	public long getDiscarded() {
+		return mDiscarded;
+	}
+
+	private void feedCommand(char c) {
+		if (c == '?') {
+			mCommand[0] = '?';
+			mCommandLength = 1;
+		} else if (mCommandLength < 0) {
+			// outside of a command
+		} else if (c == ';' || c == '\r' || c == '\n') {
+			String command = new String(mCommand, 0, mCommandLength);
+			mCommandLength = -1;
+			mCommandListener.onCommand(command);
+		} else if (c < 0x20 || c > 0x7e || mCommandLength == MAX_LENGTH) {
+			mCommandLength = -1;
+		} else {
+			mCommand[mCommandLength++] = (byte) c;
+		}
+	}
+
+	private void finish() {
+		NMEASentence s = mSentence;
+		byte[] b = s.mBuffer;
+		int length = s.mLength;
+
+		// checksum "*hh" at the end
+		if (mChecksumAt < 0 || mChecksumAt != length - 3) {
+			mChecksumErrors++;
+			return;
+		}
+		int expected = (hex(b[length - 2]) << 4) | hex(b[length - 1]);
+		if (expected < 0 || mChecksum != expected) {
+			mChecksumErrors++;
+			return;
+		}
+		s.setDataEnd(mChecksumAt);
+		s.mType = type(s);
+
+		mSentences++;
+		if (mListener != null)
+			mListener.onSentence(s);
+	}
+
+	private static int type(NMEASentence s) {
+		if (!s.split(0) || s.getFieldEnd(0) - s.getFieldStart(0) != 5)
+			return NMEASentence.TYPE_UNKNOWN;
+		int i = s.getFieldStart(0) + 2;
+		int code = s.mBuffer[i] << 16 | s.mBuffer[i + 1] << 8 | s.mBuffer[i + 2];
+		switch (code) {
+		case 'R' << 16 | 'M' << 8 | 'C':
+			return NMEASentence.TYPE_RMC;
+		case 'G' << 16 | 'G' << 8 | 'A':
+			return NMEASentence.TYPE_GGA;
+		case 'G' << 16 | 'S' << 8 | 'A':
+			return NMEASentence.TYPE_GSA;
+		case 'G' << 16 | 'S' << 8 | 'V':
+			return NMEASentence.TYPE_GSV;
+		case 'V' << 16 | 'T' << 8 | 'G':
+			return NMEASentence.TYPE_VTG;
+		case 'Z' << 16 | 'D' << 8 | 'A':
+			return NMEASentence.TYPE_ZDA;
+		}
+		return NMEASentence.TYPE_UNKNOWN;
+	}
+
+	private static int hex(byte c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1 << 8;
+	}
+}
@@ -0,0 +1,379 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Flyweight view of the sentence the {@link NMEAParser} just parsed.
+ *
+ * The fields are read straight from the parser's buffer without creating
+ * strings. The sentence is only split into fields as far as they are read,
+ * most listeners only look at the first few. The view is only valid during
+ * the
+ * {@link NMEAParser.Listener#onSentence(NMEASentence)} call, the parser
+ * reuses it for the next sentence.
+ */
+public class NMEASentence {
+	public static final int TYPE_UNKNOWN = 0;
+	public static final int TYPE_RMC = 1;
+	public static final int TYPE_GGA = 2;
+	public static final int TYPE_GSA = 3;
+	public static final int TYPE_GSV = 4;
+	public static final int TYPE_VTG = 5;
+	public static final int TYPE_ZDA = 6;
+
+	// RMC fields, field 0 is the address, e.g. "GPRMC"
+	public static final int RMC_TIME = 1;
+	public static final int RMC_STATUS = 2;
+	public static final int RMC_LATITUDE = 3;
+	public static final int RMC_LONGITUDE = 5;
+	public static final int RMC_SPEED = 7;
+	public static final int RMC_COURSE = 8;
+	public static final int RMC_DATE = 9;
+
+	// GGA fields
+	public static final int GGA_TIME = 1;
+	public static final int GGA_LATITUDE = 2;
+	public static final int GGA_LONGITUDE = 4;
+	public static final int GGA_QUALITY = 6;
+	public static final int GGA_SATELLITES = 7;
+	public static final int GGA_HDOP = 8;
+	public static final int GGA_ALTITUDE = 9;
+	public static final int GGA_GEOID = 11;
+
+	// GSA fields
+	public static final int GSA_MODE = 2;
+	/** First of the 12 fields with the PRNs used in the fix. */
+	public static final int GSA_PRN = 3;
+	public static final int GSA_PDOP = 15;
+	public static final int GSA_HDOP = 16;
+	public static final int GSA_VDOP = 17;
+
+	// GSV fields
+	public static final int GSV_MESSAGES = 1;
+	public static final int GSV_MESSAGE = 2;
+	public static final int GSV_SATELLITES = 3;
+	/** First satellite block, every block has PRN, elevation, azimuth, SNR. */
+	public static final int GSV_SATELLITE = 4;
+
+	// VTG fields
+	public static final int VTG_COURSE = 1;
+	public static final int VTG_SPEED_KNOTS = 5;
+	public static final int VTG_SPEED_KMH = 7;
+
+	// ZDA fields
+	public static final int ZDA_TIME = 1;
+	public static final int ZDA_DAY = 2;
+	public static final int ZDA_MONTH = 3;
+	public static final int ZDA_YEAR = 4;
+
+	final byte[] mBuffer;
+	int mLength;
+	int mType;
+	// fields split so far, every field has at least its separator
+	private final int[] mFieldStart;
+	private final int[] mFieldEnd;
+	private int mFieldCount;
+	// start of the next field to split and end of the fields at the '*'
+	private int mSplitAt;
+	private int mDataEnd;
+
+	NMEASentence(int maxLength) {
+		mBuffer = new byte[maxLength];
+		mFieldStart = new int[maxLength];
+		mFieldEnd = new int[maxLength];
+	}
+
+	/**
+	 * Starts a new sentence in the buffer, no field is split yet.
+	 *
+	 * @param dataEnd
+	 *            position of the '*'.
+	 */
+	void setDataEnd(int dataEnd) {
+		mDataEnd = dataEnd;
+		mFieldCount = 0;
+		mSplitAt = 1;
+	}
+
+	/**
+	 * Splits the fields up to the given one.
+	 *
+	 * @return true if the sentence has the field.
+	 */
+	boolean split(int field) {
+		byte[] buffer = mBuffer;
+		int end = mDataEnd;
+		while (field >= mFieldCount && mSplitAt <= end) {
+			int i = mSplitAt;
+			while (i < end && buffer[i] != ',')
+				i++;
+			mFieldStart[mFieldCount] = mSplitAt;
+			mFieldEnd[mFieldCount] = i;
+			mFieldCount++;
+			mSplitAt = i + 1;
+		}
+		return field < mFieldCount;
+	}
+
+	/**
+	 * @return start of a field that was split.
+	 */
+	int getFieldStart(int field) {
+		return mFieldStart[field];
+	}
+
+	/**
+	 * @return end of a field that was split.
+	 */
+	int getFieldEnd(int field) {
+		return mFieldEnd[field];
+	}
+
+	/**
+	 * @return the sentence type, e.g. {@link #TYPE_RMC}
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * @return the two talker chars as one int, e.g. 'G' << 8 | 'P'
+	 */
+	public int getTalker() {
+		return mBuffer[1] << 8 | mBuffer[2];
+	}
+
+	/**
+	 * @return the buffer holding the whole sentence from '$' to the checksum
+	 *         without line end.
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * @return length of the sentence in the buffer.
+	 */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return number of fields including the address field.
+	 */
+	public int getFieldCount() {
+		split(Integer.MAX_VALUE);
+		return mFieldCount;
+	}
+
+	public boolean isEmpty(int field) {
+		return !split(field) || mFieldStart[field] == mFieldEnd[field];
+	}
+
+	/**
+	 * @return the first char of a field or 0 if it is empty.
+	 */
+	public char getChar(int field) {
+		return isEmpty(field) ? 0 : (char) mBuffer[mFieldStart[field]];
+	}
+
+	/**
+	 * Copies a field into a new String, only meant for rare sentences like
+	 * client commands.
+	 *
+	 * @return the field, empty if it is empty or missing.
+	 */
+	public String getString(int field) {
+		if (isEmpty(field))
+			return "";
+		int start = mFieldStart[field];
+		char[] chars = new char[mFieldEnd[field] - start];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) mBuffer[start + i];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Reads an integer field, a fraction is ignored.
+	 *
+	 * @param field
+	 *            index of the field.
+	 * @param defaultValue
+	 *            returned for empty or invalid fields.
+	 * @return the value.
+	 */
+	public int getInt(int field, int defaultValue) {
+		if (isEmpty(field))
+			return defaultValue;
+		int i = mFieldStart[field];
+		int end = mFieldEnd[field];
+		boolean negative = mBuffer[i] == '-';
+		if (negative)
+			i++;
+		int value = 0;
+		int digits = 0;
+		for (; i < end && mBuffer[i] != '.'; i++, digits++) {
+			int d = mBuffer[i] - '0';
+			if (d < 0 || d > 9)
+				return defaultValue;
+			value = value * 10 + d;
+		}
+		if (digits == 0)
+			return defaultValue;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads a decimal field as fixed-point number.
+	 *
+	 * @param field
+	 *            index of the field.
+	 * @param decimals
+	 *            number of decimals of the result, further decimals are cut.
+	 * @param defaultValue
+	 *            returned for empty or invalid fields.
+	 * @return the value times 10^decimals.
+	 */
+	public long getFixed(int field, int decimals, long defaultValue) {
+		if (isEmpty(field))
+			return defaultValue;
+		int i = mFieldStart[field];
+		int end = mFieldEnd[field];
+		boolean negative = mBuffer[i] == '-';
+		if (negative)
+			i++;
+		long value = 0;
+		int fraction = -1;
+		boolean digits = false;
+		for (; i < end; i++) {
+			byte b = mBuffer[i];
+			if (b == '.' && fraction < 0) {
+				fraction = 0;
+				continue;
+			}
+			int d = b - '0';
+			if (d < 0 || d > 9)
+				return defaultValue;
+			digits = true;
+			if (fraction >= 0) {
+				if (fraction == decimals)
+					continue;
+				fraction++;
+			}
+			value = value * 10 + d;
+		}
+		if (!digits)
+			return defaultValue;
+		for (int f = fraction < 0 ? 0 : fraction; f < decimals; f++) {
+			value *= 10;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads a decimal field.
+	 *
+	 * @param field
+	 *            index of the field.
+	 * @param defaultValue
+	 *            returned for empty or invalid fields.
+	 * @return the value.
+	 */
+	public double getDouble(int field, double defaultValue) {
+		long fixed = getFixed(field, 6, Long.MIN_VALUE);
+		return fixed == Long.MIN_VALUE ? defaultValue : fixed / 1e6;
+	}
+
+	/**
+	 * Reads a position in the NMEA format (d)ddmm.mmmm followed by the
+	 * hemisphere field.
+	 *
+	 * @param field
+	 *            index of the position field.
+	 * @return the position in degrees, negative for south and west, or NaN
+	 *         if the field is empty.
+	 */
+	public double getDegrees(int field) {
+		long minutes = getFixed(field, 7, Long.MIN_VALUE);
+		if (minutes == Long.MIN_VALUE)
+			return Double.NaN;
+		long degrees = minutes / 1000000000L;
+		double value = degrees + (minutes - degrees * 1000000000L) / 60e7;
+		char hemisphere = getChar(field + 1);
+		return hemisphere == 'S' || hemisphere == 'W' ? -value : value;
+	}
+
+	/**
+	 * Reads a time field hhmmss.sss.
+	 *
+	 * @param field
+	 *            index of the field.
+	 * @return milliseconds since midnight or -1 if the field is empty.
+	 */
+	public int getTimeOfDay(int field) {
+		long time = getFixed(field, 3, -1);
+		if (time < 0)
+			return -1;
+		int millis = (int) (time % 1000);
+		int hhmmss = (int) (time / 1000);
+		return ((hhmmss / 10000 * 60 + hhmmss / 100 % 100) * 60 + hhmmss % 100)
+				* 1000 + millis;
+	}
+
+	/**
+	 * Reads a date field ddmmyy, two digit years are taken as 1980 to 2079.
+	 *
+	 * @param field
+	 *            index of the field.
+	 * @return milliseconds since the epoch of the UTC midnight starting that
+	 *         day or -1 if the field is empty or invalid.
+	 */
+	public long getDateMillis(int field) {
+		int ddmmyy = getInt(field, -1);
+		if (ddmmyy < 0)
+			return -1;
+		int day = ddmmyy / 10000;
+		int month = ddmmyy / 100 % 100;
+		int year = ddmmyy % 100;
+		if (day < 1 || day > 31 || month < 1 || month > 12)
+			return -1;
+		year += year < 80 ? 2000 : 1900;
+
+		// civil date to days, see
+		// http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+		if (month <= 2)
+			year--;
+		int era = year / 400;
+		int yoe = year - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097L + doe - 719468;
+		return days * 86400000L;
+	}
+
+	/**
+	 * Compares the address field, e.g. "RMC" matches "$GPRMC" and "$GNRMC".
+	 *
+	 * @param type
+	 *            three letter sentence type.
+	 * @return true if the sentence has this type.
+	 */
+	public boolean is(String type) {
+		if (!split(0) || mFieldEnd[0] - mFieldStart[0] != 5)
+			return false;
+		int start = mFieldStart[0] + 2;
+		for (int i = 0; i < 3; i++) {
+			if (mBuffer[start + i] != type.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++) {
+			chars[i] = (char) mBuffer[i];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,696 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The NMEA server without Android. {@link BlueMouseService} runs one for its
+ * Bluetooth and TCP clients, {@link #main(String[])} serves many TCP clients
+ * from a receiver log, e.g. on a Linux gateway.
+ *
+ * It keeps the clients in a {@link ClientRegistry} with their subscriptions,
+ * sends RMC and GGA of the current fix through a {@link Broadcast}, forwards
+ * the chip's own sentences of the {@link PassThrough} and evicts clients
+ * whose writes are stuck. The sentences are sent every update interval or,
+ * in the event mode, as soon as a new fix arrives. Stale fixes and the fix of
+ * the previous run are sent as invalid or suppressed, fresh ones may be
+ * extrapolated by {@link DeadReckoning}.
+ *
+ * The fix source publishes with {@link #setFix(Fix)}, the transports hand
+ * their clients to {@link #getTransportListener()} or {@link #addClient}.
+ * Clients of {@link #addTransport} run on a {@link ThreadScope}, one virtual
+ * thread each where the JVM has them. {@link #stop()} ends the emissions,
+ * these transports and all clients together.
+ *
+ * The server doesn't print, evictions are counted in the metrics and
+ * everything else is reported to the {@link Listener}.
+ *
+ * Run from the command line:
+ *
+ * <pre>
+ * java com.oldsch00l.BlueMouse.NMEAServer port log [speed [dialect [interval]]]
+ * </pre>
+ */
+public class NMEAServer {
+	/** Sentences are sent every update interval. */
+	public static final int EMISSION_TIMER = 0;
+	/** Sentences are sent as soon as a new fix arrives. */
+	public static final int EMISSION_EVENT = 1;
+
+	/** Sentences of a stale fix are sent with the invalid status. */
+	public static final int STALE_INVALID = 0;
+	/** Sentences of a stale fix aren't sent. */
+	public static final int STALE_SUPPRESS = 1;
+
+	/** Default update interval in ms. */
+	public static final int DEFAULT_INTERVAL = 1000;
+
+	/** Default offset of GGA after RMC within the update interval in ms. */
+	public static final int DEFAULT_GGA_OFFSET = 200;
+
+	/** Default minimum time between two event emissions in ms. */
+	public static final int DEFAULT_MIN_SPACING = 100;
+
+	/** Longest time a write to a client may make no progress before it is evicted, in ms. */
+	public static final int WRITE_DEADLINE = 5000;
+
+	/** Period of the watchdog checking the clients in ms. */
+	private static final int WATCHDOG_PERIOD = 1000;
+	private static final int STOP_TIMEOUT = 2000;
+
+	/**
+	 * Gets the events of the server, called by its threads.
+	 */
+	public interface Listener {
+		/**
+		 * A client connected, called before it gets any sentence, e.g. to
+		 * restore its subscription.
+		 */
+		void onConnected(Connection connection);
+
+		/**
+		 * A client was removed, by its transport, the watchdog or
+		 * {@link NMEAServer#removeClient(Connection)}. Not called by
+		 * {@link NMEAServer#stop()}.
+		 */
+		void onDisconnected(Connection connection);
+
+		/**
+		 * A client was evicted by the watchdog, it is removed right after.
+		 *
+		 * @param reason
+		 *            why it was stalled.
+		 */
+		void onEvicted(Connection connection, String reason);
+
+		/**
+		 * A client chose a subscription, by a {@link Subscription#SENTENCE}
+		 * or a gpsd WATCH.
+		 */
+		void onSubscribed(Connection connection, Subscription subscription);
+
+		/**
+		 * The RMC emission ran, whether or not it sent anything, e.g. to
+		 * show or record the fix.
+		 *
+		 * @param fix
+		 *            the current fix.
+		 */
+		void onTick(Fix fix);
+	}
+
+	private final Metrics mMetrics;
+	private final ThreadScope mScope;
+	private final ClientRegistry mClients = new ClientRegistry();
+	private final Map<Connection, Subscription> mSubscriptions = new ConcurrentHashMap<Connection, Subscription>();
+	private final SentenceCache mSentenceCache = new SentenceCache(SentenceCache.DEFAULT_BUDGET);
+	private final List<Transport> mTransports = new ArrayList<Transport>();
+	private final Metrics.Counter mEvictions;
+	private final Metrics.Counter mSynthesised;
+	private final Metrics.Counter mPassThroughEpochs;
+	// ticks on whole UTC multiples of the interval
+	private final UtcClock mClock = new UtcClock();
+
+	// settings of the emissions, see start()
+	private int mInterval = DEFAULT_INTERVAL;
+	private int mGGAOffset = DEFAULT_GGA_OFFSET;
+	private int mEmissionMode = EMISSION_TIMER;
+	private int mMinSpacing = DEFAULT_MIN_SPACING;
+	private volatile int mStaleAfter;
+	private volatile int mStalePolicy = STALE_INVALID;
+	// null if dead reckoning is off
+	private volatile DeadReckoning mDeadReckoning;
+	// subscription of the clients that didn't choose one
+	private volatile Subscription mDefaultSubscription;
+	private volatile PassThrough mPassThrough;
+
+	private EmissionScheduler mScheduler;
+	private volatile EmissionScheduler.Trigger mFixTrigger;
+	// System.nanoTime() of the last sent sentences
+	private volatile long mLastEmission;
+	private volatile Listener mListener;
+	// current fix, replaced as a whole by the single fix source
+	private volatile Fix mFix;
+	private long mFixSequence;
+
+	/**
+	 * @param dialect
+	 *            dialect of the clients without a subscription.
+	 * @param metrics
+	 *            gets the metrics of the server.
+	 */
+	public NMEAServer(SentenceDialect dialect, Metrics metrics) {
+		mMetrics = metrics;
+		mScope = new ThreadScope("NMEAServer", true);
+		mEvictions = metrics.counter("watchdog.evictions");
+		mSynthesised = metrics.counter("emission.synthesised_frames");
+		mPassThroughEpochs = metrics.counter("source.passthrough_epochs");
+		mPassThrough = new PassThrough(0, mPassThroughListener);
+		setDialect(dialect);
+	}
+
+	/**
+	 * @return the scope of the client threads, for the transports.
+	 */
+	public ThreadScope getScope() {
+		return mScope;
+	}
+
+	/**
+	 * @return the listener the transports report their clients to.
+	 */
+	public Transport.Listener getTransportListener() {
+		return mTransportListener;
+	}
+
+	/**
+	 * @param listener
+	 *            gets the events, null for none.
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * @param dialect
+	 *            dialect of the clients without a subscription.
+	 */
+	public void setDialect(SentenceDialect dialect) {
+		mDefaultSubscription = new Subscription(Subscription.ALL_SENTENCES, 1, dialect);
+	}
+
+	/**
+	 * @return the subscription of the clients that didn't choose one.
+	 */
+	public Subscription getDefaultSubscription() {
+		return mDefaultSubscription;
+	}
+
+	/**
+	 * Sets the timed emissions, used from the next {@link #start()}.
+	 *
+	 * @param interval
+	 *            update interval in ms.
+	 * @param ggaOffset
+	 *            GGA follows RMC by this offset in ms, but never later than
+	 *            the middle of the interval. With 0 both are sent in one
+	 *            write.
+	 */
+	public synchronized void setInterval(int interval, int ggaOffset) {
+		mInterval = interval;
+		mGGAOffset = ggaOffset;
+	}
+
+	/**
+	 * Sets the emission mode, used from the next {@link #start()}.
+	 *
+	 * @param mode
+	 *            e.g. {@link #EMISSION_EVENT}.
+	 * @param minSpacing
+	 *            minimum time between two event emissions in ms.
+	 */
+	public synchronized void setEmissionMode(int mode, int minSpacing) {
+		mEmissionMode = mode;
+		mMinSpacing = minSpacing;
+	}
+
+	/**
+	 * @param staleAfter
+	 *            fixes older than this are stale, in ms, 0 to disable.
+	 * @param policy
+	 *            what to do with stale fixes, e.g. {@link #STALE_SUPPRESS}.
+	 */
+	public void setStalePolicy(int staleAfter, int policy) {
+		mStaleAfter = staleAfter;
+		mStalePolicy = policy;
+	}
+
+	/**
+	 * @param deadReckoning
+	 *            predicts the position between the fixes, null for none.
+	 */
+	public void setDeadReckoning(DeadReckoning deadReckoning) {
+		if (deadReckoning != null && mFix != null && !mFix.isCached())
+			deadReckoning.update(mFix);
+		mDeadReckoning = deadReckoning;
+	}
+
+	/**
+	 * Replaces the pass-through of the chip's sentences.
+	 *
+	 * @param types
+	 *            forwarded types, see {@link PassThrough#parseTypes(String)}.
+	 * @return the new pass-through, the chip's sentences go there.
+	 */
+	public PassThrough setPassThrough(int types) {
+		mPassThrough = new PassThrough(types, mPassThroughListener);
+		return mPassThrough;
+	}
+
+	/**
+	 * @return the pass-through the chip's sentences go to.
+	 */
+	public PassThrough getPassThrough() {
+		return mPassThrough;
+	}
+
+	/**
+	 * @return the clock of the ticks, the fix source corrects it with the
+	 *         time of the GPS fixes.
+	 */
+	public UtcClock getClock() {
+		return mClock;
+	}
+
+	/**
+	 * @return number of connected clients.
+	 */
+	public int getClientCount() {
+		return mClients.size();
+	}
+
+	/**
+	 * @return the connected clients.
+	 */
+	public Iterable<Connection> getClients() {
+		return mClients;
+	}
+
+	/**
+	 * Gets the names and addresses of the connected clients.
+	 */
+	public void getDevices(List<String> names, List<String> addresses) {
+		mClients.getDevices(names, addresses);
+	}
+
+	/**
+	 * Starts a transport, it is cancelled by {@link #stop()}.
+	 */
+	public synchronized void addTransport(Transport transport) throws IOException {
+		transport.start();
+		mTransports.add(transport);
+	}
+
+	/**
+	 * Adds a client of a transport that doesn't report to
+	 * {@link #getTransportListener()}.
+	 */
+	public void addClient(Connection connection) {
+		Listener listener = mListener;
+		if (listener != null)
+			listener.onConnected(connection);
+		mClients.add(connection, connection.getDeviceName(),
+				connection.getDeviceAddress());
+	}
+
+	/**
+	 * Removes a client and closes its connection.
+	 *
+	 * @return false if it was removed before, e.g. by the watchdog and the
+	 *         failing reader both.
+	 */
+	public boolean removeClient(Connection connection) {
+		if (!mClients.remove(connection))
+			return false;
+		mSubscriptions.remove(connection);
+		connection.cancel();
+		Listener listener = mListener;
+		if (listener != null)
+			listener.onDisconnected(connection);
+		return true;
+	}
+
+	/**
+	 * Queues a frame for all clients, the frame is shared by all of them.
+	 */
+	public void write(Frame frame) {
+		for (Connection conn : mClients) {
+			conn.write(frame);
+		}
+	}
+
+	/**
+	 * @param connection
+	 *            a connected client.
+	 * @return the subscription of the client.
+	 */
+	public Subscription getSubscription(Connection connection) {
+		Subscription subscription = mSubscriptions.get(connection);
+		return subscription != null ? subscription : mDefaultSubscription;
+	}
+
+	/**
+	 * @param connection
+	 *            a connected client.
+	 * @param subscription
+	 *            the new subscription, null for the default one.
+	 */
+	public void setSubscription(Connection connection, Subscription subscription) {
+		if (subscription != null)
+			mSubscriptions.put(connection, subscription);
+		else
+			mSubscriptions.remove(connection);
+	}
+
+	/**
+	 * Publishes the current fix, called by the single fix source. The event
+	 * emission sends it right away.
+	 */
+	public void setFix(Fix fix) {
+		mFix = fix;
+		// the fix of the previous run isn't extrapolated
+		DeadReckoning deadReckoning = mDeadReckoning;
+		if (deadReckoning != null && !fix.isCached())
+			deadReckoning.update(fix);
+		EmissionScheduler.Trigger trigger = mFixTrigger;
+		if (trigger != null)
+			trigger.fire();
+	}
+
+	/**
+	 * @return the current fix or null.
+	 */
+	public Fix getFix() {
+		return mFix;
+	}
+
+	/**
+	 * @return a sequence number for the next fix of the source.
+	 */
+	public synchronized long nextSequence() {
+		return ++mFixSequence;
+	}
+
+	/**
+	 * (Re)starts the emissions with the current settings.
+	 *
+	 * In the event mode RMC and GGA are sent together as soon as a new fix
+	 * arrives, the timed emission only runs if nothing was sent for an update
+	 * interval, so the clients learn about a stale fix.
+	 */
+	public synchronized void start() {
+		stopEmissions();
+		mScheduler = new EmissionScheduler(mMetrics, mClock);
+		if (mEmissionMode == EMISSION_EVENT) {
+			mFixTrigger = mScheduler.trigger(new EmissionTask(false,
+					SentenceDialect.RMC, SentenceDialect.GGA), mMinSpacing);
+			mScheduler.schedule(new EmissionTask(true, SentenceDialect.RMC,
+					SentenceDialect.GGA), mInterval, 0);
+		} else if (mGGAOffset <= 0) {
+			mScheduler.schedule(new EmissionTask(false, SentenceDialect.RMC,
+					SentenceDialect.GGA), mInterval, 0);
+		} else {
+			int ggaOffset = Math.min(mGGAOffset, mInterval / 2);
+			mScheduler.schedule(new EmissionTask(false, SentenceDialect.RMC), mInterval, 0);
+			mScheduler.schedule(new EmissionTask(false, SentenceDialect.GGA), mInterval, ggaOffset);
+		}
+		mScheduler.schedule(new Watchdog(), WATCHDOG_PERIOD, 0);
+	}
+
+	/**
+	 * @return the counters of the running emissions and the sentence cache,
+	 *         null if they aren't running.
+	 */
+	public synchronized String getEmissionStats() {
+		if (mScheduler == null)
+			return null;
+		return "emissions: " + mScheduler.getRuns() + " run, "
+				+ mScheduler.getSkipped() + " skipped, "
+				+ mScheduler.getErrors() + " failed, "
+				+ mScheduler.getCoalesced() + " coalesced, max jitter "
+				+ mScheduler.getMaxJitter() / 1000 + "us, clock offset "
+				+ mClock.getOffset() + "ms; sentence cache: "
+				+ mSentenceCache.getHits() + " hits, "
+				+ mSentenceCache.getMisses() + " misses, "
+				+ mSentenceCache.getEvictions() + " evictions";
+	}
+
+	/**
+	 * Stops the emissions, the transports and all clients.
+	 *
+	 * @return number of client threads that didn't stop in time, 0 if all
+	 *         stopped.
+	 */
+	public synchronized int stop() {
+		stopEmissions();
+		for (Transport transport : mTransports) {
+			transport.cancel();
+		}
+		mTransports.clear();
+		for (Connection conn : mClients) {
+			mClients.remove(conn);
+			mSubscriptions.remove(conn);
+			conn.cancel();
+		}
+		if (!mScope.close(STOP_TIMEOUT))
+			return mScope.size();
+		return 0;
+	}
+
+	private void stopEmissions() {
+		if (mFixTrigger != null) {
+			mFixTrigger.cancel();
+			mFixTrigger = null;
+		}
+		if (mScheduler != null) {
+			mScheduler.shutdown();
+			mScheduler = null;
+		}
+	}
+
+	private final Broadcast.Subscriptions mSubscriptionLookup = new Broadcast.Subscriptions() {
+		@Override
+		public Subscription getSubscription(Connection connection) {
+			return NMEAServer.this.getSubscription(connection);
+		}
+	};
+
+	private final Transport.Listener mTransportListener = new Transport.Listener() {
+		@Override
+		public void onConnected(Connection connection) {
+			addClient(connection);
+		}
+
+		@Override
+		public void onDisconnected(Connection connection) {
+			removeClient(connection);
+		}
+
+		@Override
+		public void onSentence(Connection connection, NMEASentence sentence) {
+			if (Subscription.isSubscription(sentence))
+				subscribe(connection, Subscription.parse(sentence,
+						getSubscription(connection)));
+		}
+
+		@Override
+		public void onCommand(Connection connection, String command) {
+			Subscription subscription = GpsdProtocol.onCommand(command,
+					connection, getSubscription(connection),
+					mDefaultSubscription.getDialect(), mFix);
+			if (subscription != null)
+				subscribe(connection, subscription);
+		}
+	};
+
+	private void subscribe(Connection connection, Subscription subscription) {
+		mSubscriptions.put(connection, subscription);
+		Listener listener = mListener;
+		if (listener != null)
+			listener.onSubscribed(connection, subscription);
+	}
+
+	/**
+	 * Sends the chip's own sentences of an epoch in one write, every client
+	 * gets the types it subscribed to.
+	 */
+	private final PassThrough.Listener mPassThroughListener = new PassThrough.Listener() {
+		@Override
+		public void onEpoch(PassThrough.Epoch epoch) {
+			mPassThroughEpochs.increment();
+			if (mClients.size() > 0)
+				Broadcast.forward(mClients, mSubscriptionLookup, epoch);
+		}
+	};
+
+	/**
+	 * Emission of one or more sentence types, the sentences of one run are
+	 * sent in one write, see {@link Broadcast}.
+	 */
+	private class EmissionTask implements Runnable {
+		private final int[] mSentences;
+		private final boolean mIdleOnly;
+		private final Broadcast mBroadcast;
+
+		/**
+		 * @param idleOnly
+		 *            only send if nothing was sent for an update interval,
+		 *            the heartbeat of the event mode.
+		 * @param sentences
+		 *            sentence types, e.g. {@link SentenceDialect#RMC}
+		 */
+		EmissionTask(boolean idleOnly, int... sentences) {
+			mIdleOnly = idleOnly;
+			mSentences = sentences;
+			mBroadcast = new Broadcast(sentences, mSentenceCache, mSynthesised);
+		}
+
+		@Override
+		public void run() {
+			// read once, so all uses see the same fix
+			Fix fix = mFix;
+			long now = System.nanoTime();
+			Listener listener = mListener;
+			if (fix != null && listener != null
+					&& mSentences[0] == SentenceDialect.RMC)
+				listener.onTick(fix);
+			if (fix == null || mClients.size() == 0)
+				return;
+			if (mIdleOnly && now - mLastEmission < mInterval * 1000000L)
+				return;
+
+			int status = SentenceDialect.STATUS_VALID;
+			// the fix of the previous run is sent like a stale one
+			if (fix.isCached()
+					|| (mStaleAfter > 0 && fix.getAge(now) > mStaleAfter)) {
+				if (mStalePolicy == STALE_SUPPRESS)
+					return;
+				status = SentenceDialect.STATUS_INVALID;
+			} else {
+				// the position at this emission, until the next real fix
+				DeadReckoning deadReckoning = mDeadReckoning;
+				Fix predicted = deadReckoning != null ? deadReckoning.predict(now,
+						mClock.toUtc(now)) : null;
+				if (predicted != null && predicted.getSequence() == fix.getSequence()) {
+					fix = predicted;
+					status = SentenceDialect.STATUS_ESTIMATED;
+				}
+			}
+
+			int sentences = 0;
+			int forwarded = 0;
+			PassThrough passThrough = mPassThrough;
+			for (int sentence : mSentences) {
+				sentences |= 1 << sentence;
+				// the NMEA clients get the chip's own sentence instead
+				int type = sentence == SentenceDialect.RMC ? NMEASentence.TYPE_RMC : NMEASentence.TYPE_GGA;
+				if (passThrough.forwards(type) && passThrough.isLive(type)) {
+					forwarded |= 1 << sentence;
+				}
+			}
+
+			// create our own sentences from the current fix
+			if (mBroadcast.send(mClients, mSubscriptionLookup, fix, status,
+					sentences, forwarded, mClock.toUtc(now), now)) {
+				mLastEmission = now;
+			}
+		}
+	}
+
+	/**
+	 * Evicts the clients whose write is stuck, e.g. a camera that went out of
+	 * range, before the OS notices the dead link. Closing the connection
+	 * unblocks the write.
+	 */
+	private class Watchdog implements Runnable {
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			for (Connection conn : mClients) {
+				String reason = conn.getLiveness().check(now, WRITE_DEADLINE);
+				if (reason == null || !mClients.contains(conn))
+					continue;
+				mEvictions.increment();
+				Listener listener = mListener;
+				if (listener != null)
+					listener.onEvicted(conn, reason);
+				removeClient(conn);
+			}
+		}
+	}
+
+	/**
+	 * Serves a replayed NMEA log over TCP until the process is stopped.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("usage: NMEAServer port log [speed [dialect [interval]]]");
+			System.exit(2);
+		}
+		int port = Integer.parseInt(args[0]);
+		File log = new File(args[1]);
+		double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+		SentenceDialect dialect = SentenceDialects.get(args.length > 3 ? args[3] : null);
+		int interval = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_INTERVAL;
+
+		final Metrics metrics = new Metrics();
+		final NMEAServer server = new NMEAServer(dialect, metrics);
+		// RMC and GGA in one write
+		server.setInterval(interval, 0);
+		server.setListener(new Listener() {
+			@Override
+			public void onConnected(Connection connection) {
+			}
+
+			@Override
+			public void onDisconnected(Connection connection) {
+			}
+
+			@Override
+			public void onEvicted(Connection connection, String reason) {
+				System.err.println("evicting " + connection.getDeviceName() + ": " + reason);
+			}
+
+			@Override
+			public void onSubscribed(Connection connection, Subscription subscription) {
+			}
+
+			@Override
+			public void onTick(Fix fix) {
+			}
+		});
+		server.addTransport(new SocketTransport(port, server.getTransportListener(),
+				OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.OVERFLOW_DROP_OLDEST,
+				metrics, server.getScope()));
+		final ReplaySource replay = new ReplaySource(log, speed, true,
+				new ReplaySource.Listener() {
+					private final FixBuilder mBuilder = new FixBuilder("gps");
+
+					@Override
+					public void onSentence(NMEASentence sentence) {
+						server.getPassThrough().onSentence(sentence);
+						if (mBuilder.update(sentence))
+							server.setFix(mBuilder.build(server.nextSequence(),
+									System.nanoTime()));
+					}
+
+					@Override
+					public void onReplayEnd(IOException e) {
+						if (e != null)
+							System.err.println("replay failed: " + e);
+					}
+				});
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				replay.cancel();
+				int running = server.stop();
+				if (running > 0)
+					System.err.println(running + " client threads didn't stop");
+				System.err.print(metrics.toText());
+			}
+		});
+		replay.start();
+		server.start();
+		System.err.println("serving " + log + " on port " + port + " in "
+				+ dialect.getName() + (server.getScope().isVirtual()
+						? " with virtual threads" : " with platform threads"));
+		// the threads of the server are daemons
+		Thread.currentThread().join();
+	}
+}
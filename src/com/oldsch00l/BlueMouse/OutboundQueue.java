@@ -0,0 +1,194 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ *
+ * Producers never block, if the queue is full the overflow policy decides
+ * what happens. The queue is drained by a single writer which waits in
+ * {@link #take()} until there is something to write.
+ */
+public class OutboundQueue {
+	/** Drop the oldest frame, so the client always gets the freshest fix. */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	/** Drop every waiting frame and keep only the newest one. */
+	public static final int OVERFLOW_COALESCE = 1;
+	/** Refuse the frame, the connection should be closed. */
+	public static final int OVERFLOW_DISCONNECT = 2;
+
+	public static final int DEFAULT_CAPACITY = 16;
+
+	private final ConcurrentLinkedQueue<Frame> mQueue = new ConcurrentLinkedQueue<Frame>();
+	private final AtomicInteger mSize = new AtomicInteger();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final int mCapacity;
+	private final int mPolicy;
+
+	private volatile Thread mWaiter;
+	private volatile boolean mClosed;
+
+	/**
+	 * @param capacity
+	 *            maximal number of waiting frames.
+	 * @param policy
+	 *            what to do if the queue is full, e.g.
+	 *            {@link #OVERFLOW_DROP_OLDEST}
+	 */
+	public OutboundQueue(int capacity, int policy) {
+		mCapacity = capacity;
+		mPolicy = policy;
+	}
+
+	/**
+	 * Converts the name of an overflow policy as used in the preferences.
+	 *
+	 * @param name
+	 *            "drop_oldest", "coalesce" or "disconnect".
+	 * @return the policy, {@link #OVERFLOW_DROP_OLDEST} for unknown names.
+	 */
+	public static int parsePolicy(String name) {
+		if ("coalesce".equals(name))
+			return OVERFLOW_COALESCE;
+		if ("disconnect".equals(name))
+			return OVERFLOW_DISCONNECT;
+		return OVERFLOW_DROP_OLDEST;
+	}
+
+	/**
+	 * Adds a frame without blocking.
+	 *
+	 * @param frame
+	 *            frame to add.
+	 * @return false if the queue is closed or full with the
+	 *         {@link #OVERFLOW_DISCONNECT} policy.
+	 */
+	public boolean offer(Frame frame) {
+		if (mClosed)
+			return false;
+		if (mSize.incrementAndGet() > mCapacity) {
+			switch (mPolicy) {
+			case OVERFLOW_DISCONNECT:
+				mSize.decrementAndGet();
+				mDropped.incrementAndGet();
+				return false;
+			case OVERFLOW_COALESCE:
+				while (poll() != null) {
+					mDropped.incrementAndGet();
+				}
+				break;
+			default:
+				if (poll() != null)
+					mDropped.incrementAndGet();
+				break;
+			}
+		}
+		mQueue.offer(frame);
+		Thread waiter = mWaiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+		return true;
+	}
+
+	/**
+	 * @return the oldest frame or null if the queue is empty.
+	 */
+	public Frame poll() {
+		Frame frame = mQueue.poll();
+		if (frame != null)
+			mSize.decrementAndGet();
+		return frame;
+	}
+
+	/**
+	 * Waits for the next frame, only one thread may call this.
+	 *
+	 * @return the oldest frame or null if the queue was closed.
+	 * @throws InterruptedException
+	 *             if the writer was interrupted while waiting.
+	 */
+	public Frame take() throws InterruptedException {
+		Frame frame;
+		while ((frame = poll()) == null) {
+			if (mClosed)
+				return null;
+			mWaiter = Thread.currentThread();
+			// check again, a frame might have been added before we registered
+			frame = poll();
+			if (frame != null || mClosed) {
+				mWaiter = null;
+				return frame;
+			}
+			LockSupport.park(this);
+			mWaiter = null;
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return frame;
+	}
+
+	/**
+	 * Waits a limited time for the next frame, only the thread calling
+	 * {@link #take()} may call this.
+	 *
+	 * @param timeout
+	 *            longest wait in nanoseconds.
+	 * @return the oldest frame or null if none arrived in time or the queue
+	 *         was closed.
+	 * @throws InterruptedException
+	 *             if the writer was interrupted while waiting.
+	 */
+	public Frame poll(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + timeout;
+		Frame frame;
+		while ((frame = poll()) == null) {
+			long wait = deadline - System.nanoTime();
+			if (mClosed || wait <= 0)
+				return null;
+			mWaiter = Thread.currentThread();
+			frame = poll();
+			if (frame != null || mClosed) {
+				mWaiter = null;
+				return frame;
+			}
+			LockSupport.parkNanos(this, wait);
+			mWaiter = null;
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return frame;
+	}
+
+	/**
+	 * Drops all waiting frames and wakes up the writer.
+	 */
+	public void close() {
+		mClosed = true;
+		mQueue.clear();
+		mSize.set(0);
+		Thread waiter = mWaiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * @return number of waiting frames.
+	 */
+	public int size() {
+		return mSize.get();
+	}
+
+	/**
+	 * @return number of frames dropped because the queue was full.
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+}
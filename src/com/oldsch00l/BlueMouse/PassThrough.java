@@ -0,0 +1,355 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Forwards the GPS chip's own sentences instead of re-synthesising them.
+ *
+ * The sentences the chip sends for one fix (an epoch) are collected and
+ * handed on as one frame, so the clients get a single write per epoch at the
+ * chip's own rate. A new epoch starts when the time field of RMC, GGA or ZDA
+ * changes, the timestamp of the NmeaListener isn't used as some ROMs pass the
+ * current time with every sentence. The type of the last sentence of an epoch
+ * is learned, so later epochs are sent as soon as that sentence arrives
+ * instead of waiting for the next epoch.
+ *
+ * Sentences already in the batch are dropped, as are RMC, GGA and ZDA
+ * sentences equal to the ones forwarded before. RMC and GGA without a fix are
+ * never forwarded, those are synthesised from the network location as before.
+ *
+ * The sentences are parsed and batched on the listener thread only,
+ * {@link #isLive(int)} may be called from any thread.
+ */
+public class PassThrough implements NMEAParser.Listener {
+	/** A chip sentence older than this doesn't replace a synthesised one. */
+	public static final long LIVE_TIMEOUT = 2000;
+
+	private static final int TYPE_COUNT = NMEASentence.TYPE_ZDA + 1;
+	private static final int MAX_LINES = 32;
+	private static final int NO_TIME = Integer.MIN_VALUE;
+	private static final String[] TYPE_NAMES = { null, "RMC", "GGA", "GSA",
+			"GSV", "VTG", "ZDA" };
+
+	/**
+	 * Gets the batched sentences of an epoch.
+	 */
+	public interface Listener {
+		/**
+		 * @param epoch
+		 *            sentences of one epoch.
+		 */
+		public void onEpoch(Epoch epoch);
+	}
+
+	private final int mTypes;
+	private final Listener mListener;
+
+	// sentences of the current epoch
+	private final NMEAEncoder mBatch = new NMEAEncoder(1024);
+	private final int[] mLineStart = new int[MAX_LINES];
+	private final int[] mLineLength = new int[MAX_LINES];
+	private final int[] mLineType = new int[MAX_LINES];
+	private int mLines;
+	// System.nanoTime() when the first sentence of the batch arrived
+	private long mBatchStart;
+
+	private int mTimeOfDay = NO_TIME;
+	private int mLastType = NMEASentence.TYPE_UNKNOWN;
+	private int mEndType = NMEASentence.TYPE_UNKNOWN;
+
+	// last forwarded RMC, GGA and ZDA
+	private final byte[][] mLastTimed = new byte[TYPE_COUNT][];
+	private final int[] mLastTimedLength = new int[TYPE_COUNT];
+
+	// nanoTime of the last valid sentence of each type
+	private final AtomicLongArray mLastValid = new AtomicLongArray(TYPE_COUNT);
+
+	private long mEpochs;
+	private long mDuplicates;
+
+	/**
+	 * @param types
+	 *            the forwarded types, see {@link #parseTypes(String)}.
+	 * @param listener
+	 *            gets the batched sentences.
+	 */
+	public PassThrough(int types, Listener listener) {
+		mTypes = types;
+		mListener = listener;
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			mLastValid.set(type, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Parses a list of sentence types like "RMC,GGA,GSV" to the type mask,
+	 * "all" forwards all known types. Unknown names are ignored.
+	 *
+	 * @param types
+	 *            comma separated types, may be null.
+	 * @return bit 1 << type is set for every forwarded type.
+	 */
+	public static int parseTypes(String types) {
+		if (types == null)
+			return 0;
+		int mask = 0;
+		for (String name : types.split(",")) {
+			name = name.trim();
+			if ("all".equalsIgnoreCase(name))
+				return (1 << TYPE_COUNT) - 2;
+			for (int type = 1; type < TYPE_COUNT; type++) {
+				if (TYPE_NAMES[type].equalsIgnoreCase(name))
+					mask |= 1 << type;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * @param type
+	 *            sentence type, e.g. {@link NMEASentence#TYPE_RMC}.
+	 * @return true if sentences of this type are forwarded.
+	 */
+	public boolean forwards(int type) {
+		return (mTypes & 1 << type) != 0;
+	}
+
+	/**
+	 * @param type
+	 *            sentence type, e.g. {@link NMEASentence#TYPE_RMC}.
+	 * @return true if the chip sent a valid sentence of this type within
+	 *         {@link #LIVE_TIMEOUT}.
+	 */
+	public boolean isLive(int type) {
+		long last = mLastValid.get(type);
+		return last != Long.MIN_VALUE
+				&& System.nanoTime() - last < LIVE_TIMEOUT * 1000000L;
+	}
+
+	@Override
+	public void onSentence(NMEASentence sentence) {
+		int type = sentence.getType();
+		if (type == NMEASentence.TYPE_UNKNOWN)
+			return;
+
+		boolean timed = type == NMEASentence.TYPE_RMC
+				|| type == NMEASentence.TYPE_GGA
+				|| type == NMEASentence.TYPE_ZDA;
+		if (timed) {
+			int time = sentence.getTimeOfDay(1);
+			if (time >= 0 && time != mTimeOfDay) {
+				if (mTimeOfDay != NO_TIME)
+					nextEpoch();
+				mTimeOfDay = time;
+			}
+		}
+		mLastType = type;
+
+		if (isValid(sentence)) {
+			mLastValid.set(type, System.nanoTime());
+			if (forwards(type)) {
+				if (timed && equalsLastTimed(sentence)) {
+					mDuplicates++;
+				} else {
+					add(sentence, timed);
+				}
+			}
+		}
+
+		if (type == mEndType && isLastPart(sentence))
+			flush();
+	}
+
+	/**
+	 * Hands the collected sentences on.
+	 */
+	public void flush() {
+		if (mLines > 0) {
+			mListener.onEpoch(new Epoch(Frame.copyOf(mBatch, mLines).withStamp(new FixTrace.Stamp(
+					mEpochs, true, mBatchStart, mBatchStart, System.nanoTime())),
+					mLineStart, mLineLength, mLineType, mLines));
+			mEpochs++;
+		}
+		mBatch.reset();
+		mLines = 0;
+	}
+
+	/**
+	 * @return number of forwarded epochs.
+	 */
+	public long getEpochs() {
+		return mEpochs;
+	}
+
+	/**
+	 * @return number of dropped duplicate sentences.
+	 */
+	public long getDuplicates() {
+		return mDuplicates;
+	}
+
+	private void nextEpoch() {
+		if (mLastType != NMEASentence.TYPE_UNKNOWN)
+			mEndType = mLastType;
+		mLastType = NMEASentence.TYPE_UNKNOWN;
+		flush();
+	}
+
+	private void add(NMEASentence sentence, boolean timed) {
+		byte[] buffer = sentence.getBuffer();
+		int length = sentence.getLength();
+		for (int line = 0; line < mLines; line++) {
+			if (mLineLength[line] == length
+					&& regionEquals(mBatch.getBuffer(), mLineStart[line],
+							buffer, length)) {
+				mDuplicates++;
+				return;
+			}
+		}
+		if (mLines == MAX_LINES)
+			flush();
+		if (mLines == 0)
+			mBatchStart = System.nanoTime();
+
+		mLineStart[mLines] = mBatch.getLength();
+		mLineLength[mLines] = length;
+		mLineType[mLines] = sentence.getType();
+		mLines++;
+		mBatch.append(buffer, 0, length).appendLineEnd();
+
+		if (timed) {
+			byte[] last = mLastTimed[sentence.getType()];
+			if (last == null) {
+				last = new byte[NMEAParser.MAX_LENGTH];
+				mLastTimed[sentence.getType()] = last;
+			}
+			System.arraycopy(buffer, 0, last, 0, length);
+			mLastTimedLength[sentence.getType()] = length;
+		}
+	}
+
+	private boolean equalsLastTimed(NMEASentence sentence) {
+		int type = sentence.getType();
+		return mLastTimed[type] != null
+				&& mLastTimedLength[type] == sentence.getLength()
+				&& regionEquals(mLastTimed[type], 0, sentence.getBuffer(),
+						sentence.getLength());
+	}
+
+	private static boolean regionEquals(byte[] a, int offset, byte[] b,
+			int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (a[offset + i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * RMC and GGA are only valid with a fix.
+	 */
+	private static boolean isValid(NMEASentence sentence) {
+		switch (sentence.getType()) {
+		case NMEASentence.TYPE_RMC:
+			return sentence.getChar(NMEASentence.RMC_STATUS) != 'V';
+		case NMEASentence.TYPE_GGA:
+			// a hemisphere is only given with a fix
+			return !sentence.isEmpty(NMEASentence.GGA_LONGITUDE + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * The sentences of an epoch, the clients get the types they subscribed
+	 * to. Only used by the thread of the {@link Listener}.
+	 */
+	public static class Epoch {
+		private static final int MAX_SELECTIONS = 4;
+
+		private final Frame mFrame;
+		private final int[] mLineStart;
+		private final int[] mLineLength;
+		private final int[] mLineType;
+		private final int mTypes;
+		// frames of the recently selected masks
+		private final int[] mSelectedMasks = new int[MAX_SELECTIONS];
+		private final Frame[] mSelected = new Frame[MAX_SELECTIONS];
+		private int mSelections;
+
+		Epoch(Frame frame, int[] lineStart, int[] lineLength, int[] lineType,
+				int lines) {
+			mFrame = frame;
+			mLineStart = new int[lines];
+			mLineLength = new int[lines];
+			mLineType = new int[lines];
+			System.arraycopy(lineStart, 0, mLineStart, 0, lines);
+			System.arraycopy(lineLength, 0, mLineLength, 0, lines);
+			System.arraycopy(lineType, 0, mLineType, 0, lines);
+			int types = 0;
+			for (int line = 0; line < lines; line++) {
+				types |= Subscription.getTypeBit(lineType[line]);
+			}
+			mTypes = types;
+		}
+
+		/**
+		 * @return all sentences, each with CR LF.
+		 */
+		public Frame getFrame() {
+			return mFrame;
+		}
+
+		/**
+		 * @return the sentence types in the epoch as a
+		 *         {@link Subscription#getSentences()} mask.
+		 */
+		public int getTypes() {
+			return mTypes;
+		}
+
+		/**
+		 * @param sentences
+		 *            the wanted types as a {@link Subscription#getSentences()}
+		 *            mask.
+		 * @return the sentences of these types, null if there are none.
+		 */
+		public Frame select(int sentences) {
+			sentences &= mTypes;
+			if (sentences == 0)
+				return null;
+			if (sentences == mTypes)
+				return mFrame;
+			for (int i = 0; i < mSelections; i++) {
+				if (mSelectedMasks[i] == sentences)
+					return mSelected[i];
+			}
+
+			byte[] data = mFrame.getData();
+			NMEAEncoder encoder = new NMEAEncoder(mFrame.getLength());
+			int lines = 0;
+			for (int line = 0; line < mLineType.length; line++) {
+				if ((sentences & Subscription.getTypeBit(mLineType[line])) != 0) {
+					encoder.append(data, mLineStart[line], mLineLength[line]).appendLineEnd();
+					lines++;
+				}
+			}
+			Frame frame = new Frame(encoder.getBuffer(), encoder.getLength(),
+					lines, mFrame.getStamp());
+			if (mSelections < MAX_SELECTIONS) {
+				mSelectedMasks[mSelections] = sentences;
+				mSelected[mSelections] = frame;
+				mSelections++;
+			}
+			return frame;
+		}
+	}
+
+	/**
+	 * GSV is split in several sentences, only the last one ends an epoch.
+	 */
+	private static boolean isLastPart(NMEASentence sentence) {
+		return sentence.getType() != NMEASentence.TYPE_GSV
+				|| sentence.getInt(NMEASentence.GSV_MESSAGE, 0) >= sentence
+						.getInt(NMEASentence.GSV_MESSAGES, 0);
+	}
+}
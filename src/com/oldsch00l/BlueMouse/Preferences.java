@@ -21,6 +21,19 @@ import android.preference.PreferenceActivity;
 public class Preferences extends PreferenceActivity implements OnSharedPreferenceChangeListener {
 	public static final String KEY_UPDATE_INTERVAL = "update_interval";
 	public static final String CONNECT_LIST = "force_connection";
+	public static final String KEY_DIALECT = "dialect";
+	public static final String KEY_OVERFLOW_POLICY = "overflow_policy";
+	public static final String KEY_GGA_OFFSET = "gga_offset";
+	public static final String KEY_TCP_PORT = "tcp_port";
+	public static final String KEY_PASS_THROUGH = "pass_through";
+	public static final String KEY_RECORD_TRACK = "record_track";
+	public static final String KEY_EMISSION_MODE = "emission_mode";
+	public static final String KEY_MIN_SPACING = "min_spacing";
+	public static final String KEY_STALE_AFTER = "stale_after";
+	public static final String KEY_STALE_POLICY = "stale_policy";
+	public static final String KEY_COALESCE_WINDOW = "coalesce_window";
+	public static final String KEY_DEAD_RECKONING = "dead_reckoning";
+	public static final String KEY_PREDICTION_HORIZON = "prediction_horizon";
 
 	private EditTextPreference mEditPrefUpdateInterval;
 
@@ -62,7 +75,7 @@ public class Preferences extends PreferenceActivity implements OnSharedPreferenc
 		List<CharSequence> names = new ArrayList<CharSequence>(size);
 		List<CharSequence> values = new ArrayList<CharSequence>(size);
 		names.add("Disabled");
-		values.add("disabled");
+		values.add(BlueMouseService.DEVICE_DISABLED);
 		for (BluetoothDevice dev : devices) {
 			names.add(dev.getName());
 			values.add(dev.getAddress());
@@ -85,8 +98,8 @@ public class Preferences extends PreferenceActivity implements OnSharedPreferenc
 			mEditPrefUpdateInterval.setSummary(sharedPreferences.getString(KEY_UPDATE_INTERVAL, "2000") + " ms");
 		}
 		if (key.equals(CONNECT_LIST) && mSerialService != null) {
-			mSerialService.connect(sharedPreferences.getString(CONNECT_LIST,
-					"disabled"));
+			mSerialService.selectDevice(sharedPreferences.getString(CONNECT_LIST,
+					BlueMouseService.DEVICE_DISABLED));
 		}
 	}
 
@@ -0,0 +1,253 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the devices of a target set connected.
+ *
+ * Connection attempts run in parallel on a small pool, so several cameras
+ * reconnect at once after a dropout instead of one after the other. A failed
+ * attempt is retried after an exponential backoff with jitter, lost devices
+ * are retried right away. Every device has at most one attempt pending,
+ * repeated requests are collapsed.
+ *
+ * A device that connects by itself, e.g. through the accept thread, stops its
+ * attempts. A device requested once, e.g. remembered from an earlier run, is
+ * dropped from the target set when its attempt fails. An attempt that was
+ * already blocked in connecting closes its link when it succeeds.
+ *
+ * @param <L>
+ *            type of the links, e.g. a socket.
+ */
+public class ReconnectManager<L> {
+	/** Number of parallel attempts. */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** Delay after the first failure in ms, doubled with every failure. */
+	private static final long INITIAL_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+	/** Delay before reconnecting a lost device in ms. */
+	private static final long LOST_DELAY = 200;
+
+	private static final int STATE_SCHEDULED = 0;
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_CONNECTED = 2;
+
+	/**
+	 * Opens the links, called by the threads of the pool.
+	 */
+	public interface Connector<L> {
+		/**
+		 * Opens a link, blocks until it is connected.
+		 *
+		 * @param address
+		 *            address of the device.
+		 * @return the link.
+		 * @throws IOException
+		 *             if the device can't be connected.
+		 */
+		L open(String address) throws IOException;
+
+		/**
+		 * Hands over a connected link.
+		 */
+		void connected(String address, L link);
+
+		/**
+		 * Closes a link that isn't needed, the device connected meanwhile.
+		 */
+		void close(L link);
+	}
+
+	private final Connector<L> mConnector;
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final Random mRandom = new Random();
+	private final Metrics.Counter mAttempts;
+	private final Metrics.Counter mFailures;
+	// guarded by this
+	private final Map<String, Target> mTargets = new HashMap<String, Target>();
+	private boolean mShutdown;
+
+	/**
+	 * @param threads
+	 *            number of parallel attempts.
+	 * @param connector
+	 *            opens the links.
+	 * @param metrics
+	 *            gets the counters of the attempts.
+	 */
+	public ReconnectManager(int threads, Connector<L> connector, Metrics metrics) {
+		mConnector = connector;
+		mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private int mCount;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Reconnect-" + ++mCount);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mAttempts = metrics.counter("reconnect.attempts");
+		mFailures = metrics.counter("reconnect.failures");
+	}
+
+	/**
+	 * Adds a device to the target set and connects it now, unless it is
+	 * already connected or an attempt is running. A waiting retry is brought
+	 * forward.
+	 */
+	public synchronized void request(String address) {
+		request(address, false);
+	}
+
+	/**
+	 * Like {@link #request(String)}.
+	 *
+	 * @param once
+	 *            true to drop the device if the attempt fails instead of
+	 *            retrying, a device requested without once or connected
+	 *            once is kept.
+	 */
+	public synchronized void request(String address, boolean once) {
+		Target target = mTargets.get(address);
+		if (target != null && !once)
+			target.mOnce = false;
+		if (target == null) {
+			target = new Target(address);
+			target.mOnce = once;
+			mTargets.put(address, target);
+		} else if (target.mState != STATE_SCHEDULED) {
+			return;
+		} else {
+			target.mFuture.cancel(false);
+			target.mBackoff = 0;
+		}
+		schedule(target, 0);
+	}
+
+	/**
+	 * Removes a device from the target set, a running attempt still
+	 * completes.
+	 */
+	public synchronized void remove(String address) {
+		Target target = mTargets.remove(address);
+		if (target != null && target.mFuture != null)
+			target.mFuture.cancel(false);
+	}
+
+	/**
+	 * A device connected, by an attempt or by itself.
+	 */
+	public synchronized void onConnected(String address) {
+		Target target = mTargets.get(address);
+		if (target == null || target.mState == STATE_CONNECTED)
+			return;
+		if (target.mFuture != null)
+			target.mFuture.cancel(false);
+		target.mState = STATE_CONNECTED;
+		target.mBackoff = 0;
+		target.mOnce = false;
+	}
+
+	/**
+	 * A device lost its connection, it is reconnected if it is a target.
+	 */
+	public synchronized void onDisconnected(String address) {
+		Target target = mTargets.get(address);
+		if (target == null || target.mState != STATE_CONNECTED)
+			return;
+		schedule(target, LOST_DELAY);
+	}
+
+	/**
+	 * Stops all attempts, running ones still complete.
+	 */
+	public synchronized void shutdown() {
+		mShutdown = true;
+		for (String address : new ArrayList<String>(mTargets.keySet())) {
+			remove(address);
+		}
+		mExecutor.shutdownNow();
+	}
+
+	private void schedule(Target target, long delay) {
+		if (mShutdown)
+			return;
+		target.mState = STATE_SCHEDULED;
+		target.mFuture = mExecutor.schedule(target, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the next backoff with jitter between half and all of it.
+	 */
+	private long nextBackoff(Target target) {
+		target.mBackoff = target.mBackoff == 0 ? INITIAL_BACKOFF
+				: Math.min(target.mBackoff * 2, MAX_BACKOFF);
+		return target.mBackoff / 2
+				+ (long) (mRandom.nextDouble() * (target.mBackoff / 2));
+	}
+
+	private class Target implements Runnable {
+		private final String mAddress;
+		private int mState;
+		private long mBackoff;
+		// dropped after a failed attempt
+		private boolean mOnce;
+		private ScheduledFuture<?> mFuture;
+
+		Target(String address) {
+			mAddress = address;
+		}
+
+		@Override
+		public void run() {
+			synchronized (ReconnectManager.this) {
+				if (mTargets.get(mAddress) != this || mState != STATE_SCHEDULED)
+					return;
+				mState = STATE_CONNECTING;
+			}
+			mAttempts.increment();
+
+			L link = null;
+			try {
+				link = mConnector.open(mAddress);
+			} catch (IOException e) {
+				mFailures.increment();
+			} catch (RuntimeException e) {
+				// e.g. an invalid address, the target mustn't stay connecting
+				mFailures.increment();
+			}
+
+			synchronized (ReconnectManager.this) {
+				boolean wanted = mTargets.get(mAddress) == this
+						&& mState == STATE_CONNECTING;
+				if (link == null) {
+					if (wanted && mOnce)
+						mTargets.remove(mAddress);
+					else if (wanted)
+						schedule(this, nextBackoff(this));
+					return;
+				}
+				if (wanted) {
+					mState = STATE_CONNECTED;
+					mBackoff = 0;
+					mOnce = false;
+				}
+				if (!wanted || mShutdown) {
+					mConnector.close(link);
+					return;
+				}
+			}
+			mConnector.connected(mAddress, link);
+		}
+	}
+}
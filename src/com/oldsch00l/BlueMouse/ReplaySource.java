@@ -0,0 +1,181 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recorded NMEA log instead of the GPS chip.
+ *
+ * The log is memory-mapped and fed through a {@link NMEAParser}, so corrupted
+ * and truncated lines like in NMEA_samples/HOLUX_M1000 are skipped the same
+ * way as live ones. The sentences are paced by the time fields of RMC, GGA
+ * and ZDA: at speed 1 in real time, at speed N N times faster and at speed 0
+ * as fast as possible.
+ *
+ * Jumps of the log time, e.g. where logs were concatenated, are replayed
+ * without a pause.
+ */
+public class ReplaySource implements Runnable {
+	/** Longest pause between two epochs of the log, longer ones are cut. */
+	public static final int MAX_GAP = 5000;
+
+	/** Files are mapped in parts of this size. */
+	private static final int MAP_SIZE = 64 * 1024 * 1024;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	/**
+	 * Gets told when the replay ended.
+	 */
+	public interface Listener extends NMEAParser.Listener {
+		/**
+		 * @param e
+		 *            the error that stopped the replay, null at the end of the
+		 *            log or if it was cancelled.
+		 */
+		public void onReplayEnd(IOException e);
+	}
+
+	private final File mFile;
+	private final double mSpeed;
+	private final boolean mLoop;
+	private final Listener mListener;
+	private final NMEAParser mParser;
+
+	private volatile boolean mCancelled;
+	private Thread mThread;
+
+	private int mTimeOfDay = -1;
+	private long mDeadline;
+	private long mBytes;
+
+	/**
+	 * @param file
+	 *            the NMEA log.
+	 * @param speed
+	 *            replay speed, 1 for real time, 0 for as fast as possible.
+	 * @param loop
+	 *            start over at the end of the log.
+	 * @param listener
+	 *            gets the sentences, called from the replay thread.
+	 */
+	public ReplaySource(File file, double speed, boolean loop, Listener listener) {
+		mFile = file;
+		mSpeed = speed;
+		mLoop = loop;
+		mListener = listener;
+		mParser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void onSentence(NMEASentence sentence) {
+				pace(sentence);
+				if (!mCancelled)
+					mListener.onSentence(sentence);
+			}
+		});
+	}
+
+	/**
+	 * Starts the replay in its own thread.
+	 */
+	public synchronized void start() {
+		mThread = new Thread(this, "ReplaySource");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the replay, the listener gets no more sentences afterwards.
+	 */
+	public synchronized void cancel() {
+		mCancelled = true;
+		if (mThread != null)
+			LockSupport.unpark(mThread);
+	}
+
+	@Override
+	public void run() {
+		IOException error = null;
+		try {
+			do {
+				replay();
+				mTimeOfDay = -1;
+			} while (mLoop && !mCancelled);
+		} catch (IOException e) {
+			error = e;
+		}
+		mListener.onReplayEnd(error);
+	}
+
+	/**
+	 * @return the parser, for its statistics.
+	 */
+	public NMEAParser getParser() {
+		return mParser;
+	}
+
+	/**
+	 * @return number of replayed bytes.
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	private void replay() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			for (long position = 0; position < size && !mCancelled; position += MAP_SIZE) {
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(MAP_SIZE, size - position));
+				int length = map.limit();
+				for (int i = 0; i < length; i++) {
+					byte b = map.get(i);
+					mParser.feed((char) (b & 0xff));
+					if (b == '\n' && mCancelled)
+						return;
+				}
+				mBytes += length;
+			}
+			// a truncated last line
+			mParser.flush();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Waits until a sentence of a new epoch is due.
+	 */
+	private void pace(NMEASentence sentence) {
+		int type = sentence.getType();
+		if (type != NMEASentence.TYPE_RMC && type != NMEASentence.TYPE_GGA
+				&& type != NMEASentence.TYPE_ZDA)
+			return;
+		int time = sentence.getTimeOfDay(1);
+		if (time < 0 || time == mTimeOfDay)
+			return;
+
+		long now = System.nanoTime();
+		if (mTimeOfDay < 0 || mSpeed <= 0) {
+			mDeadline = now;
+		} else {
+			long gap = (time - mTimeOfDay + MILLIS_PER_DAY) % MILLIS_PER_DAY;
+			if (gap > MAX_GAP)
+				gap = 0;
+			mDeadline += (long) (gap * 1000000L / mSpeed);
+			// don't catch up after a stall, e.g. a slow listener
+			if (now - mDeadline > 1000000000L)
+				mDeadline = now;
+		}
+		mTimeOfDay = time;
+
+		while (!mCancelled && (now = System.nanoTime()) < mDeadline) {
+			LockSupport.parkNanos(this, mDeadline - now);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded sentences by fix sequence and time, dialect, sentence type and
+ * status. Predicted fixes share the sequence of their real fix, the time
+ * tells them apart.
+ *
+ * A fix is usually sent several times, e.g. when the update interval is
+ * shorter than the interval of the location updates or by the heartbeat of
+ * the event mode, and several clients may want the same dialect. Those get
+ * the frame encoded before instead of formatting the sentence again. The
+ * least recently used sentences are evicted once the cache holds more than
+ * its memory budget.
+ *
+ * Dialects that aren't {@link SentenceDialect#isCacheable() cacheable} are
+ * encoded every time.
+ */
+public class SentenceCache {
+	/** Default memory budget in bytes. */
+	public static final int DEFAULT_BUDGET = 16 * 1024;
+
+	/** Rough size of a map entry, key and frame besides the bytes. */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final int mBudget;
+	private final LinkedHashMap<Key, Frame> mFrames = new LinkedHashMap<Key, Frame>(16, 0.75f, true);
+	private final NMEAEncoder mEncoder = new NMEAEncoder();
+	// reused for lookups, a new key is only created for an insert
+	private final Key mProbe = new Key();
+	private int mSize;
+
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+
+	/**
+	 * @param budget
+	 *            memory budget in bytes.
+	 */
+	public SentenceCache(int budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Returns a sentence, encoding it if it isn't cached.
+	 *
+	 * @param fix
+	 *            the fix.
+	 * @param dialect
+	 *            dialect of the sentence.
+	 * @param sentence
+	 *            sentence type, e.g. {@link SentenceDialect#RMC}.
+	 * @param status
+	 *            status of the fix, e.g. {@link SentenceDialect#STATUS_VALID}.
+	 * @param now
+	 *            current time in milliseconds since the epoch.
+	 * @return the sentence with line end, null if the dialect doesn't know
+	 *         the type.
+	 */
+	public synchronized Frame encode(Fix fix, SentenceDialect dialect,
+			int sentence, int status, long now) {
+		boolean cacheable = dialect.isCacheable();
+		if (cacheable) {
+			mProbe.set(fix.getSequence(), fix.getTime(), dialect, sentence, status);
+			Frame frame = mFrames.get(mProbe);
+			if (frame != null) {
+				mHits++;
+				return frame;
+			}
+			mMisses++;
+		}
+
+		mEncoder.reset();
+		if (!dialect.encode(sentence, fix, status, now, mEncoder))
+			return null;
+		Frame frame = Frame.copyOf(mEncoder, 1);
+		if (cacheable)
+			put(new Key(mProbe), frame);
+		return frame;
+	}
+
+	public synchronized void clear() {
+		mFrames.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return number of sentences taken from the cache.
+	 */
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return number of cacheable sentences that had to be encoded.
+	 */
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+	/**
+	 * @return number of sentences evicted for the budget.
+	 */
+	public synchronized long getEvictions() {
+		return mEvictions;
+	}
+
+	private void put(Key key, Frame frame) {
+		mFrames.put(key, frame);
+		mSize += frame.getLength() + ENTRY_OVERHEAD;
+
+		Iterator<Map.Entry<Key, Frame>> eldest = mFrames.entrySet().iterator();
+		while (mSize > mBudget && mFrames.size() > 1) {
+			Frame evicted = eldest.next().getValue();
+			eldest.remove();
+			mSize -= evicted.getLength() + ENTRY_OVERHEAD;
+			mEvictions++;
+		}
+	}
+
+	private static class Key {
+		private long mSequence;
+		private long mTime;
+		private SentenceDialect mDialect;
+		private int mSentence;
+		private int mStatus;
+
+		Key() {
+		}
+
+		Key(Key key) {
+			set(key.mSequence, key.mTime, key.mDialect, key.mSentence, key.mStatus);
+		}
+
+		void set(long sequence, long time, SentenceDialect dialect,
+				int sentence, int status) {
+			mSequence = sequence;
+			mTime = time;
+			mDialect = dialect;
+			mSentence = sentence;
+			mStatus = status;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = (int) (mSequence ^ (mSequence >>> 32));
+			hash = hash * 31 + (int) (mTime ^ (mTime >>> 32));
+			hash = hash * 31 + System.identityHashCode(mDialect);
+			return (hash * 31 + mSentence) * 31 + mStatus;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key) o;
+			return mSequence == key.mSequence && mTime == key.mTime
+					&& mDialect == key.mDialect
+					&& mSentence == key.mSentence && mStatus == key.mStatus;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * A flavour of the NMEA sentences sent to the clients.
+ *
+ * Receivers differ in the field widths, time source and talker they accept,
+ * a dialect writes the sentences the way a group of receivers expects them.
+ * Dialects are registered in {@link SentenceDialects} and have to be
+ * thread-safe, all state belongs to the {@link NMEAEncoder}.
+ */
+public interface SentenceDialect {
+	/** Recommended minimum sentence C. */
+	public static final int RMC = 0;
+	/** Global positioning system fix data. */
+	public static final int GGA = 1;
+
+	/** The fix is current. */
+	public static final int STATUS_VALID = 0;
+	/** The fix is too old, it is sent with the invalid status. */
+	public static final int STATUS_INVALID = 1;
+	/** The fix is predicted by dead reckoning. */
+	public static final int STATUS_ESTIMATED = 2;
+
+	/**
+	 * @return the name the dialect is registered with.
+	 */
+	public String getName();
+
+	/**
+	 * @return true if the sentences only depend on the fix and its status,
+	 *         so they can be reused while the fix is the same.
+	 */
+	public boolean isCacheable();
+
+	/**
+	 * @return true if the dialect writes NMEA 0183 sentences, its clients
+	 *         can take the forwarded sentences of the GPS chip.
+	 */
+	public boolean isNmea();
+
+	/**
+	 * Writes a sentence.
+	 *
+	 * @param sentence
+	 *            sentence type, e.g. {@link #RMC}
+	 * @param fix
+	 *            fix to write.
+	 * @param status
+	 *            status of the fix, e.g. {@link #STATUS_VALID}.
+	 * @param now
+	 *            current time in milliseconds since the epoch.
+	 * @param encoder
+	 *            encoder the sentence is appended to.
+	 * @return false if the dialect doesn't know the sentence type.
+	 */
+	public boolean encode(int sentence, Fix fix, int status, long now,
+			NMEAEncoder encoder);
+}
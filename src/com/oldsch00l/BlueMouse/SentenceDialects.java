@@ -0,0 +1,53 @@
+package com.oldsch00l.BlueMouse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the known {@link SentenceDialect}s.
+ */
+public class SentenceDialects {
+	public static final String GENERIC = "generic";
+	public static final String YAESU = "yaesu";
+
+	/** Dialect used if none or an unknown one is requested. */
+	public static final String DEFAULT = YAESU;
+
+	private static final Map<String, SentenceDialect> sDialects = new LinkedHashMap<String, SentenceDialect>();
+	static {
+		register(NMEAHelper.DIALECT);
+		register(YaesuFormatter.DIALECT);
+		register(GpsdDialect.DIALECT);
+		register(UbxDialect.DIALECT);
+	}
+
+	/**
+	 * Adds a dialect, a dialect with the same name is replaced.
+	 *
+	 * @param dialect
+	 *            dialect to add.
+	 */
+	public static synchronized void register(SentenceDialect dialect) {
+		sDialects.put(dialect.getName(), dialect);
+	}
+
+	/**
+	 * @param name
+	 *            name of the dialect.
+	 * @return the dialect, or the default dialect if there is none with this
+	 *         name.
+	 */
+	public static synchronized SentenceDialect get(String name) {
+		SentenceDialect dialect = name != null ? sDialects.get(name) : null;
+		if (dialect == null)
+			dialect = sDialects.get(DEFAULT);
+		return dialect;
+	}
+
+	/**
+	 * @return names of all registered dialects.
+	 */
+	public static synchronized String[] getNames() {
+		return sDialects.keySet().toArray(new String[sDialects.size()]);
+	}
+}
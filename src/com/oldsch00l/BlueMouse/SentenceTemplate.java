@@ -0,0 +1,78 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * Precompiled skeleton of a NMEA sentence.
+ *
+ * The skeleton is written with a '%' for every variable field, e.g.
+ * "$GPGGA,%,%,%,%,%,1,%,,%,M,,M,". The constant parts in between are turned
+ * into bytes together with their checksum once, so writing a sentence only
+ * has to fill in the variable fields.
+ */
+public class SentenceTemplate {
+	public static final char FIELD = '%';
+
+	private final byte[][] mSegments;
+	private final int[] mChecksums;
+
+	/**
+	 * @param skeleton
+	 *            sentence with a '%' for every variable field.
+	 */
+	public SentenceTemplate(String skeleton) {
+		int fields = 0;
+		for (int i = 0; i < skeleton.length(); i++) {
+			if (skeleton.charAt(i) == FIELD)
+				fields++;
+		}
+		mSegments = new byte[fields + 1][];
+		mChecksums = new int[fields + 1];
+
+		int start = 0;
+		for (int segment = 0; segment <= fields; segment++) {
+			int end = skeleton.indexOf(FIELD, start);
+			if (end == -1)
+				end = skeleton.length();
+			byte[] bytes = new byte[end - start];
+			int checksum = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) skeleton.charAt(start + i);
+				if (bytes[i] != '$' && bytes[i] != '*')
+					checksum ^= bytes[i];
+			}
+			mSegments[segment] = bytes;
+			mChecksums[segment] = checksum;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * @return number of variable fields.
+	 */
+	public int getFieldCount() {
+		return mSegments.length - 1;
+	}
+
+	/**
+	 * Starts a new sentence with the constant part before the first field.
+	 *
+	 * @param encoder
+	 *            encoder to write to.
+	 * @return the encoder
+	 */
+	public NMEAEncoder begin(NMEAEncoder encoder) {
+		return encoder.begin().append(mSegments[0], mChecksums[0]);
+	}
+
+	/**
+	 * Writes the constant part that follows a variable field.
+	 *
+	 * @param encoder
+	 *            encoder to write to.
+	 * @param field
+	 *            index of the field that was just written, starting at 0.
+	 * @return the encoder
+	 */
+	public NMEAEncoder next(NMEAEncoder encoder, int field) {
+		return encoder.append(mSegments[field + 1], mChecksums[field + 1]);
+	}
+}
@@ -0,0 +1,271 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves raw NMEA over TCP with blocking sockets, a reader and a writer task
+ * per client on a {@link ThreadScope}.
+ *
+ * This is the accept loop and connection handling of the Bluetooth side for
+ * plain sockets. On a JVM with virtual threads thousands of clients cost
+ * little, the scope ends all of them when the transport is cancelled. On
+ * Android the {@link TcpTransport} with its single selector thread fits
+ * better.
+ */
+public class SocketTransport implements Transport {
+	private static final int WRITE_BATCH_SIZE = 4096;
+
+	private final int mPort;
+	private final Transport.Listener mListener;
+	private final int mQueueCapacity;
+	private final int mOverflowPolicy;
+	private final Metrics mMetrics;
+	private final ThreadScope mScope;
+
+	private ServerSocket mServer;
+
+	/**
+	 * @param port
+	 *            TCP port to listen on, 0 for any free port.
+	 * @param listener
+	 *            gets told about clients.
+	 * @param queueCapacity
+	 *            capacity of the outbound queue of every client.
+	 * @param overflowPolicy
+	 *            overflow policy of the queues, see {@link OutboundQueue}.
+	 * @param metrics
+	 *            gets the metrics of the clients.
+	 * @param scope
+	 *            runs the accept loop and the clients.
+	 */
+	public SocketTransport(int port, Transport.Listener listener,
+			int queueCapacity, int overflowPolicy, Metrics metrics,
+			ThreadScope scope) {
+		mPort = port;
+		mListener = listener;
+		mQueueCapacity = queueCapacity;
+		mOverflowPolicy = overflowPolicy;
+		mMetrics = metrics;
+		mScope = scope;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (mServer != null)
+			return;
+		final ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(mPort));
+		mServer = server;
+		mScope.start(new ThreadScope.Task() {
+			@Override
+			public void run() {
+				accept(server);
+			}
+
+			@Override
+			public void cancel() {
+				close(server);
+			}
+		});
+	}
+
+	@Override
+	public synchronized void cancel() {
+		if (mServer != null) {
+			close(mServer);
+			mServer = null;
+		}
+	}
+
+	/**
+	 * @return the port the transport listens on, useful if it was started
+	 *         with port 0.
+	 */
+	public synchronized int getLocalPort() {
+		return mServer.getLocalPort();
+	}
+
+	private void accept(ServerSocket server) {
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				// cancelled
+				return;
+			}
+			try {
+				SocketConnection conn = new SocketConnection(socket);
+				mListener.onConnected(conn);
+				if (!mScope.start(conn.mReader) || !mScope.start(conn.mWriter)) {
+					// the scope is closing
+					conn.lost();
+					return;
+				}
+			} catch (IOException e) {
+				close(socket);
+			}
+		}
+	}
+
+	private static void close(ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * A TCP client with its own reader and writer.
+	 */
+	private class SocketConnection implements Connection {
+		private final Socket mSocket;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+		private final OutboundQueue mQueue;
+		private final String mAddress;
+		private final NMEAParser mParser;
+		private final Metrics.Client mClientMetrics;
+		private final Liveness mLiveness = new Liveness();
+		private boolean mClosed;
+		private boolean mLost;
+
+		final ThreadScope.Task mReader = new ThreadScope.Task() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[1024];
+				try {
+					int length;
+					// clients only send their subscription
+					while ((length = mIn.read(buffer)) >= 0) {
+						mLiveness.onRead(System.nanoTime());
+						mParser.parse(buffer, 0, length);
+					}
+				} catch (IOException e) {
+					// lost
+				}
+				lost();
+			}
+
+			@Override
+			public void cancel() {
+				SocketConnection.this.cancel();
+			}
+		};
+
+		final ThreadScope.Task mWriter = new ThreadScope.Task() {
+			@Override
+			public void run() {
+				WriteBatch batch = new WriteBatch(WRITE_BATCH_SIZE);
+				try {
+					while (batch.collect(mQueue, 0)) {
+						long start = System.nanoTime();
+						mLiveness.onWriteStart(start);
+						batch.writeTo(mOut, WRITE_BATCH_SIZE);
+						long end = System.nanoTime();
+						mLiveness.onWriteDone(end);
+						for (int i = 0; i < batch.getFrameCount(); i++) {
+							mClientMetrics.onWritten(batch.getFrame(i), start, end);
+						}
+					}
+				} catch (IOException e) {
+					mClientMetrics.onError();
+					lost();
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			}
+
+			@Override
+			public void cancel() {
+				SocketConnection.this.cancel();
+			}
+		};
+
+		SocketConnection(Socket socket) throws IOException {
+			mSocket = socket;
+			mIn = socket.getInputStream();
+			mOut = socket.getOutputStream();
+			mQueue = new OutboundQueue(mQueueCapacity, mOverflowPolicy);
+			mAddress = socket.getInetAddress().getHostAddress() + ":"
+					+ socket.getPort();
+			mParser = new NMEAParser(new NMEAParser.Listener() {
+				@Override
+				public void onSentence(NMEASentence sentence) {
+					mListener.onSentence(SocketConnection.this, sentence);
+				}
+			});
+			mParser.setCommandListener(new NMEAParser.CommandListener() {
+				@Override
+				public void onCommand(String command) {
+					mListener.onCommand(SocketConnection.this, command);
+				}
+			});
+			mClientMetrics = mMetrics.addClient(this, getDeviceName(), mQueue);
+		}
+
+		@Override
+		public String getDeviceName() {
+			return "TCP " + mAddress;
+		}
+
+		@Override
+		public String getDeviceAddress() {
+			return mAddress;
+		}
+
+		@Override
+		public void write(Frame frame) {
+			if (!mQueue.offer(frame))
+				cancel();
+		}
+
+		@Override
+		public Liveness getLiveness() {
+			return mLiveness;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (mClosed)
+					return;
+				mClosed = true;
+			}
+			// unblocks both tasks, the reader reports the loss
+			mQueue.close();
+			close(mSocket);
+			mMetrics.removeClient(this);
+		}
+
+		/**
+		 * Closes the connection and reports it once, reader and writer may
+		 * both fail.
+		 */
+		private void lost() {
+			synchronized (this) {
+				if (mLost)
+					return;
+				mLost = true;
+			}
+			cancel();
+			mListener.onDisconnected(this);
+		}
+	}
+}
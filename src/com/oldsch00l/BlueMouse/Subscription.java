@@ -0,0 +1,180 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * What a client gets: the sentence types, the decimation against the base
+ * rate and the dialect.
+ *
+ * A subscription is written as "RMC+GGA,2,yaesu", the same form is stored per
+ * Bluetooth address and sent by the clients themselves as
+ * "$PBMSUB,RMC+GGA,2,yaesu*hh". Empty or unknown fields keep the value of the
+ * default subscription. The types are the RMC and GGA of the dialects and
+ * the GSA, GSV, VTG and ZDA forwarded from the GPS chip, see
+ * {@link PassThrough}. Subscriptions are immutable and shared between
+ * threads.
+ */
+public class Subscription {
+	/** Proprietary sentence a client sends to change its subscription. */
+	public static final String SENTENCE = "PBMSUB";
+
+	// bit i is the NMEASentence type i + 1, RMC and GGA are also the ones of
+	// SentenceDialect
+	private static final String[] SENTENCE_NAMES = { "RMC", "GGA", "GSA",
+			"GSV", "VTG", "ZDA" };
+
+	/**
+	 * All sentence types, the ones the dialects write and the ones forwarded
+	 * from the GPS chip.
+	 */
+	public static final int ALL_SENTENCES = (1 << SENTENCE_NAMES.length) - 1;
+
+	private final int mSentences;
+	private final int mDecimation;
+	private final SentenceDialect mDialect;
+
+	/**
+	 * @param sentences
+	 *            bit 1 << type is set for every sentence type, e.g.
+	 *            {@link SentenceDialect#RMC}.
+	 * @param decimation
+	 *            only every decimation-th emission is sent, at least 1.
+	 * @param dialect
+	 *            dialect of the sentences.
+	 */
+	public Subscription(int sentences, int decimation, SentenceDialect dialect) {
+		mSentences = sentences & ALL_SENTENCES;
+		mDecimation = Math.max(1, decimation);
+		mDialect = dialect;
+	}
+
+	/**
+	 * Parses a subscription like "RMC+GGA,2,yaesu".
+	 *
+	 * @param spec
+	 *            the subscription, may be null.
+	 * @param defaults
+	 *            gives the values of empty or invalid fields.
+	 * @return the subscription.
+	 */
+	public static Subscription parse(String spec, Subscription defaults) {
+		if (spec == null)
+			return defaults;
+		String[] fields = spec.split(",", -1);
+		return parse(fields[0], fields.length > 1 ? fields[1] : "",
+				fields.length > 2 ? fields[2] : "", defaults);
+	}
+
+	/**
+	 * Parses the fields of a subscription sentence.
+	 *
+	 * @param sentence
+	 *            a {@link #SENTENCE}.
+	 * @param defaults
+	 *            gives the values of empty or invalid fields.
+	 * @return the subscription.
+	 */
+	public static Subscription parse(NMEASentence sentence,
+			Subscription defaults) {
+		return parse(sentence.getString(1), sentence.getString(2),
+				sentence.getString(3), defaults);
+	}
+
+	/**
+	 * @param sentence
+	 *            a sentence of a client.
+	 * @return true if it is a {@link #SENTENCE}.
+	 */
+	public static boolean isSubscription(NMEASentence sentence) {
+		return SENTENCE.equals(sentence.getString(0));
+	}
+
+	private static Subscription parse(String sentences, String decimation,
+			String dialect, Subscription defaults) {
+		int mask = parseSentences(sentences);
+		if (mask == 0)
+			mask = defaults.mSentences;
+		int every = defaults.mDecimation;
+		try {
+			every = Integer.parseInt(decimation.trim());
+		} catch (NumberFormatException e) {
+			// keep the default
+		}
+		SentenceDialect d = defaults.mDialect;
+		if (dialect.trim().length() > 0)
+			d = SentenceDialects.get(dialect.trim());
+		return new Subscription(mask, every, d);
+	}
+
+	/**
+	 * @param names
+	 *            sentence types separated by '+', e.g. "RMC+GGA".
+	 * @return the sentence mask, 0 if no type is known.
+	 */
+	public static int parseSentences(String names) {
+		int mask = 0;
+		for (String name : names.split("\\+")) {
+			name = name.trim();
+			for (int type = 0; type < SENTENCE_NAMES.length; type++) {
+				if (SENTENCE_NAMES[type].equalsIgnoreCase(name))
+					mask |= 1 << type;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * @param type
+	 *            sentence type of the chip, e.g. {@link NMEASentence#TYPE_GSV}.
+	 * @return the bit of the type in the sentence mask, 0 for unknown types.
+	 */
+	public static int getTypeBit(int type) {
+		return type > NMEASentence.TYPE_UNKNOWN && type <= SENTENCE_NAMES.length
+				? 1 << type - 1 : 0;
+	}
+
+	/**
+	 * @return bit 1 << type is set for every subscribed sentence type.
+	 */
+	public int getSentences() {
+		return mSentences;
+	}
+
+	public int getDecimation() {
+		return mDecimation;
+	}
+
+	public SentenceDialect getDialect() {
+		return mDialect;
+	}
+
+	/**
+	 * @param sentence
+	 *            sentence type, e.g. {@link SentenceDialect#RMC}.
+	 * @return true if the client gets this type.
+	 */
+	public boolean wants(int sentence) {
+		return (mSentences & 1 << sentence) != 0;
+	}
+
+	/**
+	 * @param tick
+	 *            number of the emission, counted from 0.
+	 * @return true if the client gets this emission.
+	 */
+	public boolean isDue(long tick) {
+		return tick % mDecimation == 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int type = 0; type < SENTENCE_NAMES.length; type++) {
+			if (wants(type)) {
+				if (sb.length() > 0)
+					sb.append('+');
+				sb.append(SENTENCE_NAMES[type]);
+			}
+		}
+		return sb.append(',').append(mDecimation).append(',')
+				.append(mDialect.getName()).toString();
+	}
+}
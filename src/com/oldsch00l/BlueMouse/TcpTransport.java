@@ -0,0 +1,333 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves raw NMEA over TCP, e.g. for "nc" or gpsd.
+ *
+ * A single thread handles accept, read and write of all clients with one
+ * Selector. Every client has its own {@link OutboundQueue}, frames are copied
+ * from there into a small per client buffer as the socket accepts them.
+ */
+public class TcpTransport implements Transport {
+	private static final int BUFFER_SIZE = 4096;
+
+	private final int mPort;
+	private final Transport.Listener mListener;
+	private final int mQueueCapacity;
+	private final int mOverflowPolicy;
+	private final Metrics mMetrics;
+
+	/** Connections that want to write or be closed. */
+	private final ConcurrentLinkedQueue<TcpConnection> mPending = new ConcurrentLinkedQueue<TcpConnection>();
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(1024);
+
+	private Selector mSelector;
+	private ServerSocketChannel mServer;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	/**
+	 * @param port
+	 *            TCP port to listen on, 0 for any free port.
+	 * @param listener
+	 *            gets told about clients.
+	 * @param queueCapacity
+	 *            capacity of the outbound queue of every client.
+	 * @param overflowPolicy
+	 *            overflow policy of the queues, see {@link OutboundQueue}.
+	 * @param metrics
+	 *            gets the metrics of the clients.
+	 */
+	public TcpTransport(int port, Transport.Listener listener,
+			int queueCapacity, int overflowPolicy, Metrics metrics) {
+		mPort = port;
+		mListener = listener;
+		mQueueCapacity = queueCapacity;
+		mOverflowPolicy = overflowPolicy;
+		mMetrics = metrics;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (mThread != null)
+			return;
+		mSelector = Selector.open();
+		mServer = ServerSocketChannel.open();
+		mServer.socket().setReuseAddress(true);
+		mServer.socket().bind(new InetSocketAddress(mPort));
+		mServer.configureBlocking(false);
+		mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "TcpTransport");
+		mThread.start();
+	}
+
+	@Override
+	public synchronized void cancel() {
+		mRunning = false;
+		if (mSelector != null)
+			mSelector.wakeup();
+	}
+
+	/**
+	 * @return the port the transport listens on, useful if it was started
+	 *         with port 0.
+	 */
+	public int getLocalPort() {
+		return mServer.socket().getLocalPort();
+	}
+
+	private void loop() {
+		try {
+			while (mRunning) {
+				mSelector.select();
+				processPending();
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					TcpConnection conn = (TcpConnection) key.attachment();
+					try {
+						if (key.isReadable())
+							read(conn);
+						if (key.isValid() && key.isWritable())
+							conn.flush();
+					} catch (IOException e) {
+						conn.mMetrics.onError();
+						close(conn);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// selector failed, drop everything below
+		} catch (ClosedSelectorException e) {
+			// cancelled
+		} finally {
+			shutdown();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mServer.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		Socket socket = channel.socket();
+		socket.setTcpNoDelay(true);
+		TcpConnection conn = new TcpConnection(channel);
+		conn.mKey = channel.register(mSelector, SelectionKey.OP_READ, conn);
+		mListener.onConnected(conn);
+	}
+
+	private void read(TcpConnection conn) throws IOException {
+		// clients only send their subscription
+		mReadBuffer.clear();
+		int length = conn.mChannel.read(mReadBuffer);
+		if (length < 0)
+			throw new IOException("end of stream");
+		conn.mLiveness.onRead(System.nanoTime());
+		conn.mParser.parse(mReadBuffer.array(), 0, length);
+	}
+
+	private void processPending() {
+		TcpConnection conn;
+		while ((conn = mPending.poll()) != null) {
+			if (conn.mCloseRequested) {
+				close(conn);
+				continue;
+			}
+			conn.mWriteRequested.set(false);
+			try {
+				conn.flush();
+			} catch (IOException e) {
+				conn.mMetrics.onError();
+				close(conn);
+			}
+		}
+	}
+
+	private void close(TcpConnection conn) {
+		if (conn.mClosed)
+			return;
+		conn.mClosed = true;
+		conn.mQueue.close();
+		mMetrics.removeClient(conn);
+		if (conn.mKey != null)
+			conn.mKey.cancel();
+		try {
+			conn.mChannel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		mListener.onDisconnected(conn);
+	}
+
+	private void shutdown() {
+		for (SelectionKey key : mSelector.keys()) {
+			if (key.attachment() instanceof TcpConnection)
+				close((TcpConnection) key.attachment());
+		}
+		try {
+			mServer.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		synchronized (this) {
+			mThread = null;
+		}
+	}
+
+	/**
+	 * A TCP client, all socket work is done by the selector thread.
+	 */
+	private class TcpConnection implements Connection {
+		private final SocketChannel mChannel;
+		private final OutboundQueue mQueue;
+		private final String mAddress;
+		private final ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+		private final AtomicBoolean mWriteRequested = new AtomicBoolean();
+		private final NMEAParser mParser;
+		private final Metrics.Client mMetrics;
+		private final Liveness mLiveness = new Liveness();
+		private SelectionKey mKey;
+		private Frame mCurrent;
+		private int mOffset;
+		// System.nanoTime() when the current frame was taken from the queue
+		private long mCurrentStart;
+		private volatile boolean mCloseRequested;
+		private volatile boolean mClosed;
+
+		TcpConnection(SocketChannel channel) {
+			mChannel = channel;
+			mQueue = new OutboundQueue(mQueueCapacity, mOverflowPolicy);
+			Socket socket = channel.socket();
+			mAddress = socket.getInetAddress().getHostAddress() + ":"
+					+ socket.getPort();
+			mParser = new NMEAParser(new NMEAParser.Listener() {
+				@Override
+				public void onSentence(NMEASentence sentence) {
+					mListener.onSentence(TcpConnection.this, sentence);
+				}
+			});
+			mParser.setCommandListener(new NMEAParser.CommandListener() {
+				@Override
+				public void onCommand(String command) {
+					mListener.onCommand(TcpConnection.this, command);
+				}
+			});
+			mMetrics = TcpTransport.this.mMetrics.addClient(this, getDeviceName(), mQueue);
+		}
+
+		@Override
+		public String getDeviceName() {
+			return "TCP " + mAddress;
+		}
+
+		@Override
+		public String getDeviceAddress() {
+			return mAddress;
+		}
+
+		@Override
+		public void write(Frame frame) {
+			if (!mQueue.offer(frame)) {
+				cancel();
+			} else if (mWriteRequested.compareAndSet(false, true)) {
+				mPending.add(this);
+				mSelector.wakeup();
+			}
+		}
+
+		@Override
+		public Liveness getLiveness() {
+			return mLiveness;
+		}
+
+		@Override
+		public void cancel() {
+			if (mClosed || mCloseRequested)
+				return;
+			mCloseRequested = true;
+			mPending.add(this);
+			mSelector.wakeup();
+		}
+
+		/**
+		 * Writes queued frames until the queue is empty or the socket is
+		 * full, in which case it waits for OP_WRITE.
+		 */
+		void flush() throws IOException {
+			if (mClosed)
+				return;
+			while (true) {
+				while (mOut.hasRemaining()) {
+					if (mCurrent == null) {
+						mCurrent = mQueue.poll();
+						mOffset = 0;
+						if (mCurrent == null)
+							break;
+						mCurrentStart = System.nanoTime();
+					}
+					int n = Math.min(mOut.remaining(), mCurrent.getLength() - mOffset);
+					mOut.put(mCurrent.getData(), mOffset, n);
+					mOffset += n;
+					if (mOffset == mCurrent.getLength()) {
+						// includes the waits for a full socket
+						mMetrics.onWritten(mCurrent, mCurrentStart, System.nanoTime());
+						mCurrent = null;
+					}
+				}
+				if (mOut.position() == 0) {
+					mKey.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				mOut.flip();
+				int n = mChannel.write(mOut);
+				boolean written = !mOut.hasRemaining();
+				mOut.compact();
+				// a write is in progress while the socket doesn't take it all,
+				// it is stuck only while the socket takes nothing
+				if (written)
+					mLiveness.onWriteDone(System.nanoTime());
+				else if (n > 0)
+					mLiveness.onWriteProgress(System.nanoTime());
+				else
+					mLiveness.onWriteStart(System.nanoTime());
+				if (!written) {
+					mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.oldsch00l.BlueMouse;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads that end together, e.g. the threads of all clients of a server.
+ *
+ * Every task runs on its own thread, a virtual thread if the JVM has them
+ * (Java 21 and later, found by reflection) and a platform thread otherwise,
+ * e.g. on Android. Closing the scope refuses new tasks, interrupts the
+ * running ones and waits for them. Tasks blocked in I/O that doesn't react to
+ * interrupts should close their streams in {@link Task#cancel()}.
+ */
+public class ThreadScope {
+	/**
+	 * A task of the scope.
+	 */
+	public interface Task extends Runnable {
+		/**
+		 * Unblocks the task when the scope closes, e.g. by closing its
+		 * socket.
+		 */
+		public void cancel();
+	}
+
+	// Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), null if missing
+	private static final Method OF_VIRTUAL;
+	private static final Method UNSTARTED;
+	private static final Method NAME;
+
+	static {
+		Method ofVirtual = null;
+		Method unstarted = null;
+		Method name = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			name = builder.getMethod("name", String.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+		NAME = name;
+	}
+
+	private final String mName;
+	private final boolean mVirtual;
+	// running workers, the values aren't used
+	private final Map<Worker, Boolean> mWorkers = new ConcurrentHashMap<Worker, Boolean>();
+	private volatile boolean mClosed;
+	private int mCount;
+
+	/**
+	 * @param name
+	 *            prefix of the thread names.
+	 * @param preferVirtual
+	 *            use virtual threads if the JVM has them.
+	 */
+	public ThreadScope(String name, boolean preferVirtual) {
+		mName = name;
+		mVirtual = preferVirtual && OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return true if the JVM has virtual threads.
+	 */
+	public static boolean hasVirtualThreads() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return true if the tasks run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return mVirtual;
+	}
+
+	/**
+	 * Starts a task on a new thread.
+	 *
+	 * @return false if the scope is closed.
+	 */
+	public boolean start(Task task) {
+		Worker worker = new Worker(task);
+		String name;
+		synchronized (this) {
+			if (mClosed)
+				return false;
+			name = mName + "-" + ++mCount;
+			mWorkers.put(worker, Boolean.TRUE);
+		}
+		Thread thread = newThread(name, worker);
+		worker.mThread = thread;
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * @return number of running tasks.
+	 */
+	public int size() {
+		return mWorkers.size();
+	}
+
+	/**
+	 * Cancels and interrupts all tasks and waits for them to end.
+	 *
+	 * @param timeout
+	 *            longest wait in ms.
+	 * @return true if all tasks ended.
+	 */
+	public boolean close(long timeout) {
+		synchronized (this) {
+			mClosed = true;
+		}
+		for (Worker worker : mWorkers.keySet()) {
+			worker.cancel();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		Iterator<Worker> workers = mWorkers.keySet().iterator();
+		try {
+			while (workers.hasNext()) {
+				Thread thread = workers.next().mThread;
+				long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (thread == null || wait <= 0)
+					continue;
+				thread.join(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return mWorkers.isEmpty();
+	}
+
+	private Thread newThread(String name, Runnable r) {
+		if (mVirtual) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, r);
+			} catch (Exception e) {
+				// fall back to a platform thread
+			}
+		}
+		Thread thread = new Thread(r, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private class Worker implements Runnable {
+		private final Task mTask;
+		private volatile Thread mThread;
+
+		Worker(Task task) {
+			mTask = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// closed between start() and here
+				if (mClosed)
+					mTask.cancel();
+				mTask.run();
+			} finally {
+				mWorkers.remove(this);
+			}
+		}
+
+		void cancel() {
+			mTask.cancel();
+			Thread thread = mThread;
+			if (thread != null)
+				thread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the fixes of a segment written by {@link TrackRecorder}, e.g. for
+ * geotagging.
+ *
+ * <pre>
+ * TrackReader reader = new TrackReader(file);
+ * while (reader.next()) {
+ * 	reader.getTime() ...
+ * }
+ * </pre>
+ */
+public class TrackReader {
+	private final MappedByteBuffer mMap;
+	private final int mUsed;
+
+	private long mTime;
+	private int mLatitude;
+	private int mLongitude;
+	private int mAltitude;
+	private int mSpeed;
+	private int mBearing;
+
+	/**
+	 * @param file
+	 *            a segment file.
+	 * @throws IOException
+	 *             if the file can't be read or isn't a segment.
+	 */
+	public TrackReader(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < TrackRecorder.HEADER_SIZE)
+				throw new IOException(file + " is no track segment");
+			mMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					length);
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+		if (mMap.getInt(0) != TrackRecorder.MAGIC)
+			throw new IOException(file + " is no track segment");
+		mUsed = Math.min(mMap.getInt(TrackRecorder.USED), mMap.limit());
+
+		mTime = mMap.getLong(TrackRecorder.TIME);
+		mLatitude = mMap.getInt(TrackRecorder.LATITUDE);
+		mLongitude = mMap.getInt(TrackRecorder.LONGITUDE);
+		mAltitude = mMap.getInt(TrackRecorder.ALTITUDE);
+		mMap.position(TrackRecorder.HEADER_SIZE);
+	}
+
+	/**
+	 * @return number of fixes in the segment.
+	 */
+	public int getRecords() {
+		return mMap.getInt(TrackRecorder.RECORDS);
+	}
+
+	/**
+	 * Reads the next fix.
+	 *
+	 * @return false at the end of the segment.
+	 */
+	public boolean next() {
+		if (mMap.position() >= mUsed)
+			return false;
+		mTime += unZigZag(getVarint());
+		mLatitude += (int) unZigZag(getVarint());
+		mLongitude += (int) unZigZag(getVarint());
+		mAltitude += (int) unZigZag(getVarint());
+		mSpeed = (int) getVarint();
+		mBearing = mMap.get() & 0xff;
+		return true;
+	}
+
+	/**
+	 * @return time of the fix in ms since the epoch.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return latitude in degrees.
+	 */
+	public double getLatitude() {
+		return mLatitude / 1e6;
+	}
+
+	/**
+	 * @return longitude in degrees.
+	 */
+	public double getLongitude() {
+		return mLongitude / 1e6;
+	}
+
+	/**
+	 * @return altitude in meters.
+	 */
+	public double getAltitude() {
+		return mAltitude / 10.0;
+	}
+
+	/**
+	 * @return speed in m/s.
+	 */
+	public float getSpeed() {
+		return mSpeed / 10f;
+	}
+
+	/**
+	 * @return bearing in degrees.
+	 */
+	public float getBearing() {
+		return mBearing * 360f / 256;
+	}
+
+	private long getVarint() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = mMap.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0 && shift < 64);
+		return value;
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,219 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the emitted fixes into compact binary segment files.
+ *
+ * A segment is memory-mapped at its full size when it is created, so
+ * recording a fix only writes to memory and the kernel writes the pages back.
+ * A full segment is closed, cut to its used length and the next one is
+ * started.
+ *
+ * Segment layout, all numbers big endian:
+ *
+ * <pre>
+ *  0 int   magic "BMT1"
+ *  4 int   used length including this header
+ *  8 int   number of records
+ * 12 long  time of the first fix in ms since the epoch
+ * 20 int   latitude of the first fix in microdegrees
+ * 24 int   longitude of the first fix in microdegrees
+ * 28 int   altitude of the first fix in decimeters
+ * </pre>
+ *
+ * Every record holds the differences to the record before, the first one to
+ * the header:
+ *
+ * <pre>
+ * varint  zig-zag time delta in ms
+ * varint  zig-zag latitude delta in microdegrees
+ * varint  zig-zag longitude delta in microdegrees
+ * varint  zig-zag altitude delta in decimeters
+ * varint  speed in 0.1 m/s
+ * byte    bearing in 1/256 of a full circle
+ * </pre>
+ *
+ * A fix usually takes 8 to 12 bytes, compared to about 140 bytes of RMC and
+ * GGA text. The used length in the header is updated with every record, so
+ * the segment of a killed process can still be read.
+ *
+ * @see TrackReader
+ */
+public class TrackRecorder {
+	public static final int MAGIC = 'B' << 24 | 'M' << 16 | 'T' << 8 | '1';
+	public static final int HEADER_SIZE = 32;
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public static final String SUFFIX = ".bmt";
+
+	// header offsets
+	static final int USED = 4;
+	static final int RECORDS = 8;
+	static final int TIME = 12;
+	static final int LATITUDE = 20;
+	static final int LONGITUDE = 24;
+	static final int ALTITUDE = 28;
+
+	/** Longest possible record. */
+	private static final int MAX_RECORD = 10 + 5 + 5 + 5 + 5 + 1;
+
+	private final File mDirectory;
+	private final int mSegmentSize;
+
+	private RandomAccessFile mFile;
+	private MappedByteBuffer mMap;
+	private int mRecords;
+
+	// last recorded values
+	private long mTime;
+	private int mLatitude;
+	private int mLongitude;
+	private int mAltitude;
+
+	private boolean mClosed;
+	private int mSegments;
+	private long mFixes;
+
+	/**
+	 * @param directory
+	 *            directory of the segment files, created if needed.
+	 * @param segmentSize
+	 *            size of a segment in bytes.
+	 */
+	public TrackRecorder(File directory, int segmentSize) {
+		mDirectory = directory;
+		mSegmentSize = Math.max(segmentSize, HEADER_SIZE + MAX_RECORD);
+	}
+
+	/**
+	 * Appends a fix.
+	 *
+	 * @param fix
+	 *            the fix.
+	 * @throws IOException
+	 *             if a new segment can't be created.
+	 */
+	public synchronized void record(Fix fix) throws IOException {
+		if (mClosed)
+			return;
+		long time = fix.getTime();
+		int lat = toMicrodegrees(fix.getLatitudeNanos());
+		int lon = toMicrodegrees(fix.getLongitudeNanos());
+		int alt = (int) Math.round(fix.getAltitude() * 10);
+		float speed = fix.getSpeed();
+		float bearing = fix.getBearing();
+
+		if (mMap == null || mMap.remaining() < MAX_RECORD) {
+			closeSegment();
+			startSegment(time, lat, lon, alt);
+		}
+
+		MappedByteBuffer map = mMap;
+		putVarint(map, zigZag(time - mTime));
+		putVarint(map, zigZag(lat - mLatitude));
+		putVarint(map, zigZag(lon - mLongitude));
+		putVarint(map, zigZag(alt - mAltitude));
+		putVarint(map, Math.max(0, Math.round(speed * 10)));
+		map.put((byte) Math.round(bearing * 256 / 360));
+
+		mTime = time;
+		mLatitude = lat;
+		mLongitude = lon;
+		mAltitude = alt;
+
+		mRecords++;
+		map.putInt(RECORDS, mRecords);
+		map.putInt(USED, map.position());
+		mFixes++;
+	}
+
+	/**
+	 * Finishes the current segment, later fixes are ignored.
+	 */
+	public synchronized void close() throws IOException {
+		mClosed = true;
+		closeSegment();
+	}
+
+	/**
+	 * @return number of recorded fixes.
+	 */
+	public synchronized long getFixes() {
+		return mFixes;
+	}
+
+	/**
+	 * @return number of started segments.
+	 */
+	public synchronized int getSegments() {
+		return mSegments;
+	}
+
+	private void closeSegment() throws IOException {
+		if (mFile == null)
+			return;
+		int used = mMap.position();
+		mMap.force();
+		mMap = null;
+		try {
+			mFile.setLength(used);
+		} finally {
+			mFile.close();
+			mFile = null;
+		}
+	}
+
+	private void startSegment(long time, int lat, int lon, int alt)
+			throws IOException {
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			throw new IOException("can't create " + mDirectory);
+
+		File file = new File(mDirectory, "track-" + time + SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(mSegmentSize);
+			mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					mSegmentSize);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		mFile = raf;
+
+		mMap.putInt(0, MAGIC);
+		mMap.putInt(USED, HEADER_SIZE);
+		mMap.putInt(RECORDS, 0);
+		mMap.putLong(TIME, time);
+		mMap.putInt(LATITUDE, lat);
+		mMap.putInt(LONGITUDE, lon);
+		mMap.putInt(ALTITUDE, alt);
+		mMap.position(HEADER_SIZE);
+
+		mRecords = 0;
+		mTime = time;
+		mLatitude = lat;
+		mLongitude = lon;
+		mAltitude = alt;
+		mSegments++;
+	}
+
+	private static int toMicrodegrees(long nanodegrees) {
+		return (int) ((nanodegrees >= 0 ? nanodegrees + 500 : nanodegrees - 500) / 1000);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void putVarint(MappedByteBuffer map, long value) {
+		while ((value & ~0x7fL) != 0) {
+			map.put((byte) (value | 0x80));
+			value >>>= 7;
+		}
+		map.put((byte) value);
+	}
+}
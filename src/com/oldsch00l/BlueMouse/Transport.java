@@ -0,0 +1,62 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.IOException;
+
+/**
+ * A way for clients to connect to the service, e.g. Bluetooth RFCOMM or TCP.
+ */
+public interface Transport {
+	/**
+	 * Starts accepting clients.
+	 *
+	 * @throws IOException
+	 *             if the transport couldn't be opened.
+	 */
+	public void start() throws IOException;
+
+	/**
+	 * Stops accepting clients.
+	 */
+	public void cancel();
+
+	/**
+	 * Gets told about clients coming and going.
+	 */
+	public interface Listener {
+		/**
+		 * A client connected.
+		 *
+		 * @param connection
+		 *            the new connection.
+		 */
+		public void onConnected(Connection connection);
+
+		/**
+		 * A client disconnected or the connection failed.
+		 *
+		 * @param connection
+		 *            the lost connection.
+		 */
+		public void onDisconnected(Connection connection);
+
+		/**
+		 * A client sent a sentence, e.g. a {@link Subscription#SENTENCE}.
+		 *
+		 * @param connection
+		 *            the sending connection.
+		 * @param sentence
+		 *            the sentence, only valid during this call.
+		 */
+		public void onSentence(Connection connection, NMEASentence sentence);
+
+		/**
+		 * A client sent a gpsd command, see {@link GpsdProtocol}.
+		 *
+		 * @param connection
+		 *            the sending connection.
+		 * @param command
+		 *            the command from '?' without ';'.
+		 */
+		public void onCommand(Connection connection, String command);
+	}
+}
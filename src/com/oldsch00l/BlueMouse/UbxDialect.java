@@ -0,0 +1,153 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * The binary UBX NAV-PVT message of u-blox receivers instead of NMEA text.
+ *
+ * One message of 100 bytes holds the whole solution of RMC and GGA: time,
+ * position, height, velocity, accuracy and satellites, framed with sync
+ * chars, class, id and length and checked with the 8-bit Fletcher checksum.
+ * Parsers of u-blox receivers read it as it is. It is written for
+ * {@link #RMC}, {@link #GGA} has nothing to add and isn't written.
+ *
+ * Fields the fixes don't have, e.g. the vertical velocity and the
+ * accuracies of time and speed, are 0.
+ */
+public class UbxDialect implements SentenceDialect {
+	public static final UbxDialect DIALECT = new UbxDialect();
+
+	public static final String NAME = "ubx";
+
+	/** Length of a NAV-PVT message with framing and checksum. */
+	public static final int MESSAGE_LENGTH = 100;
+
+	private static final int SYNC_1 = 0xb5;
+	private static final int SYNC_2 = 0x62;
+	private static final int CLASS_NAV = 0x01;
+	private static final int ID_PVT = 0x07;
+	private static final int PAYLOAD_LENGTH = 92;
+
+	// fix types
+	private static final int FIX_NONE = 0;
+	private static final int FIX_DEAD_RECKONING = 1;
+	private static final int FIX_2D = 2;
+	private static final int FIX_3D = 3;
+
+	// valid flags
+	private static final int VALID_DATE = 0x01;
+	private static final int VALID_TIME = 0x02;
+	private static final int FULLY_RESOLVED = 0x04;
+	private static final int GNSS_FIX_OK = 0x01;
+
+	/** GPS time started 1980-01-06, in ms since the epoch. */
+	private static final long GPS_EPOCH = 315964800000L;
+	/** GPS time is ahead of UTC by the leap seconds since 1980. */
+	private static final long LEAP_SECONDS = 18;
+	private static final long MILLIS_PER_WEEK = 7 * 86400000L;
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isCacheable() {
+		// carries the time of the fix
+		return true;
+	}
+
+	@Override
+	public boolean isNmea() {
+		// binary messages
+		return false;
+	}
+
+	@Override
+	public boolean encode(int sentence, Fix fix, int status, long now,
+			NMEAEncoder encoder) {
+		if (sentence != RMC)
+			return false;
+		encodePVT(fix, status, encoder);
+		return true;
+	}
+
+	/**
+	 * Writes a NAV-PVT message.
+	 */
+	public static void encodePVT(Fix fix, int status, NMEAEncoder encoder) {
+		int start = encoder.getLength();
+		encoder.appendLittleEndian(SYNC_1, 1).appendLittleEndian(SYNC_2, 1)
+				.appendLittleEndian(CLASS_NAV, 1).appendLittleEndian(ID_PVT, 1)
+				.appendLittleEndian(PAYLOAD_LENGTH, 2);
+
+		long time = fix.getTime();
+		long gpsTime = time - GPS_EPOCH + LEAP_SECONDS * 1000;
+		int date = NMEAEncoder.toCivilDate(time);
+		long ms = time % MILLIS_PER_DAY;
+		if (ms < 0)
+			ms += MILLIS_PER_DAY;
+		int seconds = (int) (ms / 1000);
+		boolean valid = status != STATUS_INVALID;
+		int fixType;
+		if (!valid)
+			fixType = FIX_NONE;
+		else if (status == STATUS_ESTIMATED)
+			fixType = FIX_DEAD_RECKONING;
+		else
+			fixType = fix.hasAltitude() ? FIX_3D : FIX_2D;
+
+		// iTOW, year, month, day, hour, min, sec, valid
+		encoder.appendLittleEndian(gpsTime % MILLIS_PER_WEEK, 4)
+				.appendLittleEndian(date / 10000, 2)
+				.appendLittleEndian(date / 100 % 100, 1)
+				.appendLittleEndian(date % 100, 1)
+				.appendLittleEndian(seconds / 3600, 1)
+				.appendLittleEndian(seconds / 60 % 60, 1)
+				.appendLittleEndian(seconds % 60, 1)
+				.appendLittleEndian(VALID_DATE | VALID_TIME | FULLY_RESOLVED, 1);
+		// tAcc, nano, fixType, flags, flags2, numSV
+		int satellites = fix.getSatellites() == Fix.SATELLITES_UNKNOWN ? 0 : fix.getSatellites();
+		encoder.appendLittleEndian(0, 4)
+				.appendLittleEndian(ms % 1000 * 1000000L, 4)
+				.appendLittleEndian(fixType, 1)
+				.appendLittleEndian(fixType >= FIX_2D ? GNSS_FIX_OK : 0, 1)
+				.appendLittleEndian(0, 1)
+				.appendLittleEndian(satellites, 1);
+		// lon, lat in 1e-7 degrees, height and hMSL in mm
+		long altitude = fix.hasAltitude() ? Math.round(fix.getAltitude() * 1000) : 0;
+		encoder.appendLittleEndian(fix.getLongitudeNanos() / 100, 4)
+				.appendLittleEndian(fix.getLatitudeNanos() / 100, 4)
+				.appendLittleEndian(altitude, 4)
+				.appendLittleEndian(altitude, 4);
+		// hAcc, vAcc in mm
+		encoder.appendLittleEndian(Math.round(fix.getAccuracy() * 1000.0), 4)
+				.appendLittleEndian(0, 4);
+		// velN, velE, velD, gSpeed in mm/s, headMot in 1e-5 degrees
+		double speed = fix.getSpeed() * 1000.0;
+		double bearing = Math.toRadians(fix.getBearing());
+		long heading = Math.round(fix.getBearing() * 1e5);
+		encoder.appendLittleEndian(Math.round(speed * Math.cos(bearing)), 4)
+				.appendLittleEndian(Math.round(speed * Math.sin(bearing)), 4)
+				.appendLittleEndian(0, 4)
+				.appendLittleEndian(Math.round(speed), 4)
+				.appendLittleEndian(heading, 4);
+		// sAcc, headAcc, pDOP, flags3 and reserved, headVeh, magDec, magAcc
+		encoder.appendLittleEndian(0, 4)
+				.appendLittleEndian(0, 4)
+				.appendLittleEndian(0, 2)
+				.appendLittleEndian(0, 6)
+				.appendLittleEndian(heading, 4)
+				.appendLittleEndian(0, 2)
+				.appendLittleEndian(0, 2);
+
+		// Fletcher over class, id, length and payload
+		byte[] buffer = encoder.getBuffer();
+		int a = 0;
+		int b = 0;
+		for (int i = start + 2; i < encoder.getLength(); i++) {
+			a = (a + (buffer[i] & 0xff)) & 0xff;
+			b = (b + a) & 0xff;
+		}
+		encoder.appendLittleEndian(a, 1).appendLittleEndian(b, 1);
+	}
+}
@@ -0,0 +1,90 @@
+package com.oldsch00l.BlueMouse;
+
+/**
+ * UTC time from the monotonic clock, corrected by the clock of the location
+ * provider.
+ *
+ * The wall clock is read once, afterwards the time runs on System.nanoTime(),
+ * so setting the clock or NTP steps don't move the emissions. The offset of
+ * the provider, e.g. the GPS time of the fixes, against this clock is
+ * estimated from every fix and its arrival: a sample is the fix time minus
+ * the time of the arrival, which is short of the true offset by the delivery
+ * delay. The estimate follows a larger sample at once and a smaller one
+ * slowly, so it keeps to the least delayed fixes and still follows a drift.
+ * A sample too far off restarts the estimate, e.g. the first GPS fix after
+ * the system clock was wrong.
+ */
+public class UtcClock {
+	/** Samples further off than this restart the estimate, in ns. */
+	private static final long MAX_STEP = 1000000000L;
+	/** A smaller sample moves the estimate by 1 / DECAY of the difference. */
+	private static final int DECAY = 16;
+
+	private final long mBaseNanos;
+	private final long mBaseUtc;
+	private volatile long mOffset;
+	private boolean mHasOffset;
+
+	public UtcClock() {
+		mBaseNanos = System.nanoTime();
+		mBaseUtc = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the current UTC time in ms since the epoch.
+	 */
+	public long now() {
+		return toUtc(System.nanoTime());
+	}
+
+	/**
+	 * @param nanos
+	 *            a System.nanoTime().
+	 * @return the UTC time of it in ms since the epoch.
+	 */
+	public long toUtc(long nanos) {
+		return mBaseUtc + (nanos - mBaseNanos + mOffset) / 1000000L;
+	}
+
+	/**
+	 * @param period
+	 *            a period in ns.
+	 * @return a System.nanoTime() at which the UTC time is a whole multiple of
+	 *         the period, e.g. a full second for 1000ms.
+	 */
+	public long align(long period) {
+		long utc = mBaseUtc * 1000000L + mOffset;
+		long remainder = utc % period;
+		if (remainder < 0)
+			remainder += period;
+		return mBaseNanos - remainder;
+	}
+
+	/**
+	 * Adds an offset sample from a fix of the provider, only fixes with the
+	 * time of the provider's clock, not replayed or cached ones.
+	 *
+	 * @param time
+	 *            time of the fix in ms since the epoch.
+	 * @param received
+	 *            System.nanoTime() when the fix arrived.
+	 */
+	public synchronized void onFix(long time, long received) {
+		long sample = (time - mBaseUtc) * 1000000L - (received - mBaseNanos);
+		long offset = mOffset;
+		if (!mHasOffset || sample > offset || offset - sample > MAX_STEP) {
+			mOffset = sample;
+		} else {
+			mOffset = offset - (offset - sample) / DECAY;
+		}
+		mHasOffset = true;
+	}
+
+	/**
+	 * @return the estimated offset of the provider's clock in ms, 0 before
+	 *         the first fix.
+	 */
+	public long getOffset() {
+		return mOffset / 1000000L;
+	}
+}
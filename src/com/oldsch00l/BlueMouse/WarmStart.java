@@ -0,0 +1,249 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Keeps the last fix and the recently connected devices across restarts.
+ *
+ * Every change is written to a small file by a background thread, changes
+ * arriving while a write is pending are written together. A new fix is
+ * written at most every {@link #FIX_INTERVAL} ms, the latest one on
+ * {@link #close()}, the others are only kept in memory. The file is
+ * written to a temporary file first and renamed, a killed process leaves the
+ * old state. After a restart the cached fix is served, marked as
+ * {@link Fix#PROVIDER_CACHED}, until a live fix arrives.
+ */
+public class WarmStart {
+	/** Number of remembered devices. */
+	public static final int MAX_DEVICES = 8;
+
+	/** Shortest time between two writes of a new fix in ms. */
+	public static final long FIX_INTERVAL = 10000;
+
+	private static final String TAG = "WarmStart";
+	private static final int VERSION = 1;
+
+	private final File mFile;
+	private final ExecutorService mWriter;
+	private final AtomicBoolean mWritePending = new AtomicBoolean();
+
+	// latest state, guarded by this
+	private Fix mFix;
+	private final LinkedList<String> mDevices = new LinkedList<String>();
+	// System.nanoTime() of the last write of a fix, guarded by this
+	private long mFixWritten;
+	private boolean mHasFixWritten;
+	// a fix newer than the file, guarded by this
+	private boolean mFixPending;
+
+	/**
+	 * @param file
+	 *            the state file.
+	 */
+	public WarmStart(File file) {
+		mFile = file;
+		mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WarmStart");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Reads the state written before, a missing or broken file is ignored.
+	 *
+	 * @throws IOException
+	 *             if the file exists but can't be read.
+	 */
+	public synchronized void load() throws IOException {
+		if (!mFile.exists())
+			return;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(mFile)));
+		try {
+			if (in.readInt() != VERSION)
+				return;
+			if (in.readBoolean()) {
+				long time = in.readLong();
+				long latitude = in.readLong();
+				long longitude = in.readLong();
+				boolean hasAltitude = in.readBoolean();
+				double altitude = in.readDouble();
+				float speed = in.readFloat();
+				float bearing = in.readFloat();
+				float accuracy = in.readFloat();
+				int satellites = in.readInt();
+				// sequence 0 is before every live fix
+				mFix = new Fix(0, Fix.PROVIDER_CACHED, time, System.nanoTime(), latitude,
+						longitude, hasAltitude, altitude, speed, bearing,
+						accuracy, satellites);
+			}
+			int devices = Math.min(in.readInt(), MAX_DEVICES);
+			mDevices.clear();
+			for (int i = 0; i < devices; i++) {
+				mDevices.add(in.readUTF());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the fix loaded from the file or the last saved one, null if
+	 *         there is none.
+	 */
+	public synchronized Fix getFix() {
+		return mFix;
+	}
+
+	/**
+	 * @return the remembered device addresses, the most recent first.
+	 */
+	public synchronized List<String> getDevices() {
+		return new ArrayList<String>(mDevices);
+	}
+
+	/**
+	 * Remembers a fix, never blocks. The fix is written if the last one was
+	 * written {@link #FIX_INTERVAL} ago, else with the next write.
+	 */
+	public void saveFix(Fix fix) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			mFix = fix;
+			if (mHasFixWritten && now - mFixWritten < FIX_INTERVAL * 1000000L) {
+				mFixPending = true;
+				return;
+			}
+			mFixWritten = now;
+			mHasFixWritten = true;
+			mFixPending = false;
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Remembers a connected device as the most recent one, never blocks.
+	 */
+	public void addDevice(String address) {
+		synchronized (this) {
+			if (address.equals(mDevices.peek()))
+				return;
+			mDevices.remove(address);
+			mDevices.addFirst(address);
+			while (mDevices.size() > MAX_DEVICES) {
+				mDevices.removeLast();
+			}
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Forgets a device, e.g. one disconnected on purpose, never blocks.
+	 */
+	public void removeDevice(String address) {
+		synchronized (this) {
+			if (!mDevices.remove(address))
+				return;
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Writes a pending change and the latest fix and stops the writer thread.
+	 */
+	public void close() {
+		boolean fixPending;
+		synchronized (this) {
+			fixPending = mFixPending;
+			mFixPending = false;
+		}
+		if (fixPending)
+			scheduleWrite();
+		mWriter.shutdown();
+		try {
+			mWriter.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scheduleWrite() {
+		if (!mWritePending.compareAndSet(false, true))
+			return;
+		try {
+			mWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					// changes from now on need another write
+					mWritePending.set(false);
+					try {
+						write();
+					} catch (IOException e) {
+						Log.e(TAG, "writing " + mFile + " failed", e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// closed
+			mWritePending.set(false);
+		}
+	}
+
+	private void write() throws IOException {
+		Fix fix;
+		List<String> devices;
+		synchronized (this) {
+			fix = mFix;
+			devices = new ArrayList<String>(mDevices);
+			mFixPending = false;
+		}
+
+		File tmp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeBoolean(fix != null);
+			if (fix != null) {
+				out.writeLong(fix.getTime());
+				out.writeLong(fix.getLatitudeNanos());
+				out.writeLong(fix.getLongitudeNanos());
+				out.writeBoolean(fix.hasAltitude());
+				out.writeDouble(fix.getAltitude());
+				out.writeFloat(fix.getSpeed());
+				out.writeFloat(fix.getBearing());
+				out.writeFloat(fix.getAccuracy());
+				out.writeInt(fix.getSatellites());
+			}
+			out.writeInt(devices.size());
+			for (String device : devices) {
+				out.writeUTF(device);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(mFile))
+			throw new IOException("can't rename " + tmp + " to " + mFile);
+	}
+}
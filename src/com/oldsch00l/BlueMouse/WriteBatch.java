@@ -0,0 +1,137 @@
+package com.oldsch00l.BlueMouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Joins the frames waiting for a connection into one write.
+ *
+ * RMC and GGA of a tick, or frames that queued up behind a slow write, are
+ * written in chunks of the link MTU and flushed once, so the radio sends few
+ * full packets instead of one per sentence. An optional coalescing window
+ * waits a little for frames that follow close behind, e.g. GGA after RMC.
+ *
+ * A batch is only used by the writer thread of one connection.
+ */
+public class WriteBatch {
+	/** Typical RFCOMM MTU if the link doesn't tell its own. */
+	public static final int DEFAULT_MTU = 990;
+
+	private static final int MAX_FRAMES = 32;
+
+	private final byte[] mBuffer;
+	private final Frame[] mFrames = new Frame[MAX_FRAMES];
+	private int mFrameCount;
+	private int mLength;
+	// frame that didn't fit into the last batch
+	private Frame mPending;
+
+	/**
+	 * @param capacity
+	 *            bytes of a batch, a larger single frame is still written.
+	 */
+	public WriteBatch(int capacity) {
+		mBuffer = new byte[capacity];
+	}
+
+	/**
+	 * Waits for the next frame and adds the ones waiting behind it.
+	 *
+	 * @param queue
+	 *            queue of the connection.
+	 * @param window
+	 *            time to wait for further frames after the first one in
+	 *            nanoseconds, 0 to only take the waiting ones.
+	 * @return false if the queue was closed.
+	 * @throws InterruptedException
+	 *             if the writer was interrupted while waiting.
+	 */
+	public boolean collect(OutboundQueue queue, long window)
+			throws InterruptedException {
+		clear();
+		Frame frame = mPending;
+		mPending = null;
+		if (frame == null)
+			frame = queue.take();
+		if (frame == null)
+			return false;
+		add(frame);
+		if (mLength == 0) {
+			// larger than the buffer, written on its own
+			return true;
+		}
+
+		long deadline = System.nanoTime() + window;
+		while (mFrameCount < MAX_FRAMES) {
+			long wait = deadline - System.nanoTime();
+			frame = wait > 0 ? queue.poll(wait) : queue.poll();
+			if (frame == null)
+				break;
+			if (mLength + frame.getLength() > mBuffer.length) {
+				mPending = frame;
+				break;
+			}
+			add(frame);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the batch in chunks of at most the MTU and flushes once.
+	 *
+	 * @param out
+	 *            stream of the connection.
+	 * @param mtu
+	 *            largest chunk in bytes.
+	 */
+	public void writeTo(OutputStream out, int mtu) throws IOException {
+		if (mFrameCount == 1 && mLength == 0) {
+			// a single frame larger than the buffer
+			Frame frame = mFrames[0];
+			write(out, frame.getData(), frame.getLength(), mtu);
+		} else {
+			write(out, mBuffer, mLength, mtu);
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return number of frames in the batch.
+	 */
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * @param index
+	 *            index of the frame, from 0.
+	 * @return the frame.
+	 */
+	public Frame getFrame(int index) {
+		return mFrames[index];
+	}
+
+	private void add(Frame frame) {
+		if (frame.getLength() <= mBuffer.length - mLength) {
+			System.arraycopy(frame.getData(), 0, mBuffer, mLength,
+					frame.getLength());
+			mLength += frame.getLength();
+		}
+		mFrames[mFrameCount++] = frame;
+	}
+
+	private void clear() {
+		for (int i = 0; i < mFrameCount; i++) {
+			mFrames[i] = null;
+		}
+		mFrameCount = 0;
+		mLength = 0;
+	}
+
+	private static void write(OutputStream out, byte[] data, int length,
+			int mtu) throws IOException {
+		for (int offset = 0; offset < length; offset += mtu) {
+			out.write(data, offset, Math.min(mtu, length - offset));
+		}
+	}
+}
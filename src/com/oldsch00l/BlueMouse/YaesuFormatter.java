@@ -1,82 +1,116 @@
 package com.oldsch00l.BlueMouse;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+/**
+ * The "yaesu" dialect: fixed field widths and time stamps from the location,
+ * in UTC like every NMEA receiver.
+ */
+public class YaesuFormatter implements SentenceDialect {
+	public static final YaesuFormatter DIALECT = new YaesuFormatter();
 
-import android.location.Location;
-import android.os.Bundle;
+	// by status, quality 1 and status A while the fix is current, RMC has no
+	// mode field to tell an estimated fix
+	private final SentenceTemplate[] mGGAs = {
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,1,%,%,%,M,%,M,000.0,0000"),
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,0,%,%,%,M,%,M,000.0,0000"),
+			new SentenceTemplate("$GPGGA,%,%,%,%,%,6,%,%,%,M,%,M,000.0,0000") };
+	private final SentenceTemplate[] mRMCs = {
+			new SentenceTemplate("$GPRMC,%,A,%,%,%,%,%,%,%,,"),
+			new SentenceTemplate("$GPRMC,%,V,%,%,%,%,%,%,%,,"),
+			new SentenceTemplate("$GPRMC,%,A,%,%,%,%,%,%,%,,") };
 
-public class YaesuFormatter {
-	private static final SimpleDateFormat TIME = new SimpleDateFormat(
-			"HHmmss.SSS", Locale.UK);
-	private static final SimpleDateFormat DATE = new SimpleDateFormat("ddmmyy",
-			Locale.UK);
-	private static final DecimalFormat LATITUDE = new DecimalFormat(
-			"0000.####", NMEAHelper.decSymFormat);
-	private static final DecimalFormat LONGITUDE = new DecimalFormat(
-			"00000.####", NMEAHelper.decSymFormat);
-	private static final DecimalFormat SATELLITES = new DecimalFormat("00");
-	private static final DecimalFormat ACCURACY = new DecimalFormat("00.0",
-			NMEAHelper.decSymFormat);
-	private static final DecimalFormat F5_1 = new DecimalFormat("00000.0",
-			NMEAHelper.decSymFormat);
-	private static final DecimalFormat F4_2 = new DecimalFormat("0000.00",
-			NMEAHelper.decSymFormat);
-	private static final DecimalFormat F4_1 = new DecimalFormat("0000.0",
-			NMEAHelper.decSymFormat);
-	private static final DecimalFormat F3_2 = new DecimalFormat("000.00",
-			NMEAHelper.decSymFormat);
-	private static final DecimalFormat F3_1 = new DecimalFormat("000.00",
-			NMEAHelper.decSymFormat);
+	@Override
+	public String getName() {
+		return SentenceDialects.YAESU;
+	}
+
+	@Override
+	public boolean isCacheable() {
+		return true;
+	}
+
+	@Override
+	public boolean isNmea() {
+		return true;
+	}
+
+	@Override
+	public boolean encode(int sentence, Fix fix, int status, long now,
+			NMEAEncoder encoder) {
+		switch (sentence) {
+		case RMC:
+			encodeRMC(fix, status, encoder);
+			return true;
+		case GGA:
+			encodeGGA(fix, status, encoder);
+			return true;
+		}
+		return false;
+	}
+
+	public static String getNMEAGGA(final Fix fix) {
+		NMEAEncoder encoder = new NMEAEncoder();
+		DIALECT.encodeGGA(fix, STATUS_VALID, encoder);
+		return encoder.toString();
+	}
 
-	public static String getNMEAGGA(final Location loc) {
-		double altitude = loc.getAltitude();
-		Bundle bundle = loc.getExtras();
-		int satellites = 0;
-		if (bundle != null) {
-			satellites = bundle.getInt("satellites", 7);
+	public void encodeGGA(final Fix fix, int status, NMEAEncoder encoder) {
+		SentenceTemplate gga = mGGAs[status];
+		double altitude = fix.getAltitude();
+		int satellites = fix.getSatellites();
+		if (satellites == Fix.SATELLITES_UNKNOWN) {
+			satellites = 0;
 		}
-		StringBuilder sentence = new StringBuilder().append("$GPGGA,")
-				.append(TIME.format(new Date(loc.getTime()))).append(',');
-		appendPosition(loc, sentence);
-		sentence.append('1').append(','); // claim we always have a GPS fix
-		sentence.append(SATELLITES.format(satellites)).append(',')
-				.append(ACCURACY.format(loc.getAccuracy())).append(',')
-				.append(F5_1.format(altitude)).append(",M,")
-				.append(F4_1.format(altitude)).append(",M,000.0,0000*");
-		sentence.append(Integer.toHexString(NMEAHelper
-				.getNMEAChecksum(sentence)));
-		return sentence.append("\r\n").toString();
+		gga.begin(encoder);
+		encoder.appendTime(fix.getTime(), true);
+		appendPosition(fix, gga, encoder);
+		encoder.appendInt(satellites, 2);
+		gga.next(encoder, 5);
+		encoder.appendDecimal(fix.getAccuracy(), 2, 1, 1);
+		gga.next(encoder, 6);
+		encoder.appendDecimal(altitude, 5, 1, 1);
+		gga.next(encoder, 7);
+		encoder.appendDecimal(altitude, 4, 1, 1);
+		gga.next(encoder, 8);
+		encoder.end();
 	}
 
-	public static String getNMEARMC(final Location loc) {
-		Date date = new Date(loc.getTime());
-		StringBuilder sentence = new StringBuilder().append("$GPRMC,")
-				.append(TIME.format(date)).append(",A,");
-		appendPosition(loc, sentence);
-		sentence.append(F4_2.format(loc.getSpeed())).append(',')
-				.append(F3_2.format(loc.getBearing())).append(',')
-				.append(DATE.format(date)).append(",,");
-		sentence.append(Integer.toHexString(NMEAHelper
-				.getNMEAChecksum(sentence)));
-		return sentence.append("\r\n").toString();
+	public static String getNMEARMC(final Fix fix) {
+		NMEAEncoder encoder = new NMEAEncoder();
+		DIALECT.encodeRMC(fix, STATUS_VALID, encoder);
+		return encoder.toString();
 	}
 
-	private static void appendPosition(final Location loc,
-			StringBuilder sentence) {
-		double lat = loc.getLatitude();
-		double lng = loc.getLongitude();
-		sentence.append(convertPosition(LATITUDE, lat)).append(',')
-				.append(lat >= 0 ? 'N' : 'S').append(',')
-				.append(convertPosition(LONGITUDE, lng)).append(',')
-				.append(lng >= 0 ? 'E' : 'W').append(',');
+	public void encodeRMC(final Fix fix, int status, NMEAEncoder encoder) {
+		SentenceTemplate rmc = mRMCs[status];
+		long time = fix.getTime();
+		rmc.begin(encoder);
+		encoder.appendTime(time, true);
+		appendPosition(fix, rmc, encoder);
+		encoder.appendDecimal(fix.getSpeed(), 4, 2, 2);
+		rmc.next(encoder, 5);
+		encoder.appendDecimal(fix.getBearing(), 3, 2, 2);
+		rmc.next(encoder, 6);
+		encoder.appendDate(time);
+		rmc.next(encoder, 7);
+		encoder.appendChecksum().appendLineEnd();
 	}
 
-	public static String convertPosition(DecimalFormat format, double position) {
-		position = Math.abs(position);
-		double degrees = Math.floor(position);
-		return format.format(degrees * 100 + (position - degrees) * 60);
+	/**
+	 * Writes the fields 1 to 4 of the template, time has to be written
+	 * already.
+	 */
+	private static void appendPosition(final Fix fix,
+			SentenceTemplate template, NMEAEncoder encoder) {
+		long lat = fix.getLatitudeNanos();
+		long lng = fix.getLongitudeNanos();
+		template.next(encoder, 0);
+		encoder.appendPosition(lat, 4, 0, 4);
+		template.next(encoder, 1);
+		encoder.append(lat >= 0 ? 'N' : 'S');
+		template.next(encoder, 2);
+		encoder.appendPosition(lng, 5, 0, 4);
+		template.next(encoder, 3);
+		encoder.append(lng >= 0 ? 'E' : 'W');
+		template.next(encoder, 4);
 	}
 }
@@ -0,0 +1,108 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Broadcast;
+import com.oldsch00l.BlueMouse.Connection;
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.GpsdDialect;
+import com.oldsch00l.BlueMouse.Metrics;
+import com.oldsch00l.BlueMouse.NMEAHelper;
+import com.oldsch00l.BlueMouse.NMEAParser;
+import com.oldsch00l.BlueMouse.PassThrough;
+import com.oldsch00l.BlueMouse.SentenceCache;
+import com.oldsch00l.BlueMouse.SentenceDialect;
+import com.oldsch00l.BlueMouse.Subscription;
+import com.oldsch00l.BlueMouse.UbxDialect;
+
+public class BroadcastTest extends TestCase {
+	private static final int[] SENTENCES = { SentenceDialect.RMC, SentenceDialect.GGA };
+	private static final int RMC = 1 << SentenceDialect.RMC;
+	private static final int GGA = 1 << SentenceDialect.GGA;
+	private static final long TIME = 1311750079000L;
+
+	private final List<Connection> mClients = new ArrayList<Connection>();
+	private final Map<Connection, Subscription> mSubscriptions = new HashMap<Connection, Subscription>();
+	private final Broadcast.Subscriptions mLookup = new Broadcast.Subscriptions() {
+		@Override
+		public Subscription getSubscription(Connection connection) {
+			return mSubscriptions.get(connection);
+		}
+	};
+	private final Broadcast mBroadcast = new Broadcast(SENTENCES,
+			new SentenceCache(SentenceCache.DEFAULT_BUDGET),
+			new Metrics().counter("synthesised"));
+	private final Fix mFix = new Fix(1, "gps", TIME, System.nanoTime(),
+			Fix.toNanodegrees(48.2), Fix.toNanodegrees(16.3), true, 306,
+			0.37f, 141.85f, 5, 6);
+	private PassThrough.Epoch mEpoch;
+
+	private RecordingConnection client(SentenceDialect dialect) {
+		RecordingConnection client = new RecordingConnection(dialect.getName());
+		mClients.add(client);
+		mSubscriptions.put(client, new Subscription(Subscription.ALL_SENTENCES, 1, dialect));
+		return client;
+	}
+
+	/**
+	 * Forwards the chip's RMC and GGA of one epoch.
+	 */
+	private void forward() {
+		PassThrough passThrough = new PassThrough(PassThrough.parseTypes("all"),
+				new PassThrough.Listener() {
+					@Override
+					public void onEpoch(PassThrough.Epoch epoch) {
+						mEpoch = epoch;
+					}
+				});
+		new NMEAParser(passThrough).parse(PassThroughTest.RMC
+				+ PassThroughTest.GGA + PassThroughTest.NEXT_RMC);
+		Broadcast.forward(mClients, mLookup, mEpoch);
+	}
+
+	public void testOnlyNmeaClientsGetTheChipsSentencesInstead() {
+		RecordingConnection gpsd = client(GpsdDialect.DIALECT);
+		RecordingConnection nmea = client(NMEAHelper.DIALECT);
+
+		forward();
+		mBroadcast.send(mClients, mLookup, mFix, SentenceDialect.STATUS_VALID,
+				RMC | GGA, RMC | GGA, TIME, System.nanoTime());
+
+		assertEquals(PassThroughTest.RMC + PassThroughTest.GGA, nmea.getWritten());
+		assertEquals(1, nmea.getFrames());
+		// the reports of our own fix, no NMEA text
+		assertEquals(1, gpsd.getFrames());
+		assertTrue(gpsd.getWritten().startsWith("{\"class\":\"TPV\""));
+		assertEquals(-1, gpsd.getWritten().indexOf('$'));
+	}
+
+	public void testUbxClientsKeepTheirBinaryMessages() {
+		RecordingConnection ubx = client(UbxDialect.DIALECT);
+
+		forward();
+		mBroadcast.send(mClients, mLookup, mFix, SentenceDialect.STATUS_VALID,
+				RMC | GGA, RMC | GGA, TIME, System.nanoTime());
+
+		// one NAV-PVT, written for RMC, and no NMEA text
+		assertEquals(1, ubx.getFrames());
+		assertEquals(UbxDialect.MESSAGE_LENGTH, ubx.getWritten().length());
+		assertEquals(-1, ubx.getWritten().indexOf("$GP"));
+	}
+
+	public void testSynthesisesTheTypesThatArentForwarded() {
+		RecordingConnection gpsd = client(GpsdDialect.DIALECT);
+		RecordingConnection nmea = client(NMEAHelper.DIALECT);
+
+		mBroadcast.send(mClients, mLookup, mFix, SentenceDialect.STATUS_VALID,
+				RMC | GGA, RMC, TIME, System.nanoTime());
+
+		assertTrue(nmea.getWritten().startsWith("$GPGGA,"));
+		assertEquals(-1, nmea.getWritten().indexOf("RMC"));
+		assertTrue(gpsd.getWritten().startsWith("{\"class\":\"TPV\""));
+	}
+}
@@ -0,0 +1,73 @@
+package com.oldsch00l.BlueMouse.test;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.DeadReckoning;
+import com.oldsch00l.BlueMouse.Fix;
+
+public class DeadReckoningTest extends TestCase {
+	private static final long MS = 1000000L;
+	private static final long TIME = 1311750079000L;
+	/** Arrival of the fixes in ms of System.nanoTime(). */
+	private static final long RECEIVED = 1000;
+	private static final double EARTH_RADIUS = 6371000;
+
+	private static Fix fix(long time, long received, float speed) {
+		return new Fix(1, "gps", time, received * MS, Fix.toNanodegrees(48.2),
+				Fix.toNanodegrees(16.3), false, 0, speed, 90, 5, 8);
+	}
+
+	private static Fix predict(DeadReckoning reckoning, long now) {
+		return reckoning.predict(now * MS, TIME + now - RECEIVED);
+	}
+
+	public void testMovesAlongTheBearing() {
+		DeadReckoning reckoning = new DeadReckoning(DeadReckoning.MODEL_LINEAR, 3000);
+		Fix fix = fix(TIME, RECEIVED, 10);
+		reckoning.update(fix);
+		Fix predicted = predict(reckoning, RECEIVED + 500);
+		assertEquals(TIME + 500, predicted.getTime());
+		assertEquals(fix.getReceived(), predicted.getReceived());
+		// 5m to the east
+		double degrees = Math.toDegrees(5 / (EARTH_RADIUS * Math.cos(Math.toRadians(48.2))));
+		assertEquals(fix.getLongitudeNanos() + Fix.toNanodegrees(degrees),
+				predicted.getLongitudeNanos(), 100);
+		assertEquals(fix.getLatitudeNanos(), predicted.getLatitudeNanos(), 10);
+	}
+
+	public void testSendsTheFixOutsideTheSteps() {
+		DeadReckoning reckoning = new DeadReckoning(DeadReckoning.MODEL_LINEAR, 3000);
+		reckoning.update(fix(TIME, RECEIVED, 10));
+		assertNull(predict(reckoning, RECEIVED + 10));
+		assertNull(predict(reckoning, RECEIVED + 3001));
+	}
+
+	public void testDoesntPredictSlowFixes() {
+		DeadReckoning reckoning = new DeadReckoning(DeadReckoning.MODEL_LINEAR, 3000);
+		reckoning.update(fix(TIME, RECEIVED, 0.3f));
+		assertNull(predict(reckoning, RECEIVED + 500));
+	}
+
+	public void testStopsWithTheDeceleration() {
+		DeadReckoning reckoning = new DeadReckoning(DeadReckoning.MODEL_ACCELERATION, 3000);
+		reckoning.update(fix(TIME - 1000, RECEIVED - 1000, 10));
+		Fix fix = fix(TIME, RECEIVED, 5);
+		reckoning.update(fix);
+		// -5m/s^2 stops after 1s and 2.5m
+		Fix predicted = predict(reckoning, RECEIVED + 2000);
+		assertEquals(0, predicted.getSpeed(), 0);
+		double degrees = Math.toDegrees(2.5 / (EARTH_RADIUS * Math.cos(Math.toRadians(48.2))));
+		assertEquals(fix.getLongitudeNanos() + Fix.toNanodegrees(degrees),
+				predicted.getLongitudeNanos(), 100);
+	}
+
+	public void testPredictionIsStampedWithTheEmission() {
+		DeadReckoning reckoning = new DeadReckoning(DeadReckoning.MODEL_LINEAR, 3000);
+		// the fix arrived 300ms after its GPS time
+		Fix fix = fix(TIME, RECEIVED, 10);
+		reckoning.update(fix);
+		Fix predicted = reckoning.predict((RECEIVED + 500) * MS, TIME + 800);
+		assertEquals(TIME + 800, predicted.getTime());
+		assertEquals(fix.getReceived(), predicted.getReceived());
+	}
+}
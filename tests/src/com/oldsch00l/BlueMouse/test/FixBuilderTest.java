@@ -0,0 +1,111 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.FixBuilder;
+import com.oldsch00l.BlueMouse.NMEAParser;
+import com.oldsch00l.BlueMouse.NMEASentence;
+
+public class FixBuilderTest extends TestCase {
+	/** 2011-07-27 07:01:19 UTC */
+	private static final long TIME = 1311750079000L;
+
+	private final FixBuilder mBuilder = new FixBuilder("gps");
+	private final List<Fix> mFixes = new ArrayList<Fix>();
+	private final NMEAParser mParser = new NMEAParser(new NMEAParser.Listener() {
+		@Override
+		public void onSentence(NMEASentence sentence) {
+			if (mBuilder.update(sentence))
+				mFixes.add(mBuilder.build(mFixes.size() + 1, 0));
+		}
+	});
+
+	private void parse(String body) {
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++) {
+			checksum ^= body.charAt(i);
+		}
+		mParser.parse("$" + body + "*" + String.format("%02X", checksum) + "\r\n");
+	}
+
+	private void rmc(int second) {
+		parse("GPRMC,0701" + second + ".000,A,4813.0606,N,01619.0771,E,0.72,141.85,270711,,,A");
+	}
+
+	private void gga(int second, String altitude) {
+		parse("GPGGA,0701" + second + ".000,4813.0602,N,01619.0772,E,1,6,1.28," + altitude
+				+ ",M,43.4,M,,");
+	}
+
+	public void testWaitsForAValidRmc() {
+		gga(19, "306.0");
+		parse("GPRMC,070119.000,V,,,,,,,270711,,,N");
+		assertEquals(0, mFixes.size());
+
+		gga(20, "307.0");
+		rmc(20);
+		assertEquals(1, mFixes.size());
+		Fix fix = mFixes.get(0);
+		assertEquals(TIME + 1000, fix.getTime());
+		assertEquals(48.2176767, fix.getLatitude(), 1e-7);
+		assertEquals(16.3179517, fix.getLongitude(), 1e-7);
+		assertEquals(307.0, fix.getAltitude(), 0);
+		assertEquals(6, fix.getSatellites());
+	}
+
+	public void testOneFixPerEpochWithGgaFirst() {
+		for (int second = 19; second < 22; second++) {
+			gga(second, second + "0.0");
+			parse("GPGSA,A,3,07,10,15,19,,,,,,,,,2.34,1.28,1.96");
+			rmc(second);
+			parse("GPVTG,141.85,T,,M,0.72,N,1.34,K,A");
+		}
+		assertEquals(3, mFixes.size());
+		for (int i = 0; i < 3; i++) {
+			Fix fix = mFixes.get(i);
+			assertEquals(i + 1, fix.getSequence());
+			assertEquals(TIME + i * 1000, fix.getTime());
+			assertEquals((19 + i) * 10, fix.getAltitude(), 0);
+		}
+	}
+
+	public void testOneFixPerEpochWithRmcFirst() {
+		for (int second = 19; second < 22; second++) {
+			rmc(second);
+			gga(second, second + "0.0");
+		}
+		// the first RMC can't know a GGA follows
+		assertEquals(3, mFixes.size());
+		assertFalse(mFixes.get(0).hasAltitude());
+		for (int i = 1; i < 3; i++) {
+			Fix fix = mFixes.get(i);
+			assertEquals(TIME + i * 1000, fix.getTime());
+			assertEquals((19 + i) * 10, fix.getAltitude(), 0);
+		}
+	}
+
+	public void testRmcOnly() {
+		for (int second = 19; second < 22; second++) {
+			rmc(second);
+		}
+		assertEquals(3, mFixes.size());
+	}
+
+	public void testKeepsGoingWhenTheGgasStop() {
+		rmc(19);
+		gga(19, "306.0");
+		rmc(20);
+		rmc(21);
+		rmc(22);
+		rmc(23);
+		// only the epoch waiting for the missing GGA is lost
+		assertEquals(4, mFixes.size());
+		assertEquals(TIME + 2000, mFixes.get(1).getTime());
+		assertEquals(TIME + 3000, mFixes.get(2).getTime());
+		assertEquals(TIME + 4000, mFixes.get(3).getTime());
+	}
+}
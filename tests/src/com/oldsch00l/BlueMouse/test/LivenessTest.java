@@ -0,0 +1,51 @@
+package com.oldsch00l.BlueMouse.test;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Liveness;
+
+public class LivenessTest extends TestCase {
+	private static final long MS = 1000000L;
+
+	public void testIdleConnectionIsAlive() {
+		Liveness liveness = new Liveness();
+		liveness.onWriteStart(1000 * MS);
+		liveness.onWriteDone(1001 * MS);
+		// nothing to send for a long time isn't a stall
+		assertNull(liveness.check(100000 * MS, 5000));
+	}
+
+	public void testBlockedWriteIsStalled() {
+		Liveness liveness = new Liveness();
+		liveness.onRead(500 * MS);
+		liveness.onWriteStart(1000 * MS);
+		// a retry keeps the start of the blocked write
+		liveness.onWriteStart(3000 * MS);
+		assertNull(liveness.check(6000 * MS, 5000));
+		String reason = liveness.check(6001 * MS, 5000);
+		assertNotNull(reason);
+		assertTrue(reason, reason.contains("last read 5501ms ago"));
+	}
+
+	public void testSlowClientMakingProgressIsAlive() {
+		Liveness liveness = new Liveness();
+		liveness.onWriteStart(1000 * MS);
+		// the socket takes a part every 4s of a 5s deadline
+		for (long t = 4000; t <= 40000; t += 4000) {
+			assertNull(liveness.check(t * MS + 1000 * MS, 5000));
+			liveness.onWriteProgress(t * MS + 1000 * MS);
+		}
+		liveness.onWriteDone(42000 * MS);
+		assertNull(liveness.check(100000 * MS, 5000));
+	}
+
+	public void testWriteWithoutProgressIsStalled() {
+		Liveness liveness = new Liveness();
+		liveness.onWriteStart(1000 * MS);
+		liveness.onWriteProgress(2000 * MS);
+		// retries that take nothing keep the time of the last progress
+		liveness.onWriteStart(3000 * MS);
+		assertNull(liveness.check(7000 * MS, 5000));
+		assertNotNull(liveness.check(7001 * MS + 1, 5000));
+	}
+}
@@ -0,0 +1,309 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.NMEAEncoder;
+import com.oldsch00l.BlueMouse.NMEAHelper;
+import com.oldsch00l.BlueMouse.YaesuFormatter;
+
+/**
+ * Compares the encoder with the DecimalFormat and SimpleDateFormat patterns
+ * the sentences were written with before.
+ *
+ * Accepted differences, everything else has to be the same bytes:
+ * <ul>
+ * <li>Positions are rounded exactly from nanodegrees. The old code rounded
+ * degrees * 60 computed in double, which can end on the other side of a
+ * halfway point; then the last digit differs by one.</li>
+ * <li>The generic time stamp is the fix time with milliseconds instead of
+ * the emission time with ".000".</li>
+ * <li>Yaesu writes UTC and the month in the date, the old code used the
+ * default time zone and the minutes ("ddmmyy").</li>
+ * </ul>
+ */
+public class NMEAEncoderTest extends TestCase {
+	/** 2011-07-27 23:01:19.250 UTC */
+	private static final long TIME = 1311807679250L;
+
+	private static final double[] VALUES = { 0, -0.0, 0.04, 0.05, 0.15,
+			0.25, 0.35, 0.45, 0.5, 1.5, 2.5, 0.005, 0.015, 0.025, 0.125, 9.95,
+			99.95, 999.995, 1.94 * 3.25, 359.95, -0.04, -0.05, -0.25, -1.5,
+			-12.345, -351.5, 12345.678, 1e6 };
+
+	private final Random mRandom = new Random(20110727);
+	private DecimalFormatSymbols mSymbols;
+
+	@Override
+	protected void setUp() {
+		mSymbols = new DecimalFormatSymbols(Locale.UK);
+		mSymbols.setDecimalSeparator('.');
+	}
+
+	public void testDecimalShort() {
+		assertDecimal("##.#", 1, 0, 1);
+	}
+
+	public void testDecimalYaesu() {
+		assertDecimal("00.0", 2, 1, 1);
+		assertDecimal("00000.0", 5, 1, 1);
+		assertDecimal("0000.00", 4, 2, 2);
+		assertDecimal("0000.0", 4, 1, 1);
+		assertDecimal("000.00", 3, 2, 2);
+	}
+
+	private void assertDecimal(String pattern, int minInt, int minFrac,
+			int maxFrac) {
+		DecimalFormat format = new DecimalFormat(pattern, mSymbols);
+		for (double value : VALUES) {
+			assertEquals(pattern + " " + value, format.format(value),
+					new NMEAEncoder().appendDecimal(value, minInt, minFrac,
+							maxFrac).toString());
+		}
+		for (int i = 0; i < 10000; i++) {
+			// hit halfway values in float as well as plain doubles
+			double value = i % 2 == 0 ? (mRandom.nextDouble() - 0.2) * 1000
+					: (float) (mRandom.nextInt(20000) - 4000) / 200;
+			assertEquals(pattern + " " + value, format.format(value),
+					new NMEAEncoder().appendDecimal(value, minInt, minFrac,
+							maxFrac).toString());
+		}
+	}
+
+	public void testPositionGeneric() {
+		assertPosition("0000.######", 4, 6, false);
+	}
+
+	public void testPositionYaesu() {
+		assertPosition("0000.####", 4, 4, true);
+		assertPosition("00000.####", 5, 4, true);
+	}
+
+	/**
+	 * Checks the encoder against the exact rounding and the old double
+	 * computation, which may only differ in the last digit.
+	 */
+	private void assertPosition(String pattern, int minInt, int maxFrac,
+			boolean yaesu) {
+		DecimalFormat format = new DecimalFormat(pattern, mSymbols);
+		long[] exact = { 0, 500000000L, -12250000000L, 47500000000L,
+				179999999999L, -89999999999L, 48200000000L, 16300000000L };
+		for (long nanos : exact) {
+			String encoded = new NMEAEncoder().appendPosition(nanos, minInt,
+					0, maxFrac).toString();
+			assertEquals(pattern + " " + nanos,
+					oldPosition(format, nanos, yaesu), encoded);
+		}
+
+		int count = 100000;
+		int differences = 0;
+		BigDecimal unit = BigDecimal.ONE.movePointLeft(maxFrac);
+		for (int i = 0; i < count; i++) {
+			long nanos = (long) ((mRandom.nextDouble() * 2 - 1) * 180
+					* Fix.NANODEGREES);
+			String encoded = new NMEAEncoder().appendPosition(nanos, minInt,
+					0, maxFrac).toString();
+			assertEquals(pattern + " " + nanos,
+					exactPosition(format, nanos, maxFrac), encoded);
+
+			String old = oldPosition(format, nanos, yaesu);
+			if (!old.equals(encoded)) {
+				differences++;
+				assertEquals(pattern + " " + nanos + " " + old, 0, unit
+						.compareTo(new BigDecimal(old).subtract(
+								new BigDecimal(encoded)).abs()));
+			}
+		}
+		// about 1% with 6 digits, far less with 4
+		assertTrue(pattern + " " + differences, differences < count / 50);
+	}
+
+	private static String exactPosition(DecimalFormat format, long nanos,
+			int maxFrac) {
+		BigDecimal degrees = BigDecimal.valueOf(Math.abs(nanos), 9);
+		BigDecimal whole = degrees.setScale(0, RoundingMode.DOWN);
+		BigDecimal value = whole.movePointRight(2).add(
+				degrees.subtract(whole).multiply(BigDecimal.valueOf(60)));
+		return format.format(value.setScale(maxFrac, RoundingMode.HALF_EVEN));
+	}
+
+	/** The positions of NMEAHelper and YaesuFormatter before the encoder. */
+	private static String oldPosition(DecimalFormat format, long nanos,
+			boolean yaesu) {
+		double degree = (double) nanos / Fix.NANODEGREES;
+		if (yaesu) {
+			double position = Math.abs(degree);
+			double degrees = Math.floor(position);
+			return format.format(degrees * 100 + (position - degrees) * 60);
+		}
+		double val = degree - (int) degree;
+		val *= 60;
+		val = (int) degree * 100 + val;
+		return format.format(Math.abs(val));
+	}
+
+	public void testTime() {
+		SimpleDateFormat withMillis = utc("HHmmss.SSS");
+		SimpleDateFormat withoutMillis = utc("HHmmss.000");
+		long[] times = { 0, 999, 1000, 86399999, 86400000, -1, TIME,
+				951782400000L };
+		for (long time : times) {
+			assertTime(withMillis, withoutMillis, time);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTime(withMillis, withoutMillis,
+					(long) (mRandom.nextDouble() * 4e12));
+		}
+	}
+
+	private static void assertTime(SimpleDateFormat withMillis,
+			SimpleDateFormat withoutMillis, long time) {
+		assertEquals(withMillis.format(new Date(time)), new NMEAEncoder()
+				.appendTime(time, true).toString());
+		assertEquals(withoutMillis.format(new Date(time)), new NMEAEncoder()
+				.appendTime(time, false).toString());
+	}
+
+	public void testDate() {
+		SimpleDateFormat format = utc("ddMMyy");
+		// 1901 to 2099 with 1970, 2000 and both ends of every leap day
+		for (long day = -25000; day < 47000; day++) {
+			long time = day * 86400000L + mRandom.nextInt(86400000);
+			assertEquals(format.format(new Date(time)), new NMEAEncoder()
+					.appendDate(time).toString());
+		}
+		assertEquals("010300", new NMEAEncoder().appendDate(951868800000L)
+				.toString());
+		assertEquals("290200", new NMEAEncoder().appendDate(951868799999L)
+				.toString());
+		assertEquals("311269", new NMEAEncoder().appendDate(-1).toString());
+	}
+
+	public void testGenericSentences() {
+		Fix fix = new Fix(1, "gps", TIME, 0, Fix.toNanodegrees(48.2123455),
+				Fix.toNanodegrees(16.3), true, 306.25, 3.25f, 141.85f, 5, 8);
+		assertEquals(oldGenericRMC(fix), NMEAHelper.getNMEARMC(fix));
+		assertEquals(oldGenericGGA(fix), NMEAHelper.getNMEAGGA(fix));
+
+		fix = new Fix(2, "gps", TIME, 0, Fix.toNanodegrees(-33.8688),
+				Fix.toNanodegrees(-70.05), false, 0, 0, 0, 5, 4);
+		assertEquals(oldGenericRMC(fix), NMEAHelper.getNMEARMC(fix));
+		assertEquals(oldGenericGGA(fix), NMEAHelper.getNMEAGGA(fix));
+	}
+
+	public void testYaesuSentences() {
+		Fix fix = new Fix(1, "gps", TIME, 0, Fix.toNanodegrees(48.2123455),
+				Fix.toNanodegrees(16.3), true, 306.25, 3.25f, 141.85f, 5, 8);
+		assertEquals(oldYaesuRMC(fix), YaesuFormatter.getNMEARMC(fix));
+		assertEquals(oldYaesuGGA(fix), YaesuFormatter.getNMEAGGA(fix));
+
+		fix = new Fix(2, "gps", TIME, 0, Fix.toNanodegrees(-33.8688),
+				Fix.toNanodegrees(-70.05), true, -12.5, 0, 0, 12.25f, 4);
+		assertEquals(oldYaesuRMC(fix), YaesuFormatter.getNMEARMC(fix));
+		assertEquals(oldYaesuGGA(fix), YaesuFormatter.getNMEAGGA(fix));
+	}
+
+	private String oldGenericRMC(Fix fix) {
+		DecimalFormat location = new DecimalFormat("0000.######", mSymbols);
+		DecimalFormat shortFormat = new DecimalFormat("##.#", mSymbols);
+		Date date = new Date(fix.getTime());
+		StringBuilder sentence = new StringBuilder("$GPRMC,")
+				.append(utc("HHmmss.SSS").format(date)).append(",A,")
+				.append(oldPosition(location, fix.getLatitudeNanos(), false))
+				.append(',').append(fix.getLatitude() >= 0 ? 'N' : 'S')
+				.append(',')
+				.append(oldPosition(location, fix.getLongitudeNanos(), false))
+				.append(',').append(fix.getLongitude() >= 0 ? 'E' : 'W')
+				.append(',').append(shortFormat.format(fix.getSpeed() * 1.94))
+				.append(',').append(shortFormat.format(fix.getBearing()))
+				.append(',').append(utc("ddMMyy").format(date))
+				.append(",,,A*");
+		return sentence
+				.append(Integer.toHexString(NMEAHelper
+						.getNMEAChecksum(sentence))).append("\r\n").toString();
+	}
+
+	private String oldGenericGGA(Fix fix) {
+		DecimalFormat location = new DecimalFormat("0000.######", mSymbols);
+		DecimalFormat shortFormat = new DecimalFormat("##.#", mSymbols);
+		StringBuilder sentence = new StringBuilder("$GPGGA,")
+				.append(utc("HHmmss.SSS").format(new Date(fix.getTime())))
+				.append(',')
+				.append(oldPosition(location, fix.getLatitudeNanos(), false))
+				.append(',').append(fix.getLatitude() >= 0 ? 'N' : 'S')
+				.append(',')
+				.append(oldPosition(location, fix.getLongitudeNanos(), false))
+				.append(',').append(fix.getLongitude() >= 0 ? 'E' : 'W')
+				.append(",1,").append(fix.getSatellites()).append(",,");
+		if (fix.hasAltitude())
+			sentence.append(shortFormat.format(fix.getAltitude()));
+		sentence.append(",M,,M,*");
+		return sentence
+				.append(Integer.toHexString(NMEAHelper
+						.getNMEAChecksum(sentence))).append("\r\n").toString();
+	}
+
+	/** The old RMC had no '*' before the checksum, which is kept. */
+	private String oldYaesuRMC(Fix fix) {
+		Date date = new Date(fix.getTime());
+		StringBuilder sentence = new StringBuilder("$GPRMC,")
+				.append(utc("HHmmss.SSS").format(date)).append(",A,");
+		appendOldYaesuPosition(fix, sentence);
+		sentence.append(
+				new DecimalFormat("0000.00", mSymbols).format(fix.getSpeed()))
+				.append(',')
+				.append(new DecimalFormat("000.00", mSymbols).format(fix
+						.getBearing())).append(',')
+				.append(utc("ddMMyy").format(date)).append(",,");
+		return sentence
+				.append(Integer.toHexString(NMEAHelper
+						.getNMEAChecksum(sentence))).append("\r\n").toString();
+	}
+
+	private String oldYaesuGGA(Fix fix) {
+		double altitude = fix.getAltitude();
+		StringBuilder sentence = new StringBuilder("$GPGGA,").append(
+				utc("HHmmss.SSS").format(new Date(fix.getTime()))).append(',');
+		appendOldYaesuPosition(fix, sentence);
+		sentence.append("1,")
+				.append(new DecimalFormat("00").format(fix.getSatellites()))
+				.append(',')
+				.append(new DecimalFormat("00.0", mSymbols).format(fix
+						.getAccuracy())).append(',')
+				.append(new DecimalFormat("00000.0", mSymbols).format(altitude))
+				.append(",M,")
+				.append(new DecimalFormat("0000.0", mSymbols).format(altitude))
+				.append(",M,000.0,0000*");
+		return sentence
+				.append(Integer.toHexString(NMEAHelper
+						.getNMEAChecksum(sentence))).append("\r\n").toString();
+	}
+
+	private void appendOldYaesuPosition(Fix fix, StringBuilder sentence) {
+		sentence.append(
+				oldPosition(new DecimalFormat("0000.####", mSymbols),
+						fix.getLatitudeNanos(), true))
+				.append(',')
+				.append(fix.getLatitude() >= 0 ? 'N' : 'S')
+				.append(',')
+				.append(oldPosition(new DecimalFormat("00000.####", mSymbols),
+						fix.getLongitudeNanos(), true)).append(',')
+				.append(fix.getLongitude() >= 0 ? 'E' : 'W').append(',');
+	}
+
+	private static SimpleDateFormat utc(String pattern) {
+		SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.UK);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+}
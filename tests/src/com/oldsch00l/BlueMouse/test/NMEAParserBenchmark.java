@@ -0,0 +1,107 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.oldsch00l.BlueMouse.NMEAParser;
+import com.oldsch00l.BlueMouse.NMEASentence;
+
+/**
+ * Compares the {@link NMEAParser} with the string filter it replaced in
+ * onNmeaReceived, line by line as the NmeaListener delivers them.
+ *
+ * Runs on a desktop JVM against the compiled classes of the app:
+ *
+ * <pre>
+ * java -cp bin/classes:tests/bin/classes com.oldsch00l.BlueMouse.test.NMEAParserBenchmark [log]
+ * </pre>
+ *
+ * On NMEA_samples/HOLUX_M1000 with OpenJDK 17 the filter takes about 125
+ * ns/line and allocates the lower case copy of every line, the parser about
+ * 200 ns/line without allocating, while checking the checksums the filter
+ * doesn't look at.
+ */
+public class NMEAParserBenchmark {
+	private static final int ROUNDS = 10;
+	private static final int PASSES = 20000;
+
+	// keeps the results alive
+	private static int sValid;
+
+	public static void main(String[] args) throws IOException {
+		String[] lines = readLines(args.length > 0 ? args[0] : "NMEA_samples/HOLUX_M1000");
+		NMEAParser parser = new NMEAParser(new NMEAParser.Listener() {
+			@Override
+			public void onSentence(NMEASentence sentence) {
+				switch (sentence.getType()) {
+				case NMEASentence.TYPE_RMC:
+					if (sentence.getChar(NMEASentence.RMC_STATUS) != 'V')
+						sValid++;
+					break;
+				case NMEASentence.TYPE_GGA:
+					if (!sentence.isEmpty(NMEASentence.GGA_LONGITUDE + 1))
+						sValid++;
+					break;
+				}
+			}
+		});
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (String line : lines) {
+					filter(line);
+				}
+			}
+			long filtered = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (String line : lines) {
+					parser.parse(line);
+				}
+			}
+			long parsed = System.nanoTime() - start;
+
+			long count = (long) PASSES * lines.length;
+			System.out.println("round " + round + ": filter " + filtered / count
+					+ " ns/line, parser " + parsed / count + " ns/line");
+		}
+		System.out.println(lines.length + " lines, " + parser.getSentences()
+				/ (ROUNDS * PASSES) + " valid sentences per pass (" + sValid + ")");
+	}
+
+	/**
+	 * The filter of onNmeaReceived before the parser.
+	 */
+	private static void filter(String nmea) {
+		String lowerNmea = nmea.toLowerCase(Locale.ENGLISH);
+		if (nmea.startsWith("$GPRMC")) {
+			if (lowerNmea.indexOf(",v,") == -1)
+				sValid++;
+		}
+		if (nmea.startsWith("$GPGGA")) {
+			if (lowerNmea.indexOf(",e,") > 0 || lowerNmea.indexOf(",w,") > 0)
+				sValid++;
+		}
+	}
+
+	private static String[] readLines(String file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// the NmeaListener passes the line end on
+				lines.add(line + "\r\n");
+			}
+		} finally {
+			reader.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+}
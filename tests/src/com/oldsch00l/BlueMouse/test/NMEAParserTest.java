@@ -0,0 +1,64 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.NMEAParser;
+import com.oldsch00l.BlueMouse.NMEASentence;
+
+public class NMEAParserTest extends TestCase {
+	private static final String RMC = "$GPRMC,070119.000,A,4813.0606,N,01619.0771,E,0.72,141.85,270711,,,A*6E\r\n";
+	private static final String GSV = "$GPGSV,3,3,12,21,05,331,,13,04,109,,03,03,024,,49,,,*48\r\n";
+
+	private final List<String> mSentences = new ArrayList<String>();
+	private final NMEAParser mParser = new NMEAParser(new NMEAParser.Listener() {
+		@Override
+		public void onSentence(NMEASentence sentence) {
+			mSentences.add(sentence.getType() + " " + sentence);
+		}
+	});
+
+	public void testSplitsInAnyChunks() {
+		String text = RMC + GSV;
+		for (int chunk = 1; chunk <= text.length(); chunk++) {
+			mSentences.clear();
+			for (int i = 0; i < text.length(); i += chunk) {
+				mParser.parse(text.substring(i, Math.min(text.length(), i + chunk)));
+			}
+			assertEquals(2, mSentences.size());
+			assertEquals(NMEASentence.TYPE_RMC + " " + RMC.trim(), mSentences.get(0));
+			assertEquals(NMEASentence.TYPE_GSV + " " + GSV.trim(), mSentences.get(1));
+		}
+	}
+
+	public void testReadsFieldsInAnyOrder() {
+		mParser.setListener(new NMEAParser.Listener() {
+			@Override
+			public void onSentence(NMEASentence sentence) {
+				assertEquals("270711", sentence.getString(NMEASentence.RMC_DATE));
+				assertEquals('A', sentence.getChar(NMEASentence.RMC_STATUS));
+				assertEquals(25279000, sentence.getTimeOfDay(NMEASentence.RMC_TIME));
+				assertTrue(sentence.isEmpty(10));
+				assertEquals("A", sentence.getString(12));
+				assertTrue(sentence.isEmpty(13));
+				assertEquals(13, sentence.getFieldCount());
+				assertTrue(sentence.is("RMC"));
+				mSentences.add(sentence.toString());
+			}
+		});
+		mParser.parse(RMC);
+		assertEquals(1, mSentences.size());
+	}
+
+	public void testDropsBrokenSentences() {
+		// wrong checksum, cut off by a new '$' and garbage
+		mParser.parse("$GPRMC,070119.000,A*00\r\n");
+		mParser.parse("$GPGSV,3,3,12" + GSV);
+		mParser.parse("$GPGGA,07\u00012000\r\n");
+		assertEquals(1, mSentences.size());
+		assertEquals(1, mParser.getChecksumErrors());
+		assertEquals(2, mParser.getDiscarded());
+	}
+}
@@ -0,0 +1,209 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Frame;
+import com.oldsch00l.BlueMouse.OutboundQueue;
+
+public class OutboundQueueTest extends TestCase {
+	private static final long MS = 1000000L;
+
+	private static Frame[] frames(int count) {
+		Frame[] frames = new Frame[count];
+		for (int i = 0; i < count; i++) {
+			frames[i] = new Frame(new byte[] { (byte) i });
+		}
+		return frames;
+	}
+
+	public void testParsesThePolicies() {
+		assertEquals(OutboundQueue.OVERFLOW_DROP_OLDEST,
+				OutboundQueue.parsePolicy("drop_oldest"));
+		assertEquals(OutboundQueue.OVERFLOW_COALESCE,
+				OutboundQueue.parsePolicy("coalesce"));
+		assertEquals(OutboundQueue.OVERFLOW_DISCONNECT,
+				OutboundQueue.parsePolicy("disconnect"));
+		assertEquals(OutboundQueue.OVERFLOW_DROP_OLDEST,
+				OutboundQueue.parsePolicy(null));
+	}
+
+	public void testDropOldestKeepsTheNewestFrames() {
+		Frame[] frames = frames(5);
+		OutboundQueue queue = new OutboundQueue(3,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		for (Frame frame : frames) {
+			assertTrue(queue.offer(frame));
+			assertTrue(queue.size() <= 3);
+		}
+		assertEquals(2, queue.getDropped());
+		assertSame(frames[2], queue.poll());
+		assertSame(frames[3], queue.poll());
+		assertSame(frames[4], queue.poll());
+		assertNull(queue.poll());
+	}
+
+	public void testCoalesceKeepsOnlyTheNewestFrame() {
+		Frame[] frames = frames(4);
+		OutboundQueue queue = new OutboundQueue(3,
+				OutboundQueue.OVERFLOW_COALESCE);
+		for (Frame frame : frames) {
+			assertTrue(queue.offer(frame));
+		}
+		assertEquals(1, queue.size());
+		assertEquals(3, queue.getDropped());
+		assertSame(frames[3], queue.poll());
+		assertNull(queue.poll());
+	}
+
+	public void testDisconnectRefusesTheFrame() {
+		Frame[] frames = frames(3);
+		OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DISCONNECT);
+		assertTrue(queue.offer(frames[0]));
+		assertTrue(queue.offer(frames[1]));
+		assertFalse(queue.offer(frames[2]));
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getDropped());
+		// the waiting frames are untouched
+		assertSame(frames[0], queue.poll());
+		assertSame(frames[1], queue.poll());
+		assertNull(queue.poll());
+	}
+
+	public void testClosedQueueRefusesFrames() {
+		OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		queue.offer(frames(1)[0]);
+		queue.close();
+		assertEquals(0, queue.size());
+		assertFalse(queue.offer(frames(1)[0]));
+		assertNull(queue.poll());
+	}
+
+	public void testTakeWaitsForTheNextFrame() throws Exception {
+		final OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		final Frame[] taken = new Frame[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken[0] = queue.take();
+				} catch (InterruptedException e) {
+					// taken stays null
+				}
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		// parked, not spinning through the empty queue
+		assertEquals(Thread.State.WAITING, writer.getState());
+		Frame frame = frames(1)[0];
+		queue.offer(frame);
+		writer.join(1000);
+		assertFalse(writer.isAlive());
+		assertSame(frame, taken[0]);
+	}
+
+	public void testCloseWakesTheWriter() throws Exception {
+		final OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		final boolean[] woken = new boolean[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					woken[0] = queue.take() == null;
+				} catch (InterruptedException e) {
+					// woken stays false
+				}
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		queue.close();
+		writer.join(1000);
+		assertFalse(writer.isAlive());
+		assertTrue(woken[0]);
+	}
+
+	public void testInterruptStopsTheWait() throws Exception {
+		final OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		final boolean[] interrupted = new boolean[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.take();
+				} catch (InterruptedException e) {
+					interrupted[0] = true;
+				}
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		writer.interrupt();
+		writer.join(1000);
+		assertFalse(writer.isAlive());
+		assertTrue(interrupted[0]);
+	}
+
+	public void testPollGivesUpAfterTheTimeout() throws Exception {
+		OutboundQueue queue = new OutboundQueue(2,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		long start = System.nanoTime();
+		assertNull(queue.poll(50 * MS));
+		assertTrue(System.nanoTime() - start >= 50 * MS);
+	}
+
+	/**
+	 * A fast producer fills the queue of a slow writer. Every frame is
+	 * either written or dropped, never both, and the writer gets the frames
+	 * in order up to the last one.
+	 */
+	public void testSlowWriterOnAFullQueue() throws Exception {
+		final Frame[] frames = frames(200);
+		final OutboundQueue queue = new OutboundQueue(4,
+				OutboundQueue.OVERFLOW_DROP_OLDEST);
+		final List<Frame> written = new ArrayList<Frame>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Frame frame;
+					while ((frame = queue.take()) != null) {
+						written.add(frame);
+						if (frame == frames[frames.length - 1])
+							return;
+						Thread.sleep(1);
+					}
+				} catch (InterruptedException e) {
+					// the test fails on the missing frames
+				}
+			}
+		};
+		writer.start();
+		for (int i = 0; i < frames.length; i++) {
+			assertTrue(queue.offer(frames[i]));
+			if (i % 8 == 0)
+				Thread.yield();
+		}
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+
+		assertEquals(frames.length, written.size() + queue.getDropped());
+		assertTrue(queue.getDropped() > 0);
+		assertEquals(0, queue.size());
+		int last = -1;
+		for (Frame frame : written) {
+			int index = frame.getData()[0] & 0xff;
+			assertTrue(index > last);
+			last = index;
+		}
+		assertEquals(frames.length - 1, last);
+	}
+}
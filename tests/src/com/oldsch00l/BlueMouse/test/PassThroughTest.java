@@ -0,0 +1,138 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Broadcast;
+import com.oldsch00l.BlueMouse.Connection;
+import com.oldsch00l.BlueMouse.NMEAHelper;
+import com.oldsch00l.BlueMouse.Frame;
+import com.oldsch00l.BlueMouse.NMEAParser;
+import com.oldsch00l.BlueMouse.NMEASentence;
+import com.oldsch00l.BlueMouse.PassThrough;
+import com.oldsch00l.BlueMouse.Subscription;
+
+public class PassThroughTest extends TestCase {
+	static final String RMC = "$GPRMC,070119.000,A,4813.0606,N,01619.0771,E,0.72,141.85,270711,,,A*6E\r\n";
+	static final String GGA = "$GPGGA,070119.000,4813.0606,N,01619.0771,E,1,6,1.28,306.0,M,43.4,M,,*59\r\n";
+	static final String GSV = "$GPGSV,3,3,12,21,05,331,,13,04,109,,03,03,024,,49,,,*48\r\n";
+	static final String NEXT_RMC = "$GPRMC,070120.000,A,4813.0602,N,01619.0772,E,0.72,141.85,270711,,,A*63\r\n";
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final List<PassThrough.Epoch> mEpochs = new ArrayList<PassThrough.Epoch>();
+	private final List<Connection> mClients = new ArrayList<Connection>();
+	private final Map<Connection, Subscription> mSubscriptions = new HashMap<Connection, Subscription>();
+	private final Broadcast.Subscriptions mLookup = new Broadcast.Subscriptions() {
+		@Override
+		public Subscription getSubscription(Connection connection) {
+			return mSubscriptions.get(connection);
+		}
+	};
+
+	private PassThrough passThrough(String types) {
+		return new PassThrough(PassThrough.parseTypes(types),
+				new PassThrough.Listener() {
+					@Override
+					public void onEpoch(PassThrough.Epoch epoch) {
+						mEpochs.add(epoch);
+					}
+				});
+	}
+
+	/**
+	 * Parses one epoch of RMC, GGA and GSV.
+	 */
+	private PassThrough.Epoch epoch() {
+		NMEAParser parser = new NMEAParser(passThrough("all"));
+		parser.parse(RMC + GGA + GSV + NEXT_RMC);
+		assertEquals(1, mEpochs.size());
+		return mEpochs.get(0);
+	}
+
+	private String text(int epoch) {
+		Frame frame = mEpochs.get(epoch).getFrame();
+		return new String(frame.getData(), 0, frame.getLength(), ASCII);
+	}
+
+	private RecordingConnection client(String subscription) {
+		RecordingConnection client = new RecordingConnection(subscription);
+		mClients.add(client);
+		mSubscriptions.put(client, Subscription.parse(subscription,
+				new Subscription(Subscription.ALL_SENTENCES, 1, NMEAHelper.DIALECT)));
+		return client;
+	}
+
+	public void testBatchesTheSentencesOfAnEpoch() {
+		epoch();
+		assertEquals(RMC + GGA + GSV, text(0));
+	}
+
+	public void testForwardsOnlyTheSelectedTypes() {
+		PassThrough passThrough = passThrough("RMC,GSV");
+		NMEAParser parser = new NMEAParser(passThrough);
+		parser.parse(RMC + GGA + GSV + NEXT_RMC);
+		assertEquals(RMC + GSV, text(0));
+		assertTrue(passThrough.forwards(NMEASentence.TYPE_RMC));
+		assertFalse(passThrough.forwards(NMEASentence.TYPE_GGA));
+		// GGA still tells that the chip has a fix
+		assertTrue(passThrough.isLive(NMEASentence.TYPE_GGA));
+	}
+
+	public void testDropsRepeatedSentences() {
+		PassThrough passThrough = passThrough("all");
+		NMEAParser parser = new NMEAParser(passThrough);
+		parser.parse(RMC + GGA + GGA + GSV + NEXT_RMC);
+		assertEquals(RMC + GGA + GSV, text(0));
+		assertEquals(1, passThrough.getDuplicates());
+	}
+
+	public void testNeverForwardsSentencesWithoutAFix() {
+		PassThrough passThrough = passThrough("all");
+		NMEAParser parser = new NMEAParser(passThrough);
+		parser.parse("$GPRMC,070119.000,V,,,,,,,270711,,,N*41\r\n" + GSV + NEXT_RMC);
+		assertEquals(GSV, text(0));
+		assertFalse(passThrough.isLive(NMEASentence.TYPE_GGA));
+	}
+
+	public void testParsesTheTypes() {
+		int rmcGga = PassThrough.parseTypes("RMC, gga,XYZ");
+		assertEquals(1 << NMEASentence.TYPE_RMC | 1 << NMEASentence.TYPE_GGA, rmcGga);
+		assertEquals(0, PassThrough.parseTypes(null));
+		assertEquals(PassThrough.parseTypes("RMC,GGA,GSA,GSV,VTG,ZDA"),
+				PassThrough.parseTypes("all"));
+	}
+
+	public void testForwardsTheSubscribedTypes() {
+		RecordingConnection all = client("RMC+GGA+GSV,1,generic");
+		RecordingConnection rmc = client("RMC,1,generic");
+		RecordingConnection gsv = client("GSV,1,generic");
+		RecordingConnection none = client("ZDA,1,generic");
+
+		Broadcast.forward(mClients, mLookup, epoch());
+
+		assertEquals(RMC + GGA + GSV, all.getWritten());
+		assertEquals(RMC, rmc.getWritten());
+		assertEquals(GSV, gsv.getWritten());
+		assertEquals(0, none.getFrames());
+	}
+
+	public void testSharesTheFramesOfEqualMasks() {
+		PassThrough.Epoch epoch = epoch();
+		int mask = Subscription.parseSentences("RMC+GSV");
+		assertSame(epoch.select(mask), epoch.select(mask));
+		assertSame(epoch.getFrame(), epoch.select(Subscription.ALL_SENTENCES));
+		assertNull(epoch.select(0));
+	}
+
+	public void testSubscribesToThePassThroughTypes() {
+		Subscription subscription = Subscription.parse("GSA+VTG+ZDA,1,generic",
+				new Subscription(Subscription.ALL_SENTENCES, 1, NMEAHelper.DIALECT));
+		assertEquals("GSA+VTG+ZDA,1,generic", subscription.toString());
+		assertFalse(subscription.wants(0));
+	}
+}
@@ -0,0 +1,135 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Metrics;
+import com.oldsch00l.BlueMouse.ReconnectManager;
+
+public class ReconnectManagerTest extends TestCase {
+	private static final String DEVICE = "00:11:22:33:44:55";
+	/** Longer than the first backoff with jitter. */
+	private static final long RETRY_WAIT = 1500;
+
+	private final AtomicInteger mAttempts = new AtomicInteger();
+	private final Semaphore mFailed = new Semaphore(0);
+	// holds the attempts while set
+	private volatile CountDownLatch mBlock;
+	// thrown by the attempts instead of an IOException while set
+	private volatile RuntimeException mCrash;
+	private ReconnectManager<Object> mReconnect;
+
+	@Override
+	protected void setUp() {
+		mReconnect = new ReconnectManager<Object>(1,
+				new ReconnectManager.Connector<Object>() {
+					@Override
+					public Object open(String address) throws IOException {
+						mAttempts.incrementAndGet();
+						CountDownLatch block = mBlock;
+						if (block != null) {
+							try {
+								block.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						mFailed.release();
+						RuntimeException crash = mCrash;
+						if (crash != null)
+							throw crash;
+						throw new IOException("out of range");
+					}
+
+					@Override
+					public void connected(String address, Object link) {
+					}
+
+					@Override
+					public void close(Object link) {
+					}
+				}, new Metrics());
+	}
+
+	@Override
+	protected void tearDown() {
+		mReconnect.shutdown();
+	}
+
+	public void testRetriesAFailedTarget() throws InterruptedException {
+		mReconnect.request(DEVICE);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		assertTrue(mFailed.tryAcquire(RETRY_WAIT, TimeUnit.MILLISECONDS));
+	}
+
+	public void testRetriesAfterARuntimeException() throws InterruptedException {
+		mCrash = new IllegalArgumentException(DEVICE + " is not a valid address");
+		mReconnect.request(DEVICE);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		assertTrue(mFailed.tryAcquire(RETRY_WAIT, TimeUnit.MILLISECONDS));
+	}
+
+	public void testDropsAOneShotTargetAfterARuntimeException()
+			throws InterruptedException {
+		mCrash = new IllegalArgumentException(DEVICE + " is not a valid address");
+		mReconnect.request(DEVICE, true);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		Thread.sleep(RETRY_WAIT);
+		assertEquals(1, mAttempts.get());
+		// dropped, not stuck connecting, so a new request tries again
+		mReconnect.request(DEVICE, true);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+	}
+
+	public void testStopsWhenTheDeviceConnectsByItself() throws InterruptedException {
+		mReconnect.request(DEVICE);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		// e.g. through the accept thread
+		mReconnect.onConnected(DEVICE);
+		Thread.sleep(RETRY_WAIT);
+		assertEquals(1, mAttempts.get());
+	}
+
+	public void testNeverReschedulesARemovedTarget() throws InterruptedException {
+		mReconnect.request(DEVICE);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		// the retry is waiting for its backoff
+		mReconnect.remove(DEVICE);
+		Thread.sleep(RETRY_WAIT);
+		assertEquals(1, mAttempts.get());
+	}
+
+	public void testNeverReschedulesATargetRemovedDuringItsAttempt()
+			throws InterruptedException {
+		mBlock = new CountDownLatch(1);
+		mReconnect.request(DEVICE);
+		while (mAttempts.get() == 0) {
+			Thread.sleep(10);
+		}
+		mReconnect.remove(DEVICE);
+		mBlock.countDown();
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		Thread.sleep(RETRY_WAIT);
+		assertEquals(1, mAttempts.get());
+	}
+
+	public void testDropsAFailedOneShotTarget() throws InterruptedException {
+		mReconnect.request(DEVICE, true);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		Thread.sleep(RETRY_WAIT);
+		assertEquals(1, mAttempts.get());
+	}
+
+	public void testKeepsAOneShotTargetRequestedAgain() throws InterruptedException {
+		mReconnect.request(DEVICE, true);
+		// selected by the user meanwhile
+		mReconnect.request(DEVICE);
+		assertTrue(mFailed.tryAcquire(1, TimeUnit.SECONDS));
+		assertTrue(mFailed.tryAcquire(RETRY_WAIT, TimeUnit.MILLISECONDS));
+	}
+}
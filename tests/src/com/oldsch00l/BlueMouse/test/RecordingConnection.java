@@ -0,0 +1,59 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.nio.charset.Charset;
+
+import com.oldsch00l.BlueMouse.Connection;
+import com.oldsch00l.BlueMouse.Frame;
+import com.oldsch00l.BlueMouse.Liveness;
+
+/**
+ * A client that keeps everything written to it.
+ */
+class RecordingConnection implements Connection {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final String mName;
+	private final Liveness mLiveness = new Liveness();
+	private final StringBuilder mWritten = new StringBuilder();
+	private int mFrames;
+
+	RecordingConnection(String name) {
+		mName = name;
+	}
+
+	@Override
+	public String getDeviceName() {
+		return mName;
+	}
+
+	@Override
+	public String getDeviceAddress() {
+		return mName;
+	}
+
+	@Override
+	public void write(Frame frame) {
+		mWritten.append(new String(frame.getData(), 0, frame.getLength(), ASCII));
+		mFrames++;
+	}
+
+	@Override
+	public Liveness getLiveness() {
+		return mLiveness;
+	}
+
+	@Override
+	public void cancel() {
+	}
+
+	/**
+	 * @return the written bytes as text.
+	 */
+	String getWritten() {
+		return mWritten.toString();
+	}
+
+	int getFrames() {
+		return mFrames;
+	}
+}
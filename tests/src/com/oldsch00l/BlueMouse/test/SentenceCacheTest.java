@@ -0,0 +1,156 @@
+package com.oldsch00l.BlueMouse.test;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.Frame;
+import com.oldsch00l.BlueMouse.NMEAEncoder;
+import com.oldsch00l.BlueMouse.SentenceCache;
+import com.oldsch00l.BlueMouse.SentenceDialect;
+
+public class SentenceCacheTest extends TestCase {
+	/** Bytes of every sentence of the counting dialect. */
+	private static final int LENGTH = 4;
+	/** Room for three sentences with the cache's per entry overhead. */
+	private static final int BUDGET = 3 * (LENGTH + 96);
+
+	/** Writes "$n\r\n" with the fix sequence n and counts the calls. */
+	private static class CountingDialect implements SentenceDialect {
+		private final boolean mCacheable;
+		int mEncoded;
+
+		CountingDialect(boolean cacheable) {
+			mCacheable = cacheable;
+		}
+
+		@Override
+		public String getName() {
+			return "counting";
+		}
+
+		@Override
+		public boolean isCacheable() {
+			return mCacheable;
+		}
+
+		@Override
+		public boolean isNmea() {
+			return true;
+		}
+
+		@Override
+		public boolean encode(int sentence, Fix fix, int status, long now,
+				NMEAEncoder encoder) {
+			if (sentence != RMC && sentence != GGA)
+				return false;
+			mEncoded++;
+			encoder.append('$').appendInt(fix.getSequence() % 10, 1).appendLineEnd();
+			return true;
+		}
+	}
+
+	private final CountingDialect mDialect = new CountingDialect(true);
+	private final SentenceCache mCache = new SentenceCache(BUDGET);
+
+	private static Fix fix(long sequence) {
+		return new Fix(sequence, "gps", 1000 * sequence, 0, 0, 0, false, 0, 0,
+				0, 0, Fix.SATELLITES_UNKNOWN);
+	}
+
+	private Frame encode(Fix fix) {
+		return mCache.encode(fix, mDialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0);
+	}
+
+	public void testReusesTheEncodedSentence() {
+		Fix fix = fix(1);
+		Frame frame = encode(fix);
+		assertEquals(LENGTH, frame.getLength());
+		assertSame(frame, encode(fix));
+		assertEquals(1, mDialect.mEncoded);
+		assertEquals(1, mCache.getHits());
+		assertEquals(1, mCache.getMisses());
+
+		// another type, status or time is another sentence
+		mCache.encode(fix, mDialect, SentenceDialect.GGA,
+				SentenceDialect.STATUS_VALID, 0);
+		mCache.encode(fix, mDialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_ESTIMATED, 0);
+		encode(new Fix(1, "gps", 1200, 0, 0, 0, false, 0, 0, 0, 0,
+				Fix.SATELLITES_UNKNOWN));
+		assertEquals(4, mDialect.mEncoded);
+		assertEquals(1, mCache.getHits());
+		assertEquals(4, mCache.getMisses());
+		// four sentences don't fit, the first one is gone
+		assertEquals(1, mCache.getEvictions());
+	}
+
+	public void testEvictsTheLeastRecentlyUsed() {
+		Fix a = fix(1);
+		Fix b = fix(2);
+		Fix c = fix(3);
+		Fix d = fix(4);
+		Frame frameA = encode(a);
+		Frame frameB = encode(b);
+		Frame frameC = encode(c);
+		// a is used again, b is now the least recently used
+		assertSame(frameA, encode(a));
+		Frame frameD = encode(d);
+		assertEquals(1, mCache.getEvictions());
+
+		// a, c and d are still there, in the order c, a, d before the use
+		assertSame(frameC, encode(c));
+		assertSame(frameA, encode(a));
+		assertSame(frameD, encode(d));
+		assertEquals(4, mDialect.mEncoded);
+		assertEquals(4, mCache.getHits());
+
+		// b was evicted, encoding it again evicts c
+		Frame again = encode(b);
+		assertNotSame(frameB, again);
+		assertEquals(5, mDialect.mEncoded);
+		assertEquals(2, mCache.getEvictions());
+		assertSame(frameA, encode(a));
+		assertSame(frameD, encode(d));
+		assertSame(again, encode(b));
+		assertNotSame(frameC, encode(c));
+
+		assertEquals(7, mCache.getHits());
+		assertEquals(6, mCache.getMisses());
+		assertEquals(3, mCache.getEvictions());
+	}
+
+	public void testKeepsTheNewestSentenceOverTheBudget() {
+		SentenceCache cache = new SentenceCache(LENGTH);
+		Frame first = cache.encode(fix(1), mDialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0);
+		assertSame(first, cache.encode(fix(1), mDialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0));
+		cache.encode(fix(2), mDialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0);
+		assertEquals(1, cache.getEvictions());
+		assertNotSame(first, cache.encode(fix(1), mDialect,
+				SentenceDialect.RMC, SentenceDialect.STATUS_VALID, 0));
+		assertEquals(2, cache.getEvictions());
+	}
+
+	public void testEncodesUncacheableDialectsEveryTime() {
+		CountingDialect dialect = new CountingDialect(false);
+		Fix fix = fix(1);
+		Frame frame = mCache.encode(fix, dialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0);
+		assertNotSame(frame, mCache.encode(fix, dialect, SentenceDialect.RMC,
+				SentenceDialect.STATUS_VALID, 0));
+		assertEquals(2, dialect.mEncoded);
+		assertEquals(0, mCache.getHits());
+		assertEquals(0, mCache.getMisses());
+	}
+
+	public void testUnknownSentenceIsntCached() {
+		Fix fix = fix(1);
+		assertNull(mCache.encode(fix, mDialect, 5, SentenceDialect.STATUS_VALID, 0));
+		assertNull(mCache.encode(fix, mDialect, 5, SentenceDialect.STATUS_VALID, 0));
+		assertEquals(0, mCache.getHits());
+		assertEquals(2, mCache.getMisses());
+	}
+}
@@ -0,0 +1,136 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.NMEAEncoder;
+import com.oldsch00l.BlueMouse.SentenceDialect;
+import com.oldsch00l.BlueMouse.UbxDialect;
+
+/**
+ * Reads the NAV-PVT fields at the offsets of the u-blox protocol
+ * specification, the payload starts after the 6 bytes of sync chars, class,
+ * id and length.
+ */
+public class UbxDialectTest extends TestCase {
+	/** 2011-07-27 07:01:19.500 UTC, a Wednesday */
+	private static final long TIME = 1311750079500L;
+	private static final int PAYLOAD = 6;
+
+	private static Fix fix(double latitude, double longitude, boolean hasAltitude,
+			float bearing, int satellites) {
+		return new Fix(1, "gps", TIME, 0, Fix.toNanodegrees(latitude),
+				Fix.toNanodegrees(longitude), hasAltitude, 306.0, 0.37f, bearing,
+				5.0f, satellites);
+	}
+
+	private static ByteBuffer encode(Fix fix, int status) {
+		NMEAEncoder encoder = new NMEAEncoder();
+		assertTrue(UbxDialect.DIALECT.encode(SentenceDialect.RMC, fix, status, 0,
+				encoder));
+		assertEquals(UbxDialect.MESSAGE_LENGTH, encoder.getLength());
+		byte[] message = Arrays.copyOf(encoder.getBuffer(), encoder.getLength());
+		return ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int u1(ByteBuffer message, int offset) {
+		return message.get(PAYLOAD + offset) & 0xff;
+	}
+
+	private static int i4(ByteBuffer message, int offset) {
+		return message.getInt(PAYLOAD + offset);
+	}
+
+	public void testFraming() {
+		ByteBuffer message = encode(fix(48.2176767, 16.3179517, true, 90, 6),
+				SentenceDialect.STATUS_VALID);
+		assertEquals(0xb5, message.get(0) & 0xff);
+		assertEquals(0x62, message.get(1) & 0xff);
+		// NAV-PVT
+		assertEquals(0x01, message.get(2) & 0xff);
+		assertEquals(0x07, message.get(3) & 0xff);
+		assertEquals(92, message.getShort(4));
+
+		// 8-bit Fletcher over class, id, length and payload
+		int a = 0;
+		int b = 0;
+		for (int i = 2; i < UbxDialect.MESSAGE_LENGTH - 2; i++) {
+			a = (a + (message.get(i) & 0xff)) & 0xff;
+			b = (b + a) & 0xff;
+		}
+		assertEquals(a, message.get(UbxDialect.MESSAGE_LENGTH - 2) & 0xff);
+		assertEquals(b, message.get(UbxDialect.MESSAGE_LENGTH - 1) & 0xff);
+	}
+
+	public void testFields() {
+		ByteBuffer message = encode(fix(48.2176767, 16.3179517, true, 90, 6),
+				SentenceDialect.STATUS_VALID);
+		// 3 days and 07:01:37.5 into the GPS week, 18 leap seconds ahead
+		assertEquals(284497500, i4(message, 0));
+		assertEquals(2011, message.getShort(PAYLOAD + 4));
+		assertEquals(7, u1(message, 6));
+		assertEquals(27, u1(message, 7));
+		assertEquals(7, u1(message, 8));
+		assertEquals(1, u1(message, 9));
+		assertEquals(19, u1(message, 10));
+		// validDate, validTime and fullyResolved
+		assertEquals(0x07, u1(message, 11));
+		assertEquals(500000000, i4(message, 16));
+		// 3D fix, gnssFixOK
+		assertEquals(3, u1(message, 20));
+		assertEquals(0x01, u1(message, 21));
+		assertEquals(6, u1(message, 23));
+
+		// lon, lat in 1e-7 degrees, height and hMSL in mm
+		assertEquals(163179517, i4(message, 24));
+		assertEquals(482176767, i4(message, 28));
+		assertEquals(306000, i4(message, 32));
+		assertEquals(306000, i4(message, 36));
+		assertEquals(5000, i4(message, 40));
+
+		// moving east: velN, velE, velD, gSpeed in mm/s, headMot in 1e-5 degrees
+		assertEquals(0, i4(message, 48));
+		assertEquals(370, i4(message, 52));
+		assertEquals(0, i4(message, 56));
+		assertEquals(370, i4(message, 60));
+		assertEquals(9000000, i4(message, 64));
+		assertEquals(9000000, i4(message, 84));
+	}
+
+	public void testSouthWestWithoutAltitude() {
+		ByteBuffer message = encode(fix(-33.8568, -151.2153, false, 180,
+				Fix.SATELLITES_UNKNOWN), SentenceDialect.STATUS_VALID);
+		assertEquals(-1512153000, i4(message, 24));
+		assertEquals(-338568000, i4(message, 28));
+		assertEquals(0, i4(message, 32));
+		// 2D fix, no satellite count
+		assertEquals(2, u1(message, 20));
+		assertEquals(0, u1(message, 23));
+		// moving south
+		assertEquals(-370, i4(message, 48));
+		assertEquals(0, i4(message, 52));
+	}
+
+	public void testStatus() {
+		Fix fix = fix(48.2176767, 16.3179517, true, 90, 6);
+		ByteBuffer estimated = encode(fix, SentenceDialect.STATUS_ESTIMATED);
+		// dead reckoning only, not gnssFixOK
+		assertEquals(1, u1(estimated, 20));
+		assertEquals(0, u1(estimated, 21));
+		ByteBuffer invalid = encode(fix, SentenceDialect.STATUS_INVALID);
+		assertEquals(0, u1(invalid, 20));
+		assertEquals(0, u1(invalid, 21));
+	}
+
+	public void testGgaIsntWritten() {
+		NMEAEncoder encoder = new NMEAEncoder();
+		assertFalse(UbxDialect.DIALECT.encode(SentenceDialect.GGA,
+				fix(48.2176767, 16.3179517, true, 90, 6),
+				SentenceDialect.STATUS_VALID, 0, encoder));
+		assertEquals(0, encoder.getLength());
+	}
+}
@@ -0,0 +1,37 @@
+package com.oldsch00l.BlueMouse.test;
+
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import com.oldsch00l.BlueMouse.Fix;
+import com.oldsch00l.BlueMouse.YaesuFormatter;
+
+public class YaesuFormatterTest extends TestCase {
+	/** 2011-07-27 23:01:19 UTC, already the 28th in Vienna. */
+	private static final long TIME = 1311807679000L;
+
+	private final Fix mFix = new Fix(1, "gps", TIME, System.nanoTime(),
+			Fix.toNanodegrees(48.2), Fix.toNanodegrees(16.3), true, 306,
+			0.37f, 141.85f, 5, 6);
+	private TimeZone mDefault;
+
+	@Override
+	protected void setUp() {
+		mDefault = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Vienna"));
+	}
+
+	@Override
+	protected void tearDown() {
+		TimeZone.setDefault(mDefault);
+	}
+
+	public void testWritesUtcWhateverTheTimeZone() {
+		String rmc = YaesuFormatter.getNMEARMC(mFix);
+		assertTrue(rmc, rmc.startsWith("$GPRMC,230119"));
+		assertTrue(rmc, rmc.contains(",270711,"));
+		String gga = YaesuFormatter.getNMEAGGA(mFix);
+		assertTrue(gga, gga.startsWith("$GPGGA,230119"));
+	}
+}